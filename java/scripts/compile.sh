@@ -1,13 +1,38 @@
 #!/bin/bash
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
-# Indicate the path of the java compiler to use
-export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
-export PATH=$JAVA_HOME/bin:$PATH
+# Indicate the path of the java compiler to use (Java 8 or later);
+# without JAVA_HOME the one on the PATH is used
+if [ -n "$JAVA_HOME" ]; then export PATH=$JAVA_HOME/bin:$PATH; fi
 
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/Messenger.java
+javac -d $DIR/../classes $DIR/../src/*.java
 
 #run the java program
 #Use your database name, port number and login
+#Read-only queries can be sent to replicas, e.g. -Dmessenger.replicas=1074,1075/otherdb
+#Shards created by sql/scripts/create_shards.sh follow the first port, e.g. -Dmessenger.shards=1074,1075
+#New messages can be kept in memory-mapped log files instead of the MESSAGE table, e.g. -Dmessenger.messageLog=$DIR/../messages
+#The log is local to one node: messages sent through it are not seen by clients of another node,
+#nor counted by ChatAnalytics, which only reads the MESSAGE table
+#User profiles are cached and dropped on USR changes seen through triggers.sql; -Dmessenger.invalidation=local only sees this process
+#Storage operations also run as futures on virtual threads (Java 21+) or -Dmessenger.asyncExecutor=pool, at most -Dmessenger.maxInFlight=64 at once
+#-Dmessenger.messageBodies=true keeps each distinct message text once in MESSAGE_BODY, deflated from -Dmessenger.compressMinBytes=64
 java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Messenger $DB_NAME 1073 $USER
 
+#usage reports (chat activity, top senders, chat sizes, dormant chats) go to a directory, read in chunks from the replicas
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar ChatAnalytics $DB_NAME 1073 $USER reports
+#or from files in the format of the data directory
+#java -cp $DIR/../classes ChatAnalytics -export $DIR/../../data reports
+
+#message histories from other systems (JSON lines or chat;sender;timestamp;text) are imported with
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar ChatImporter $DB_NAME 1073 $USER history.jsonl
+#adding -bulk on a database without live traffic drops the MESSAGE trigger and indexes until the end
+#with shards, pass the same -Dmessenger.shards as the client and choose the shard holding the chats with -Dmessenger.importShard=N
+
+#a data set of any size for sql/src/load_data.sql, e.g. 100k users, 20k chats and 10M messages
+#java -cp $DIR/../classes DatasetGenerator $DIR/../../data 100000 20000 10000000
+
+#existing MESSAGE rows are moved into MESSAGE_BODY, resumably and next to live traffic, with (once per shard)
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar MessageBodyMigration $DB_NAME 1073 $USER
+#and bodies no message refers to any more (e.g. from failed inserts) are deleted, also once per shard, with
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar MessageBodyMigration $DB_NAME 1073 $USER -prune
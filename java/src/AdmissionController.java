@@ -0,0 +1,198 @@
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * This class decides whether a write may go to the database. Each user has
+ * a token bucket refilled at a steady rate up to a burst size, so one
+ * session cannot flood the database, and all users share a limit on how
+ * many writes run at once, so a spike queues briefly and is then turned
+ * away instead of piling up on the primary.
+ *
+ * A bucket is kept as a single AtomicLong holding the time at which it
+ * would be full again (the generic cell rate algorithm), updated with
+ * compare-and-set, so admitting takes no lock.
+ *
+ */
+public class AdmissionController implements AdmissionControllerMBean {
+
+   // buckets looked at per eviction once maxUsers are kept
+   private static final int EVICT_SCAN = 32;
+
+   /**
+    * The outcome of asking to write.
+    */
+   public enum Result {
+      /** the write may go ahead; the caller must call release() after it */
+      ADMITTED,
+      /** the user is over their rate; retry after retryAfterMillis() */
+      THROTTLED,
+      /** too many writes are in flight; retry shortly */
+      REJECTED
+   }//end Result
+
+   private final long _intervalNanos;
+   private final long _burstNanos;
+   private final int _maxUsers;
+   private final Semaphore _writes;
+   private final int _maxConcurrentWrites;
+   private final long _queueMillis;
+
+   // login -> time its bucket is full again, in System.nanoTime() terms
+   private final ConcurrentHashMap<String, AtomicLong> _buckets = new ConcurrentHashMap<String, AtomicLong>();
+
+   // where the last eviction stopped, so evictions take turns over the map
+   private Iterator<Map.Entry<String, AtomicLong>> _evictCursor = null;
+
+   private final AtomicLong _admitted = new AtomicLong();
+   private final AtomicLong _throttled = new AtomicLong();
+   private final AtomicLong _rejected = new AtomicLong();
+
+   /**
+    * Creates a new instance of AdmissionController
+    *
+    * @param writesPerSecond the steady rate each user may write at, 0 for no limit
+    * @param burst how many writes a user may make at once after being idle
+    * @param maxConcurrentWrites how many writes may run at once
+    * @param queueMillis how long to wait for a write slot before rejecting
+    * @param maxUsers how many buckets to keep before dropping full ones
+    */
+   public AdmissionController (double writesPerSecond, int burst, int maxConcurrentWrites, long queueMillis, int maxUsers) {
+      this._intervalNanos = writesPerSecond <= 0 ? 0 : (long) (TimeUnit.SECONDS.toNanos(1) / writesPerSecond);
+      this._burstNanos = this._intervalNanos * Math.max(1, burst);
+      this._maxConcurrentWrites = maxConcurrentWrites;
+      this._writes = new Semaphore(maxConcurrentWrites);
+      this._queueMillis = queueMillis;
+      this._maxUsers = maxUsers;
+   }//end AdmissionController
+
+   /**
+    * Takes a token from the user's bucket and then a write slot. A request
+    * rejected for want of a slot gets its token back, so server load does
+    * not eat into the user's rate.
+    *
+    * @param login the user login
+    * @return ADMITTED when the write may go ahead, holding a slot that must
+    *         be given back with release()
+    * @throws java.lang.InterruptedException when interrupted waiting for a slot
+    */
+   public Result acquire (String login) throws InterruptedException {
+      if (!take(login)){
+         this._throttled.incrementAndGet();
+         return Result.THROTTLED;
+      }//end if
+      if (!this._writes.tryAcquire(this._queueMillis, TimeUnit.MILLISECONDS)){
+         refund (login);
+         this._rejected.incrementAndGet();
+         return Result.REJECTED;
+      }//end if
+      this._admitted.incrementAndGet();
+      return Result.ADMITTED;
+   }//end acquire
+
+   /**
+    * Gives back the write slot of an admitted request.
+    */
+   public void release () {
+      this._writes.release();
+   }//end release
+
+   /**
+    * @param login the user login
+    * @return how long until the user's next write would be admitted
+    */
+   public long retryAfterMillis (String login) {
+      AtomicLong bucket = this._buckets.get(login.trim());
+      if (bucket == null)
+         return 0;
+      long wait = bucket.get() - this._burstNanos + this._intervalNanos - System.nanoTime();
+      return wait <= 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(wait) + 1;
+   }//end retryAfterMillis
+
+   /*
+    * Takes one token from the user's bucket
+    **/
+   private boolean take (String login) {
+      if (this._intervalNanos == 0)
+         return true;
+      String key = login.trim();
+      AtomicLong bucket = this._buckets.get(key);
+      if (bucket == null){
+         if (this._buckets.size() >= this._maxUsers)
+            evict ();
+         AtomicLong created = new AtomicLong(System.nanoTime());
+         bucket = this._buckets.putIfAbsent(key, created);
+         if (bucket == null)
+            bucket = created;
+      }//end if
+      while (true) {
+         long now = System.nanoTime();
+         long full = bucket.get();
+         long next = Math.max(full, now) + this._intervalNanos;
+         if (next - now > this._burstNanos)
+            return false;
+         if (bucket.compareAndSet(full, next))
+            return true;
+      }//end while
+   }//end take
+
+   /*
+    * Gives back the token taken by take(). A bucket evicted meanwhile is
+    * full again anyway.
+    **/
+   private void refund (String login) {
+      if (this._intervalNanos == 0)
+         return;
+      AtomicLong bucket = this._buckets.get(login.trim());
+      if (bucket != null)
+         bucket.addAndGet(-this._intervalNanos);
+   }//end refund
+
+   /*
+    * Looks at the next EVICT_SCAN buckets and drops those that have
+    * refilled, as a fresh bucket behaves the same. When none has, the one
+    * closest to full is dropped anyway to keep the map within maxUsers;
+    * that user gets back the few tokens it was short of.
+    **/
+   private synchronized void evict () {
+      long now = System.nanoTime();
+      Map.Entry<String, AtomicLong> closest = null;
+      boolean evicted = false;
+      for (int i = 0; i < EVICT_SCAN; ++i) {
+         if (this._evictCursor == null || !this._evictCursor.hasNext())
+            this._evictCursor = this._buckets.entrySet().iterator();
+         if (!this._evictCursor.hasNext())
+            return;
+         Map.Entry<String, AtomicLong> e = this._evictCursor.next();
+         long full = e.getValue().get();
+         if (full - now <= 0){
+            this._evictCursor.remove();
+            evicted = true;
+         }else if (closest == null || full - closest.getValue().get() < 0)
+            closest = e;
+      }//end for
+      if (!evicted && closest != null)
+         this._buckets.remove(closest.getKey(), closest.getValue());
+   }//end evict
+
+   public long getAdmitted () {
+      return this._admitted.get();
+   }//end getAdmitted
+
+   public long getThrottled () {
+      return this._throttled.get();
+   }//end getThrottled
+
+   public long getRejected () {
+      return this._rejected.get();
+   }//end getRejected
+
+   public int getInFlight () {
+      return this._maxConcurrentWrites - this._writes.availablePermits();
+   }//end getInFlight
+
+}//end AdmissionController
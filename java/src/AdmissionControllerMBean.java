@@ -0,0 +1,27 @@
+/**
+ * This interface is the JMX view of the AdmissionController counters.
+ *
+ */
+public interface AdmissionControllerMBean {
+
+   /**
+    * @return requests let through
+    */
+   long getAdmitted ();
+
+   /**
+    * @return requests refused because the user was over their rate
+    */
+   long getThrottled ();
+
+   /**
+    * @return requests refused because too many writes were in flight
+    */
+   long getRejected ();
+
+   /**
+    * @return writes admitted and not yet released
+    */
+   int getInFlight ();
+
+}//end AdmissionControllerMBean
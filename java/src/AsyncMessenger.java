@@ -0,0 +1,511 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+
+/**
+ * This class runs the operations of a MessengerStorage on an executor
+ * and hands back CompletableFutures of their typed results, so a front
+ * end can overlap independent requests instead of blocking on each in
+ * turn. A future fails with the SQLException of its operation.
+ *
+ * At most maxInFlight operations run or wait at once; submitting more
+ * blocks the caller until one completes, which keeps a front end that
+ * fans out faster than the database answers from queueing without bound.
+ *
+ * Operations share the connections of each shard. Every statement holds
+ * its connection's monitor, as executeTransaction does for a whole
+ * transaction, so a concurrent statement never lands inside another
+ * operation's transaction; operations on different shards, or reads
+ * spread over replicas, are what actually run in parallel.
+ *
+ */
+public class AsyncMessenger {
+
+   /**
+    * One storage operation.
+    */
+   interface Call<T> {
+      T call () throws SQLException;
+   }//end Call
+
+   /**
+    * Why a candidate may not join a chat.
+    */
+   public enum Rejection { SELF, NOT_FOUND, NOT_CONTACT, BLOCKED, ALREADY_MEMBER }
+
+   /**
+    * The outcome of checking candidates for a chat.
+    */
+   public static class Eligibility {
+      /** the candidates that may join, in input order */
+      public final List<String> eligible = new ArrayList<String>();
+      /** the others, in input order */
+      public final Map<String, Rejection> rejected = new LinkedHashMap<String, Rejection>();
+   }//end Eligibility
+
+   private final MessengerStorage _storage;
+   private final ExecutorService _executor;
+   private final Semaphore _inFlight;
+
+   /**
+    * Creates a new instance of AsyncMessenger
+    *
+    * @param storage the storage to run the operations on
+    * @param executor runs the operations; shut down by close
+    * @param maxInFlight the most operations running or queued at once
+    */
+   public AsyncMessenger (MessengerStorage storage, ExecutorService executor, int maxInFlight) {
+      this._storage = storage;
+      this._executor = executor;
+      this._inFlight = new Semaphore(Math.max(1, maxInFlight));
+   }//end AsyncMessenger
+
+   /**
+    * Creates an AsyncMessenger configured by the messenger.asyncExecutor
+    * ("virtual" or "pool"), messenger.asyncThreads and
+    * messenger.maxInFlight properties.
+    *
+    * @param storage the storage to run the operations on
+    * @return the new instance
+    */
+   public static AsyncMessenger open (MessengerStorage storage) {
+      ExecutorService executor = null;
+      if ("virtual".equals(System.getProperty("messenger.asyncExecutor", "virtual")))
+         executor = virtualThreads();
+      if (executor == null){
+         executor = Executors.newFixedThreadPool(Integer.getInteger("messenger.asyncThreads", 16), new ThreadFactory() {
+            public Thread newThread (Runnable r) {
+               Thread t = new Thread(r, "messenger-async");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }//end if
+      return new AsyncMessenger(storage, executor, Integer.getInteger("messenger.maxInFlight", 64));
+   }//end open
+
+   /*
+    * A thread per operation on Java 21 and later, where threads are cheap
+    * enough to block on JDBC; null before that. Looked up by reflection so
+    * this class still builds on older JDKs.
+    **/
+   private static ExecutorService virtualThreads () {
+      try{
+         return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      }catch (Exception e){
+         return null;
+      }//end try
+   }//end virtualThreads
+
+   /**
+    * Waits for a future, unwrapping the SQLException it failed with.
+    *
+    * @param future the future
+    * @return its result
+    * @throws java.sql.SQLException when the operation failed
+    */
+   public static <T> T await (CompletableFuture<T> future) throws SQLException {
+      try{
+         return future.get();
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("interrupted");
+      }catch (ExecutionException e){
+         if (e.getCause() instanceof SQLException)
+            throw (SQLException) e.getCause();
+         throw new SQLException(String.valueOf(e.getCause()));
+      }//end try
+   }//end await
+
+   /*
+    * Runs a call on the executor once an in-flight slot is free
+    **/
+   private <T> CompletableFuture<T> submit (final Call<T> call) {
+      final CompletableFuture<T> future = new CompletableFuture<T>();
+      try{
+         this._inFlight.acquire();
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         future.completeExceptionally(new SQLException("interrupted"));
+         return future;
+      }//end try
+      try{
+         this._executor.execute(new Runnable() {
+            public void run () {
+               try{
+                  future.complete(call.call());
+               }catch (Throwable t){
+                  future.completeExceptionally(t);
+               }//end try
+            }
+         });
+      }catch (RuntimeException e){
+         // rejected, e.g. after close
+         future.completeExceptionally(e);
+      }//end try
+      future.whenComplete(new BiConsumer<T, Throwable>() {
+         public void accept (T result, Throwable failure) {
+            _inFlight.release();
+         }
+      });
+      return future;
+   }//end submit
+
+   /**
+    * Stops taking operations; those already submitted still complete.
+    */
+   public void close () {
+      this._executor.shutdown();
+   }//end close
+
+   // ------------------------------------------------------------ users
+
+   /** @see MessengerStorage#createUser */
+   public CompletableFuture<Void> createUser (final String login, final String password, final String phone) {
+      return submit(new Call<Void>() {
+         public Void call () throws SQLException {
+            _storage.createUser(login, password, phone);
+            return null;
+         }
+      });
+   }//end createUser
+
+   /** @see MessengerStorage#checkPassword */
+   public CompletableFuture<Boolean> checkPassword (final String login, final String password) {
+      return submit(new Call<Boolean>() {
+         public Boolean call () throws SQLException {
+            return _storage.checkPassword(login, password);
+         }
+      });
+   }//end checkPassword
+
+   /** @see MessengerStorage#existingUsers */
+   public CompletableFuture<Set<String>> existingUsers (final Collection<String> logins) {
+      return submit(new Call<Set<String>>() {
+         public Set<String> call () throws SQLException {
+            return _storage.existingUsers(logins);
+         }
+      });
+   }//end existingUsers
+
+   /** @see MessengerStorage#deleteUser */
+   public CompletableFuture<Void> deleteUser (final String login) {
+      return submit(new Call<Void>() {
+         public Void call () throws SQLException {
+            _storage.deleteUser(login);
+            return null;
+         }
+      });
+   }//end deleteUser
+
+   /** @see MessengerStorage#deactivateUser */
+   public CompletableFuture<Void> deactivateUser (final String login) {
+      return submit(new Call<Void>() {
+         public Void call () throws SQLException {
+            _storage.deactivateUser(login);
+            return null;
+         }
+      });
+   }//end deactivateUser
+
+   /** @see MessengerStorage#statuses */
+   public CompletableFuture<Map<String, String>> statuses (final Collection<String> logins) {
+      return submit(new Call<Map<String, String>>() {
+         public Map<String, String> call () throws SQLException {
+            return _storage.statuses(logins);
+         }
+      });
+   }//end statuses
+
+   /** @see MessengerStorage#setStatus */
+   public CompletableFuture<Void> setStatus (final String login, final String status) {
+      return submit(new Call<Void>() {
+         public Void call () throws SQLException {
+            _storage.setStatus(login, status);
+            return null;
+         }
+      });
+   }//end setStatus
+
+   /**
+    * Answered from memory, so not submitted.
+    *
+    * @see MessengerStorage#statusVersion
+    */
+   public long statusVersion () {
+      return this._storage.statusVersion();
+   }//end statusVersion
+
+   /**
+    * Answered from memory, so not submitted.
+    *
+    * @see MessengerStorage#statusChangesSince
+    */
+   public List<StatusCache.Change> statusChangesSince (long version) {
+      return this._storage.statusChangesSince(version);
+   }//end statusChangesSince
+
+   // ------------------------------------------------------------ lists
+
+   /** @see MessengerStorage#list */
+   public CompletableFuture<List<String>> list (final String login, final MessengerStorage.ListKind kind) {
+      return submit(new Call<List<String>>() {
+         public List<String> call () throws SQLException {
+            return _storage.list(login, kind);
+         }
+      });
+   }//end list
+
+   /** @see MessengerStorage#addToList */
+   public CompletableFuture<Boolean> addToList (final String login, final MessengerStorage.ListKind kind, final String member) {
+      return submit(new Call<Boolean>() {
+         public Boolean call () throws SQLException {
+            return _storage.addToList(login, kind, member);
+         }
+      });
+   }//end addToList
+
+   /** @see MessengerStorage#removeFromList */
+   public CompletableFuture<Boolean> removeFromList (final String login, final MessengerStorage.ListKind kind, final String member) {
+      return submit(new Call<Boolean>() {
+         public Boolean call () throws SQLException {
+            return _storage.removeFromList(login, kind, member);
+         }
+      });
+   }//end removeFromList
+
+   /** @see MessengerStorage#addAllToList */
+   public CompletableFuture<List<String>> addAllToList (final String login, final MessengerStorage.ListKind kind, final Collection<String> members) {
+      return submit(new Call<List<String>>() {
+         public List<String> call () throws SQLException {
+            return _storage.addAllToList(login, kind, members);
+         }
+      });
+   }//end addAllToList
+
+   /** @see MessengerStorage#usersByPhone */
+   public CompletableFuture<Map<String, String>> usersByPhone (final Collection<String> phones) {
+      return submit(new Call<Map<String, String>>() {
+         public Map<String, String> call () throws SQLException {
+            return _storage.usersByPhone(phones);
+         }
+      });
+   }//end usersByPhone
+
+   /** @see MessengerStorage#contactsAmong */
+   public CompletableFuture<Set<String>> contactsAmong (final String login, final Collection<String> candidates) {
+      return submit(new Call<Set<String>>() {
+         public Set<String> call () throws SQLException {
+            return _storage.contactsAmong(login, candidates);
+         }
+      });
+   }//end contactsAmong
+
+   /** @see MessengerStorage#blockedBy */
+   public CompletableFuture<Set<String>> blockedBy (final String login, final Collection<String> others) {
+      return submit(new Call<Set<String>>() {
+         public Set<String> call () throws SQLException {
+            return _storage.blockedBy(login, others);
+         }
+      });
+   }//end blockedBy
+
+   /** @see MessengerStorage#suggestContacts */
+   public CompletableFuture<List<ContactGraph.Suggestion>> suggestContacts (final String login, final int limit) {
+      return submit(new Call<List<ContactGraph.Suggestion>>() {
+         public List<ContactGraph.Suggestion> call () throws SQLException {
+            return _storage.suggestContacts(login, limit);
+         }
+      });
+   }//end suggestContacts
+
+   // ------------------------------------------------------------ chats
+
+   /** @see MessengerStorage#chatsOf */
+   public CompletableFuture<List<MessengerStorage.ChatSummary>> chatsOf (final String login) {
+      return submit(new Call<List<MessengerStorage.ChatSummary>>() {
+         public List<MessengerStorage.ChatSummary> call () throws SQLException {
+            return _storage.chatsOf(login);
+         }
+      });
+   }//end chatsOf
+
+   /** @see MessengerStorage#createChat */
+   public CompletableFuture<Integer> createChat (final String initSender, final List<String> members, final String welcome) {
+      return submit(new Call<Integer>() {
+         public Integer call () throws SQLException {
+            return _storage.createChat(initSender, members, welcome);
+         }
+      });
+   }//end createChat
+
+   /** @see MessengerStorage#isChatMember */
+   public CompletableFuture<Boolean> isChatMember (final int chat_id, final String login) {
+      return submit(new Call<Boolean>() {
+         public Boolean call () throws SQLException {
+            return _storage.isChatMember(chat_id, login);
+         }
+      });
+   }//end isChatMember
+
+   /** @see MessengerStorage#chatInitSender */
+   public CompletableFuture<String> chatInitSender (final int chat_id) {
+      return submit(new Call<String>() {
+         public String call () throws SQLException {
+            return _storage.chatInitSender(chat_id);
+         }
+      });
+   }//end chatInitSender
+
+   /** @see MessengerStorage#chatMembers */
+   public CompletableFuture<List<String>> chatMembers (final int chat_id) {
+      return submit(new Call<List<String>>() {
+         public List<String> call () throws SQLException {
+            return _storage.chatMembers(chat_id);
+         }
+      });
+   }//end chatMembers
+
+   /** @see MessengerStorage#chatMembersAmong */
+   public CompletableFuture<Set<String>> chatMembersAmong (final int chat_id, final Collection<String> candidates) {
+      return submit(new Call<Set<String>>() {
+         public Set<String> call () throws SQLException {
+            return _storage.chatMembersAmong(chat_id, candidates);
+         }
+      });
+   }//end chatMembersAmong
+
+   /** @see MessengerStorage#addChatMembers */
+   public CompletableFuture<Void> addChatMembers (final int chat_id, final List<String> members) {
+      return submit(new Call<Void>() {
+         public Void call () throws SQLException {
+            _storage.addChatMembers(chat_id, members);
+            return null;
+         }
+      });
+   }//end addChatMembers
+
+   /** @see MessengerStorage#removeChatMembers */
+   public CompletableFuture<Boolean> removeChatMembers (final int chat_id, final List<String> members) {
+      return submit(new Call<Boolean>() {
+         public Boolean call () throws SQLException {
+            return _storage.removeChatMembers(chat_id, members);
+         }
+      });
+   }//end removeChatMembers
+
+   /** @see MessengerStorage#deleteChat */
+   public CompletableFuture<Void> deleteChat (final int chat_id) {
+      return submit(new Call<Void>() {
+         public Void call () throws SQLException {
+            _storage.deleteChat(chat_id);
+            return null;
+         }
+      });
+   }//end deleteChat
+
+   // ------------------------------------------------------------ messages
+
+   /** @see MessengerStorage#postMessage */
+   public CompletableFuture<Void> postMessage (final int chat_id, final String sender, final String text) {
+      return submit(new Call<Void>() {
+         public Void call () throws SQLException {
+            _storage.postMessage(chat_id, sender, text);
+            return null;
+         }
+      });
+   }//end postMessage
+
+   /** @see MessengerStorage#readCursor */
+   public CompletableFuture<MessengerStorage.ReadCursor> readCursor (final int chat_id, final String login) {
+      return submit(new Call<MessengerStorage.ReadCursor>() {
+         public MessengerStorage.ReadCursor call () throws SQLException {
+            return _storage.readCursor(chat_id, login);
+         }
+      });
+   }//end readCursor
+
+   /** @see MessengerStorage#messagesBefore */
+   public CompletableFuture<List<MessengerStorage.Message>> messagesBefore (final int chat_id, final int before, final int limit) {
+      return submit(new Call<List<MessengerStorage.Message>>() {
+         public List<MessengerStorage.Message> call () throws SQLException {
+            return _storage.messagesBefore(chat_id, before, limit);
+         }
+      });
+   }//end messagesBefore
+
+   /** @see MessengerStorage#advanceReadCursor */
+   public CompletableFuture<Void> advanceReadCursor (final int chat_id, final String login, final int msg_id) {
+      return submit(new Call<Void>() {
+         public Void call () throws SQLException {
+            _storage.advanceReadCursor(chat_id, login, msg_id);
+            return null;
+         }
+      });
+   }//end advanceReadCursor
+
+   // ------------------------------------------------------------ composite
+
+   /**
+    * Checks which candidates may join chat_id (-1 for a chat not created
+    * yet). The contact, block and membership lookups are independent and
+    * run at the same time. With contactsOnly a member must be one of the
+    * user's contacts and must not have blocked the user; otherwise the
+    * member just has to exist.
+    *
+    * @param user the login adding the members
+    * @param chat_id the chat, or -1
+    * @param candidates the logins to add
+    * @param contactsOnly whether members must be contacts
+    * @return the eligible and the rejected candidates
+    */
+   public CompletableFuture<Eligibility> eligibleMembers (String user, int chat_id, Collection<String> candidates, final boolean contactsOnly) {
+      final Eligibility result = new Eligibility();
+      final Set<String> others = new LinkedHashSet<String>();
+      for (String c : candidates) {
+         if (c.equals(user))
+            result.rejected.put(c, Rejection.SELF);
+         else
+            others.add(c);
+      }//end for
+      if (others.isEmpty())
+         return CompletableFuture.completedFuture(result);
+
+      final CompletableFuture<Set<String>> allowed = contactsOnly ? contactsAmong(user, others) : existingUsers(others);
+      final CompletableFuture<Set<String>> blocked = contactsOnly ? blockedBy(user, others)
+            : CompletableFuture.completedFuture((Set<String>) new HashSet<String>());
+      final CompletableFuture<Set<String>> present = chat_id >= 0 ? chatMembersAmong(chat_id, others)
+            : CompletableFuture.completedFuture((Set<String>) new HashSet<String>());
+      return CompletableFuture.allOf(allowed, blocked, present).thenApply(new Function<Void, Eligibility>() {
+         public Eligibility apply (Void done) {
+            for (String m : others) {
+               if (!allowed.join().contains(m))
+                  result.rejected.put(m, contactsOnly ? Rejection.NOT_CONTACT : Rejection.NOT_FOUND);
+               else if (blocked.join().contains(m))
+                  result.rejected.put(m, Rejection.BLOCKED);
+               else if (present.join().contains(m))
+                  result.rejected.put(m, Rejection.ALREADY_MEMBER);
+               else
+                  result.eligible.add(m);
+            }//end for
+            return result;
+         }
+      });
+   }//end eligibleMembers
+
+}//end AsyncMessenger
@@ -0,0 +1,315 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+
+/**
+ * This class is the analytics command. It reports messages per chat per
+ * day, the most active senders, the distribution of chat sizes and the
+ * dormant chats, as CSV files in an output directory.
+ *
+ * MESSAGE, CHAT and CHAT_LIST are read in keyset chunks of
+ * messenger.analyticsChunk rows from each shard's replicas where there are
+ * any, so no query runs long on the live tables; alternatively the rows
+ * are read from an export in the format of the data directory. Each chunk
+ * is aggregated with a parallel stream into primitive-keyed maps and then
+ * dropped, so memory grows with the number of chats, days and senders,
+ * not with the number of messages.
+ *
+ * Only the MESSAGE table is read. Messages that a Messenger started with
+ * messenger.messageLog keeps in its node-local log files are not counted,
+ * since they never reach MESSAGE. With the log on, the per-chat-day, top
+ * sender and dormant chat reports therefore undercount.
+ *
+ * Usage: java ChatAnalytics <dbname> <port> <user> <outdir>
+ *        java ChatAnalytics -export <datadir> <outdir>
+ *
+ */
+public class ChatAnalytics {
+
+   private static final int CHUNK = Integer.getInteger("messenger.analyticsChunk", 50000);
+
+   /*
+    * Message counts of one chunk or of everything seen so far
+    **/
+   private static class Activity {
+      // (chat_id << 32 | day) -> messages
+      final LongIntHashMap perChatDay = new LongIntHashMap();
+      // sender id -> messages
+      final LongIntHashMap perSender = new LongIntHashMap();
+      // chat_id -> last day with a message
+      final LongIntHashMap lastDay = new LongIntHashMap();
+
+      void add (int chat, int sender, int day) {
+         this.perChatDay.add(((long) chat << 32) | day, 1);
+         if (sender >= 0)
+            this.perSender.add(sender, 1);
+         this.lastDay.max(chat, day);
+      }
+
+      void merge (Activity other) {
+         this.perChatDay.addAll(other.perChatDay);
+         this.perSender.addAll(other.perSender);
+         this.lastDay.maxAll(other.lastDay);
+      }
+   }//end Activity
+
+   private final LoginDictionary _logins = new LoginDictionary();
+   private final Activity _activity = new Activity();
+
+   // chat_id -> members, with every chat present
+   private final LongIntHashMap _members = new LongIntHashMap();
+
+   // one chunk of messages, as days since the epoch and sender ids
+   private final int[] _chat = new int[CHUNK];
+   private final int[] _sender = new int[CHUNK];
+   private final int[] _day = new int[CHUNK];
+
+   /*
+    * Folds the first n rows of the message chunk into the totals
+    **/
+   private void addMessages (final int n) {
+      Activity chunk = IntStream.range(0, n).parallel().collect(
+            Activity::new,
+            (a, i) -> a.add(this._chat[i], this._sender[i], this._day[i]),
+            Activity::merge);
+      this._activity.merge(chunk);
+   }//end addMessages
+
+   /*
+    * Folds the first n chat ids of a CHAT_LIST chunk into the member counts
+    **/
+   private void addMembers (final int[] chats, final int n) {
+      LongIntHashMap chunk = IntStream.range(0, n).parallel().collect(
+            LongIntHashMap::new,
+            (m, i) -> m.add(chats[i], 1),
+            LongIntHashMap::addAll);
+      this._members.addAll(chunk);
+   }//end addMembers
+
+   /**
+    * Reads every shard in keyset chunks.
+    *
+    * @param shards the shards to read
+    * @throws java.sql.SQLException when failed to execute a query
+    */
+   public void scan (ShardRouter shards) throws SQLException {
+      for (int s = 0; s < shards.count(); ++s) {
+         ReplicaRouter shard = shards.shard(s);
+
+         int last = -1;
+         int n;
+         do{
+            n = 0;
+            Statement stmt = shard.forRead().createStatement ();
+            ResultSet rs = stmt.executeQuery (String.format(
+                  "SELECT chat_id FROM chat WHERE chat_id > %d ORDER BY chat_id LIMIT %d", last, CHUNK));
+            while (rs.next()) {
+               last = rs.getInt(1);
+               this._members.add(last, 0);
+               ++n;
+            }//end while
+            stmt.close ();
+         }while (n == CHUNK);
+
+         int lastChat = -1;
+         String lastMember = "";
+         int[] chats = new int[CHUNK];
+         do{
+            n = 0;
+            Statement stmt = shard.forRead().createStatement ();
+            ResultSet rs = stmt.executeQuery (String.format(
+                  "SELECT chat_id, member FROM chat_list WHERE (chat_id, member) > (%d, '%s') ORDER BY chat_id, member LIMIT %d",
+                  lastChat, lastMember.replace("'", "''"), CHUNK));
+            while (rs.next()) {
+               lastChat = chats[n++] = rs.getInt(1);
+               lastMember = rs.getString(2);
+            }//end while
+            stmt.close ();
+            addMembers (chats, n);
+         }while (n == CHUNK);
+
+         last = -1;
+         do{
+            n = 0;
+            Statement stmt = shard.forRead().createStatement ();
+            ResultSet rs = stmt.executeQuery (String.format(
+                  "SELECT msg_id, chat_id, sender_login, msg_timestamp::date - date '1970-01-01' FROM message WHERE msg_id > %d ORDER BY msg_id LIMIT %d",
+                  last, CHUNK));
+            while (rs.next()) {
+               last = rs.getInt(1);
+               this._chat[n] = rs.getInt(2);
+               String sender = rs.getString(3);
+               this._sender[n] = sender == null ? -1 : this._logins.id(sender);
+               this._day[n] = rs.getInt(4);
+               ++n;
+            }//end while
+            stmt.close ();
+            addMessages (n);
+         }while (n == CHUNK);
+      }//end for
+   }//end scan
+
+   /**
+    * Reads chat.csv, chat_list.csv and message.csv, the semicolon separated
+    * files loaded by sql/src/load_data.sql, in chunks.
+    *
+    * @param dir the directory holding the files
+    * @throws java.io.IOException when failed to read a file
+    */
+   public void read (File dir) throws IOException {
+      BufferedReader in = new BufferedReader(new FileReader(new File(dir, "chat.csv")));
+      for (String line = in.readLine(); line != null; line = in.readLine()) {
+         if (!line.isEmpty())
+            this._members.add(Integer.parseInt(line.substring(0, line.indexOf(';'))), 0);
+      }//end for
+      in.close ();
+
+      in = new BufferedReader(new FileReader(new File(dir, "chat_list.csv")));
+      int[] chats = new int[CHUNK];
+      int n = 0;
+      for (String line = in.readLine(); line != null; line = in.readLine()) {
+         if (line.isEmpty())
+            continue;
+         chats[n++] = Integer.parseInt(line.substring(0, line.indexOf(';')));
+         if (n == CHUNK){
+            addMembers (chats, n);
+            n = 0;
+         }//end if
+      }//end for
+      addMembers (chats, n);
+      in.close ();
+
+      // msg_id;msg_text;msg_timestamp;sender_login;chat_id, taken from the
+      // right since the text is the only field that may hold anything odd
+      in = new BufferedReader(new FileReader(new File(dir, "message.csv")));
+      n = 0;
+      for (String line = in.readLine(); line != null; line = in.readLine()) {
+         if (line.isEmpty())
+            continue;
+         int c = line.lastIndexOf(';');
+         int s = line.lastIndexOf(';', c - 1);
+         int t = line.lastIndexOf(';', s - 1);
+         String sender = line.substring(s + 1, c);
+         this._chat[n] = Integer.parseInt(line.substring(c + 1).trim());
+         this._sender[n] = sender.trim().isEmpty() ? -1 : this._logins.id(sender);
+         this._day[n] = (int) LocalDate.parse(line.substring(t + 1, t + 11)).toEpochDay();
+         if (++n == CHUNK){
+            addMessages (n);
+            n = 0;
+         }//end if
+      }//end for
+      addMessages (n);
+      in.close ();
+   }//end read
+
+   /**
+    * Writes messages_per_chat_day.csv, top_senders.csv, chat_sizes.csv and
+    * dormant_chats.csv.
+    *
+    * @param dir the output directory
+    * @param topSenders how many senders to report
+    * @param dormantDays days without a message after which a chat is dormant
+    * @throws java.io.IOException when failed to write a report
+    */
+   public void write (File dir, int topSenders, int dormantDays) throws IOException {
+      dir.mkdirs();
+
+      // packed keys sort by chat and then by day
+      long[] keys = this._activity.perChatDay.keys();
+      Arrays.sort(keys);
+      PrintWriter out = new PrintWriter(new FileWriter(new File(dir, "messages_per_chat_day.csv")));
+      out.println("chat_id,day,messages");
+      for (long k : keys)
+         out.println((k >>> 32) + "," + LocalDate.ofEpochDay((int) k) + "," + this._activity.perChatDay.get(k, 0));
+      out.close ();
+
+      // (messages << 32 | ~sender) sorts by messages, then by lower id
+      keys = this._activity.perSender.keys();
+      long[] ranked = new long[keys.length];
+      for (int i = 0; i < keys.length; ++i)
+         ranked[i] = ((long) this._activity.perSender.get(keys[i], 0) << 32) | (~(int) keys[i] & 0xFFFFFFFFL);
+      Arrays.sort(ranked);
+      out = new PrintWriter(new FileWriter(new File(dir, "top_senders.csv")));
+      out.println("login,messages");
+      for (int i = ranked.length - 1; i >= Math.max(0, ranked.length - topSenders); --i)
+         out.println(this._logins.login(~(int) ranked[i]) + "," + (ranked[i] >>> 32));
+      out.close ();
+
+      keys = this._members.keys();
+      LongIntHashMap sizes = new LongIntHashMap();
+      for (long k : keys)
+         sizes.add(this._members.get(k, 0), 1);
+      long[] members = sizes.keys();
+      Arrays.sort(members);
+      out = new PrintWriter(new FileWriter(new File(dir, "chat_sizes.csv")));
+      out.println("members,chats");
+      for (long m : members)
+         out.println(m + "," + sizes.get(m, 0));
+      out.close ();
+
+      Arrays.sort(keys);
+      int cutoff = (int) LocalDate.now().toEpochDay() - dormantDays;
+      int dormant = 0;
+      out = new PrintWriter(new FileWriter(new File(dir, "dormant_chats.csv")));
+      out.println("chat_id,members,last_message");
+      for (long k : keys) {
+         int lastDay = this._activity.lastDay.get(k, -1);
+         if (lastDay < cutoff){
+            out.println(k + "," + this._members.get(k, 0) + "," + (lastDay < 0 ? "" : LocalDate.ofEpochDay(lastDay).toString()));
+            ++dormant;
+         }//end if
+      }//end for
+      out.close ();
+
+      System.out.println(String.format("%d chats, %d senders, %d chat days, %d dormant chats",
+            keys.length, this._activity.perSender.size(), this._activity.perChatDay.size(), dormant));
+   }//end write
+
+   public static void main (String[] args) {
+      if (args.length != 3 && args.length != 4) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            ChatAnalytics.class.getName () +
+            " <dbname> <port> <user> <outdir> | -export <datadir> <outdir>");
+         return;
+      }//end if
+
+      Messenger esql = null;
+      try{
+         ChatAnalytics analytics = new ChatAnalytics();
+         File outdir;
+         if (args[0].equals("-export")){
+            analytics.read(new File(args[1]));
+            outdir = new File(args[2]);
+         }else{
+            // the chat membership index is of no use here
+            if (System.getProperty("messenger.membershipIndex") == null)
+               System.setProperty("messenger.membershipIndex", "false");
+            Class.forName ("org.postgresql.Driver").newInstance ();
+            esql = new Messenger (args[0], args[1], args[2], "");
+            analytics.scan(esql.shards());
+            outdir = new File(args[3]);
+         }//end if
+         analytics.write(outdir,
+               Integer.getInteger("messenger.topSenders", 100),
+               Integer.getInteger("messenger.dormantDays", 30));
+      }catch(Exception e) {
+         System.err.println (e.getMessage ());
+      }finally{
+         if (esql != null)
+            esql.cleanup ();
+      }//end try
+   }//end main
+
+}//end ChatAnalytics
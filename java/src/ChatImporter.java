@@ -0,0 +1,542 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * This class imports message histories from other systems into CHAT,
+ * CHAT_LIST and MESSAGE, keeping the original timestamps. The input has one
+ * message per line, either as JSON
+ *
+ *    {"chat": "general", "sender": "Judy", "timestamp": "2016-03-04 09:28:59", "text": "hi"}
+ *
+ * or as chat;sender;timestamp;text with the text last, like the files in
+ * the data directory. Every distinct chat key becomes a new chat, and every
+ * sender in it a member; senders must already be users, and their messages
+ * are skipped otherwise. The imported history counts as read.
+ *
+ * Lines are written messenger.importBatch at a time, each batch as
+ * multi-row inserts in one transaction together with the input line it
+ * reached, so an interrupted import run again with the same file picks up
+ * after the last committed batch. The insert_msg_timestamp trigger only
+ * fills in msg_timestamp when it is missing, so the imported timestamps
+ * are kept without touching the trigger, and live traffic carries on
+ * while the import runs. With -bulk, meant for a database without live
+ * traffic, the trigger and the secondary MESSAGE indexes are dropped for
+ * the whole run and restored at its end (a run that was interrupted is
+ * finished by running it again with -bulk).
+ *
+ * In a sharded deployment give the other shards as for Messenger, with
+ * -Dmessenger.shards, and the shard that should hold the chats with
+ * -Dmessenger.importShard (0, the port on the command line, by default);
+ * chat ids then come from that shard's sequence. Senders are looked up on
+ * the shards their logins live on, and each member's chats are entered in
+ * the chat directory of the member's shard once their batch has
+ * committed (a resumed run enters any the interrupted one missed).
+ * Running clients pick the new chats up when they restart.
+ *
+ * Usage: java ChatImporter <dbname> <port> <user> <file> [-bulk]
+ *
+ */
+public class ChatImporter {
+
+   // widest msg_text, a char(300)
+   private static final int MAX_TEXT = 300;
+
+   /*
+    * One input message, with every field already escaped for SQL
+    **/
+   private static class Row {
+      String chat;
+      String sender;
+      String timestamp;
+      String text;
+   }//end Row
+
+   private final ShardRouter _shards;
+   private final Connection _connection;
+   private final String _source;
+   private final int _batchSize;
+   private final IdAllocator _chatIds;
+   private final IdAllocator _msgIds;
+
+   // chat key -> chat_id, and the members of each imported chat
+   private final Map<String, Integer> _chats = new HashMap<String, Integer>();
+   private final Map<Integer, Set<String>> _members = new HashMap<Integer, Set<String>>();
+
+   // senders known to exist or not to exist in USR
+   private final Set<String> _users = new HashSet<String>();
+   private final Set<String> _missing = new HashSet<String>();
+
+   private long _imported = 0;
+   private long _skipped = 0;
+
+   /**
+    * Creates a new instance of ChatImporter
+    *
+    * @param shards every shard, where the senders are looked up
+    * @param shard the shard to import the chats into
+    * @param source the name of the input, under which progress is saved
+    * @param batchSize how many lines to write per transaction
+    */
+   public ChatImporter (ShardRouter shards, int shard, String source, int batchSize) {
+      Connection connection = shards.shard(shard).primary();
+      this._shards = shards;
+      this._connection = connection;
+      this._source = sanitize(source);
+      this._batchSize = Math.max(1, batchSize);
+      this._chatIds = new IdAllocator(connection, "chat_chat_id_seq", 100);
+      this._msgIds = new IdAllocator(connection, "message_msg_id_seq", this._batchSize);
+   }//end ChatImporter
+
+   /**
+    * Reads the progress of an earlier run of the same source: the chats it
+    * created with their members, and the number of input lines done.
+    *
+    * @return the number of input lines already imported
+    * @throws java.sql.SQLException when failed to read the progress
+    */
+   public long resume () throws SQLException {
+      Statement stmt = this._connection.createStatement ();
+      ResultSet rs = stmt.executeQuery (String.format("SELECT chat_key, chat_id FROM import_chat WHERE source = '%s'", this._source));
+      while (rs.next()) {
+         this._chats.put(sanitize(rs.getString(1)), rs.getInt(2));
+         this._members.put(rs.getInt(2), new HashSet<String>());
+      }//end while
+      rs = stmt.executeQuery (String.format(
+            "SELECT L.chat_id, L.member FROM chat_list L, import_chat I WHERE I.source = '%s' AND L.chat_id = I.chat_id", this._source));
+      Map<Integer, Set<String>> directory = new HashMap<Integer, Set<String>>();
+      while (rs.next()) {
+         this._members.get(rs.getInt(1)).add(sanitize(rs.getString(2).trim()));
+         Set<String> m = directory.get(rs.getInt(1));
+         if (m == null)
+            directory.put(rs.getInt(1), m = new HashSet<String>());
+         m.add(sanitize(rs.getString(2).trim()));
+      }//end while
+
+      long line = 0;
+      rs = stmt.executeQuery (String.format("SELECT line FROM import_checkpoint WHERE source = '%s'", this._source));
+      if (rs.next())
+         line = rs.getLong(1);
+      else
+         stmt.executeUpdate (String.format("INSERT INTO import_checkpoint(source, line) VALUES('%s', 0)", this._source));
+      stmt.close ();
+      addToDirectory (directory);
+      return line;
+   }//end resume
+
+   /**
+    * Imports a file, starting after the lines an earlier run got through.
+    *
+    * @param file the JSON lines or semicolon separated input
+    * @param json true for JSON lines
+    * @throws java.io.IOException when failed to read the file
+    * @throws java.sql.SQLException when failed to write a batch
+    */
+   public void importFile (File file, boolean json) throws IOException, SQLException {
+      long done = resume();
+      BufferedReader in = new BufferedReader(new FileReader(file));
+      List<Row> batch = new ArrayList<Row>();
+      long line = 0;
+      long started = System.currentTimeMillis();
+      for (String s = in.readLine(); s != null; s = in.readLine()) {
+         if (++line <= done || s.trim().isEmpty())
+            continue;
+         batch.add(json ? parseJson(s, line) : parseCsv(s, line));
+         if (batch.size() == this._batchSize){
+            flush (batch, line);
+            batch.clear();
+         }//end if
+      }//end for
+      flush (batch, line);
+      in.close ();
+
+      long millis = Math.max(1, System.currentTimeMillis() - started);
+      System.out.println(String.format("%d messages imported (%d/s), %d skipped from unknown senders%s",
+            this._imported, this._imported * 1000 / millis, this._skipped,
+            this._missing.isEmpty() ? "" : ": " + this._missing));
+   }//end importFile
+
+   /*
+    * Writes one batch, and the line it ends at, in a single transaction
+    **/
+   private void flush (List<Row> batch, long line) throws SQLException {
+      resolveUsers (batch);
+
+      List<String> chats = new ArrayList<String>();
+      List<String> keys = new ArrayList<String>();
+      List<String> members = new ArrayList<String>();
+      List<String> messages = new ArrayList<String>();
+      Map<Integer, Integer> added = new LinkedHashMap<Integer, Integer>();
+      Map<Integer, Integer> last = new LinkedHashMap<Integer, Integer>();
+      Map<Integer, Set<String>> directory = new HashMap<Integer, Set<String>>();
+
+      int valid = 0;
+      for (Row r : batch) {
+         if (this._users.contains(r.sender))
+            ++valid;
+      }//end for
+      int[] ids = this._msgIds.next(valid);
+      int next = 0;
+      for (Row r : batch) {
+         if (!this._users.contains(r.sender)){
+            ++this._skipped;
+            continue;
+         }//end if
+         Integer chat_id = this._chats.get(r.chat);
+         if (chat_id == null){
+            chat_id = this._chatIds.next();
+            this._chats.put(r.chat, chat_id);
+            this._members.put(chat_id, new HashSet<String>());
+            chats.add(String.format("(%d, 'private', '%s', 0)", chat_id, r.sender));
+            keys.add(String.format("('%s', '%s', %d)", this._source, r.chat, chat_id));
+         }//end if
+         if (this._members.get(chat_id).add(r.sender)){
+            members.add(String.format("(%d, '%s')", chat_id, r.sender));
+            Set<String> m = directory.get(chat_id);
+            if (m == null)
+               directory.put(chat_id, m = new HashSet<String>());
+            m.add(r.sender);
+            Integer n = added.get(chat_id);
+            added.put(chat_id, n == null ? 1 : n + 1);
+         }//end if
+         int msg_id = ids[next++];
+         messages.add(String.format("(%d, '%s', '%s', '%s', %d)", msg_id, r.text, r.timestamp, r.sender, chat_id));
+         last.put(chat_id, msg_id);
+      }//end for
+
+      List<String> statements = new ArrayList<String>();
+      if (!chats.isEmpty()){
+         statements.add("INSERT INTO chat(chat_id, chat_type, init_sender, member_count) VALUES " + join(chats));
+         statements.add("INSERT INTO import_chat(source, chat_key, chat_id) VALUES " + join(keys));
+      }//end if
+      if (!members.isEmpty())
+         statements.add("INSERT INTO chat_list(chat_id, member) VALUES " + join(members));
+      if (!messages.isEmpty())
+         statements.add("INSERT INTO message(msg_id, msg_text, msg_timestamp, sender_login, chat_id) VALUES " + join(messages));
+      if (!added.isEmpty())
+         statements.add(String.format(
+               "UPDATE chat C SET member_count = C.member_count + D.added, chat_type = CASE WHEN C.member_count + D.added > 2 THEN 'group' ELSE 'private' END FROM (VALUES %s) AS D(chat_id, added) WHERE C.chat_id = D.chat_id",
+               pairs(added)));
+      if (!last.isEmpty())
+         statements.add(String.format(
+               "UPDATE chat_list L SET last_read_msg_id = D.last FROM (VALUES %s) AS D(chat_id, last) WHERE L.chat_id = D.chat_id",
+               pairs(last)));
+      statements.add(String.format("UPDATE import_checkpoint SET line = %d WHERE source = '%s'", line, this._source));
+
+      boolean autoCommit = this._connection.getAutoCommit();
+      this._connection.setAutoCommit(false);
+      Statement stmt = this._connection.createStatement ();
+      try{
+         for (String s : statements)
+            stmt.executeUpdate (s);
+         this._connection.commit();
+      }catch (SQLException e){
+         this._connection.rollback();
+         throw e;
+      }finally{
+         stmt.close ();
+         this._connection.setAutoCommit(autoCommit);
+      }//end try
+      this._imported += messages.size();
+      addToDirectory (directory);
+   }//end flush
+
+   /*
+    * Enters chat members in the chat directory of their shards, skipping
+    * those already there; only kept when there is more than one shard
+    **/
+   private void addToDirectory (Map<Integer, Set<String>> members) throws SQLException {
+      if (!this._shards.isSharded())
+         return;
+      Map<Integer, List<String>> rows = new HashMap<Integer, List<String>>();
+      for (Map.Entry<Integer, Set<String>> e : members.entrySet()) {
+         for (String m : e.getValue()) {
+            int shard = this._shards.shardOfLogin(m);
+            List<String> r = rows.get(shard);
+            if (r == null)
+               rows.put(shard, r = new ArrayList<String>());
+            r.add(String.format("('%s', %d)", m, e.getKey()));
+         }//end for
+      }//end for
+      for (Map.Entry<Integer, List<String>> e : rows.entrySet()) {
+         Statement stmt = this._shards.shard(e.getKey()).primary().createStatement ();
+         stmt.executeUpdate (String.format(
+               "INSERT INTO chat_directory(member, chat_id) SELECT M.member, M.chat_id FROM (VALUES %s) AS M(member, chat_id) WHERE NOT EXISTS (SELECT 1 FROM chat_directory D WHERE D.member = M.member AND D.chat_id = M.chat_id)",
+               join(e.getValue())));
+         stmt.close ();
+      }//end for
+   }//end addToDirectory
+
+   /*
+    * Looks up the senders of a batch not seen before in USR, each on the
+    * shard of its login
+    **/
+   private void resolveUsers (List<Row> batch) throws SQLException {
+      Set<String> unknown = new LinkedHashSet<String>();
+      for (Row r : batch) {
+         if (!this._users.contains(r.sender) && !this._missing.contains(r.sender))
+            unknown.add(r.sender);
+      }//end for
+      if (unknown.isEmpty())
+         return;
+      Map<Integer, List<String>> quoted = new HashMap<Integer, List<String>>();
+      for (String u : unknown) {
+         int shard = this._shards.shardOfLogin(u);
+         List<String> q = quoted.get(shard);
+         if (q == null)
+            quoted.put(shard, q = new ArrayList<String>());
+         q.add("'" + u + "'");
+      }//end for
+      for (Map.Entry<Integer, List<String>> e : quoted.entrySet()) {
+         Statement stmt = this._shards.shard(e.getKey()).primary().createStatement ();
+         ResultSet rs = stmt.executeQuery ("SELECT login FROM usr WHERE login IN (" + join(e.getValue()) + ")");
+         while (rs.next()) {
+            String login = sanitize(rs.getString(1).trim());
+            this._users.add(login);
+            unknown.remove(login);
+         }//end while
+         stmt.close ();
+      }//end for
+      this._missing.addAll(unknown);
+   }//end resolveUsers
+
+   /**
+    * Prepares a database for a bulk import: the MESSAGE trigger and its
+    * secondary indexes are dropped until endBulk, and commits stop waiting
+    * for the disk.
+    *
+    * @param connection the database
+    * @throws java.sql.SQLException when failed to execute a statement
+    */
+   public static void beginBulk (Connection connection) throws SQLException {
+      Statement stmt = connection.createStatement ();
+      stmt.executeUpdate ("SET synchronous_commit TO off");
+      stmt.executeUpdate ("ALTER TABLE message DISABLE TRIGGER USER");
+      stmt.executeUpdate ("DROP INDEX IF EXISTS message_index");
+      stmt.executeUpdate ("DROP INDEX IF EXISTS message_chat_index");
+      stmt.close ();
+   }//end beginBulk
+
+   /**
+    * Restores what beginBulk dropped, as in sql/src/create_indexes.sql.
+    *
+    * @param connection the database
+    * @throws java.sql.SQLException when failed to execute a statement
+    */
+   public static void endBulk (Connection connection) throws SQLException {
+      Statement stmt = connection.createStatement ();
+      stmt.executeUpdate ("CREATE INDEX IF NOT EXISTS message_index ON MESSAGE USING BTREE (msg_id)");
+      stmt.executeUpdate ("CREATE INDEX IF NOT EXISTS message_chat_index ON MESSAGE USING BTREE (chat_id, msg_id)");
+      stmt.executeUpdate ("ALTER TABLE message ENABLE TRIGGER USER");
+      stmt.executeUpdate ("ANALYZE message");
+      stmt.executeUpdate ("SET synchronous_commit TO on");
+      stmt.close ();
+   }//end endBulk
+
+   /*
+    * Parses chat;sender;timestamp;text
+    **/
+   private static Row parseCsv (String line, long lineNo) {
+      String[] fields = line.split(";", 4);
+      if (fields.length < 4)
+         throw new IllegalArgumentException("line " + lineNo + ": expected chat;sender;timestamp;text");
+      return row(fields[0], fields[1], fields[2], fields[3], lineNo);
+   }//end parseCsv
+
+   /*
+    * Parses a flat JSON object with string, number, boolean or null values
+    **/
+   private static Row parseJson (String line, long lineNo) {
+      Map<String, String> fields = new HashMap<String, String>();
+      int[] pos = { skipBlanks(line, 0) };
+      expect (line, pos, '{', lineNo);
+      pos[0] = skipBlanks(line, pos[0]);
+      if (pos[0] < line.length() && line.charAt(pos[0]) == '}')
+         ++pos[0];
+      else{
+         while (true) {
+            pos[0] = skipBlanks(line, pos[0]);
+            String name = jsonString(line, pos, lineNo);
+            pos[0] = skipBlanks(line, pos[0]);
+            expect (line, pos, ':', lineNo);
+            pos[0] = skipBlanks(line, pos[0]);
+            String value;
+            if (pos[0] < line.length() && line.charAt(pos[0]) == '"')
+               value = jsonString(line, pos, lineNo);
+            else{
+               int start = pos[0];
+               while (pos[0] < line.length() && ",} \t".indexOf(line.charAt(pos[0])) < 0)
+                  ++pos[0];
+               value = line.substring(start, pos[0]);
+               if (value.equals("null"))
+                  value = null;
+            }//end if
+            fields.put(name, value);
+            pos[0] = skipBlanks(line, pos[0]);
+            if (pos[0] < line.length() && line.charAt(pos[0]) == ','){
+               ++pos[0];
+               continue;
+            }//end if
+            expect (line, pos, '}', lineNo);
+            break;
+         }//end while
+      }//end if
+      return row(fields.get("chat"), fields.get("sender"), fields.get("timestamp"), fields.get("text"), lineNo);
+   }//end parseJson
+
+   private static int skipBlanks (String s, int i) {
+      while (i < s.length() && Character.isWhitespace(s.charAt(i)))
+         ++i;
+      return i;
+   }//end skipBlanks
+
+   private static void expect (String s, int[] pos, char c, long lineNo) {
+      if (pos[0] >= s.length() || s.charAt(pos[0]) != c)
+         throw new IllegalArgumentException("line " + lineNo + ": expected '" + c + "' at column " + (pos[0] + 1));
+      ++pos[0];
+   }//end expect
+
+   private static String jsonString (String s, int[] pos, long lineNo) {
+      expect (s, pos, '"', lineNo);
+      StringBuilder sb = new StringBuilder();
+      while (pos[0] < s.length()) {
+         char c = s.charAt(pos[0]++);
+         if (c == '"')
+            return sb.toString();
+         if (c != '\\' || pos[0] >= s.length()){
+            sb.append(c);
+            continue;
+         }//end if
+         char e = s.charAt(pos[0]++);
+         switch (e) {
+            case 'n': sb.append('\n'); break;
+            case 't': sb.append('\t'); break;
+            case 'r': sb.append('\r'); break;
+            case 'b': sb.append('\b'); break;
+            case 'f': sb.append('\f'); break;
+            case 'u':
+               if (pos[0] + 4 > s.length())
+                  throw new IllegalArgumentException("line " + lineNo + ": bad \\u escape");
+               sb.append((char) Integer.parseInt(s.substring(pos[0], pos[0] + 4), 16));
+               pos[0] += 4;
+               break;
+            default: sb.append(e); break;
+         }//end switch
+      }//end while
+      throw new IllegalArgumentException("line " + lineNo + ": unterminated string");
+   }//end jsonString
+
+   /*
+    * Checks and escapes the fields of one message
+    **/
+   private static Row row (String chat, String sender, String timestamp, String text, long lineNo) {
+      if (chat == null || sender == null || timestamp == null || text == null)
+         throw new IllegalArgumentException("line " + lineNo + ": chat, sender, timestamp and text are required");
+      Row r = new Row();
+      r.chat = sanitize(chat.trim());
+      r.sender = sanitize(sender.trim());
+      // ISO 8601 as well as the SQL form; zone designators are ignored
+      String ts = timestamp.trim().replace('T', ' ');
+      if (ts.endsWith("Z"))
+         ts = ts.substring(0, ts.length() - 1);
+      try{
+         r.timestamp = Timestamp.valueOf(ts.length() == 10 ? ts + " 00:00:00" : ts).toString();
+      }catch (IllegalArgumentException e){
+         throw new IllegalArgumentException("line " + lineNo + ": bad timestamp " + timestamp);
+      }//end try
+      r.text = sanitize(text.length() > MAX_TEXT ? text.substring(0, MAX_TEXT) : text);
+      return r;
+   }//end row
+
+   private static String sanitize (String s) {
+      return s.replace("'", "''");
+   }//end sanitize
+
+   private static String join (List<String> values) {
+      StringBuilder sb = new StringBuilder();
+      for (String v : values) {
+         if (sb.length() > 0)
+            sb.append(", ");
+         sb.append(v);
+      }//end for
+      return sb.toString();
+   }//end join
+
+   private static String pairs (Map<Integer, Integer> values) {
+      List<String> rows = new ArrayList<String>();
+      for (Map.Entry<Integer, Integer> e : values.entrySet())
+         rows.add("(" + e.getKey() + ", " + e.getValue() + ")");
+      return join(rows);
+   }//end pairs
+
+   public static void main (String[] args) {
+      if (args.length != 4 && !(args.length == 5 && args[4].equals("-bulk"))) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            ChatImporter.class.getName () +
+            " <dbname> <port> <user> <file> [-bulk]");
+         return;
+      }//end if
+
+      List<Connection> connections = new ArrayList<Connection>();
+      boolean bulk = args.length == 5;
+      try{
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         // shard 0 is the database on the command line, further shards as for Messenger
+         List<String> specs = new ArrayList<String>();
+         specs.add(args[1]);
+         for (String spec : System.getProperty("messenger.shards", "").split(",")) {
+            if (!spec.trim().isEmpty())
+               specs.add(spec.trim());
+         }//end for
+         List<ReplicaRouter> shards = new ArrayList<ReplicaRouter>();
+         for (String spec : specs) {
+            String url = "jdbc:postgresql://localhost:" + (spec.indexOf('/') < 0 ? spec + "/" + args[0] : spec);
+            connections.add(DriverManager.getConnection(url, args[2], ""));
+            shards.add(new ReplicaRouter(connections.get(connections.size() - 1), new ArrayList<Connection>(), 0, 0, 100));
+         }//end for
+         int shard = Integer.getInteger("messenger.importShard", 0);
+         Connection connection = connections.get(shard);
+         File file = new File(args[3]);
+         String name = file.getName().toLowerCase();
+         ChatImporter importer = new ChatImporter(new ShardRouter(shards), shard, file.getName(),
+               Integer.getInteger("messenger.importBatch", 5000));
+         if (bulk)
+            beginBulk (connection);
+         try{
+            importer.importFile(file, name.endsWith(".jsonl") || name.endsWith(".json"));
+         }finally{
+            if (bulk)
+               endBulk (connection);
+         }//end try
+      }catch (Exception e){
+         System.err.println (e.getMessage ());
+      }finally{
+         for (Connection connection : connections) {
+            try{
+               connection.close ();
+            }catch (SQLException e){
+               // ignored.
+            }//end try
+         }//end for
+      }//end try
+   }//end main
+
+}//end ChatImporter
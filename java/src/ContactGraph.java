@@ -0,0 +1,483 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * This class holds the contact graph in memory to suggest "people you may
+ * know": users who are contacts of many of the user's contacts. Contact
+ * and block lists are kept as compressed sparse rows (CSR) of int user ids
+ * from the shared LoginDictionary, so a user's contacts are one slice of
+ * a single int array.
+ *
+ * Changes made after the rows were built are kept in small per-user
+ * overlays and folded into fresh rows once they grow past a threshold.
+ * The graph is loaded on first use.
+ *
+ * Once loaded, the suggestions of every user are precomputed in parallel
+ * on the common fork/join pool and suggest answers from that table. A user
+ * whose own lists, or whose contacts' contact lists, changed since then is
+ * ranked on the spot instead, and the table is recomputed in the
+ * background once more users than the compaction threshold are affected.
+ *
+ */
+public class ContactGraph {
+
+   /**
+    * A suggested contact and the number of the user's contacts who have
+    * that person as a contact.
+    */
+   public static class Suggestion {
+      public final String login;
+      public final int mutual;
+
+      Suggestion (String login, int mutual) {
+         this.login = login;
+         this.mutual = mutual;
+      }
+   }//end Suggestion
+
+   // users per fork/join leaf in a whole-graph recompute
+   private static final int SPLIT = 256;
+
+   /*
+    * Adjacency of one relation: immutable CSR rows plus the edges added or
+    * removed since they were built. Guarded by the graph's lock.
+    **/
+   private static class Adjacency {
+      int[] offsets = new int[] { 0 };
+      int[] targets = new int[0];
+      final Map<Integer, IntHashSet> added = new HashMap<Integer, IntHashSet>();
+      final Map<Integer, IntHashSet> removed = new HashMap<Integer, IntHashSet>();
+      int deltas = 0;
+
+      int rows () {
+         return this.offsets.length - 1;
+      }
+
+      boolean inRows (int u, int v) {
+         return u < rows() && Arrays.binarySearch(this.targets, this.offsets[u], this.offsets[u + 1], v) >= 0;
+      }
+
+      boolean contains (int u, int v) {
+         IntHashSet r = this.removed.get(u);
+         if (r != null && r.contains(v))
+            return false;
+         IntHashSet a = this.added.get(u);
+         return (a != null && a.contains(v)) || inRows(u, v);
+      }
+
+      int[] neighbors (int u) {
+         IntHashSet r = this.removed.get(u);
+         IntHashSet a = this.added.get(u);
+         int from = u < rows() ? this.offsets[u] : 0;
+         int to = u < rows() ? this.offsets[u + 1] : 0;
+         if (r == null && a == null)
+            return Arrays.copyOfRange(this.targets, from, to);
+         int[] extra = a == null ? new int[0] : a.toArray();
+         int[] result = new int[to - from + extra.length];
+         int n = 0;
+         for (int i = from; i < to; ++i) {
+            if (r == null || !r.contains(this.targets[i]))
+               result[n++] = this.targets[i];
+         }
+         for (int v : extra)
+            result[n++] = v;
+         return Arrays.copyOf(result, n);
+      }
+
+      void add (int u, int v) {
+         if (contains(u, v))
+            return;
+         IntHashSet r = this.removed.get(u);
+         if (r == null || !r.remove(v))
+            overlay(this.added, u).add(v);
+         ++this.deltas;
+      }
+
+      void remove (int u, int v) {
+         if (!contains(u, v))
+            return;
+         IntHashSet a = this.added.get(u);
+         if (a == null || !a.remove(v))
+            overlay(this.removed, u).add(v);
+         ++this.deltas;
+      }
+
+      static IntHashSet overlay (Map<Integer, IntHashSet> m, int u) {
+         IntHashSet s = m.get(u);
+         if (s == null)
+            m.put(u, s = new IntHashSet());
+         return s;
+      }
+
+      // folds the overlays into new rows covering ids [0, nodes)
+      void compact (int nodes) {
+         int[] offsets = new int[nodes + 1];
+         int[][] rows = new int[nodes][];
+         for (int u = 0; u < nodes; ++u) {
+            rows[u] = neighbors(u);
+            Arrays.sort(rows[u]);
+            offsets[u + 1] = offsets[u] + rows[u].length;
+         }
+         int[] targets = new int[offsets[nodes]];
+         for (int u = 0; u < nodes; ++u)
+            System.arraycopy(rows[u], 0, targets, offsets[u], rows[u].length);
+         this.offsets = offsets;
+         this.targets = targets;
+         this.added.clear();
+         this.removed.clear();
+         this.deltas = 0;
+      }
+
+      // builds the rows from an edge list in two counting passes
+      void build (int nodes, int[] src, int[] dst, int m) {
+         int[] offsets = new int[nodes + 1];
+         for (int i = 0; i < m; ++i)
+            ++offsets[src[i] + 1];
+         for (int u = 0; u < nodes; ++u)
+            offsets[u + 1] += offsets[u];
+         int[] fill = Arrays.copyOf(offsets, nodes);
+         int[] targets = new int[m];
+         for (int i = 0; i < m; ++i)
+            targets[fill[src[i]]++] = dst[i];
+         for (int u = 0; u < nodes; ++u)
+            Arrays.sort(targets, offsets[u], offsets[u + 1]);
+         this.offsets = offsets;
+         this.targets = targets;
+         this.added.clear();
+         this.removed.clear();
+         this.deltas = 0;
+      }
+   }//end Adjacency
+
+   private final LoginDictionary _logins;
+   private final Adjacency _contacts = new Adjacency();
+   private final Adjacency _blocks = new Adjacency();
+   private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+   private final int _compactThreshold;
+   private volatile boolean _loaded = false;
+
+   // precomputed suggestions as packed ranks, by user id; null while none
+   private long[][] _suggested = null;
+   private final int _precomputeLimit;
+
+   // users whose lists changed since the table was computed
+   private IntHashSet _stale = new IntHashSet();
+   private final AtomicBoolean _refreshing = new AtomicBoolean();
+
+   /**
+    * Creates a new instance of ContactGraph
+    *
+    * @param logins the dictionary mapping logins to ids
+    * @param compactThreshold how many changes to collect before rebuilding the rows
+    * @param precomputeLimit how many suggestions to precompute per user
+    */
+   public ContactGraph (LoginDictionary logins, int compactThreshold, int precomputeLimit) {
+      this._logins = logins;
+      this._compactThreshold = compactThreshold;
+      this._precomputeLimit = precomputeLimit;
+   }//end ContactGraph
+
+   /**
+    * Loads the contact and block lists of every shard, unless that already
+    * happened.
+    *
+    * @param shards the shards to load from
+    * @throws java.sql.SQLException when failed to execute the queries
+    */
+   public void ensureLoaded (ShardRouter shards) throws SQLException {
+      if (this._loaded)
+         return;
+      this._lock.writeLock().lock();
+      try{
+         if (this._loaded)
+            return;
+         load (shards, "contact_list", this._contacts);
+         load (shards, "block_list", this._blocks);
+         this._loaded = true;
+      }finally{
+         this._lock.writeLock().unlock();
+      }//end try
+      scheduleRefresh ();
+   }//end ensureLoaded
+
+   /**
+    * Marks the graph loaded without reading anything, for a storage that
+    * starts empty and reports every list change as it happens.
+    */
+   public void startEmpty () {
+      this._lock.writeLock().lock();
+      try{
+         this._loaded = true;
+      }finally{
+         this._lock.writeLock().unlock();
+      }//end try
+   }//end startEmpty
+
+   private void load (ShardRouter shards, String list, Adjacency adjacency) throws SQLException {
+      int[] src = new int[1024];
+      int[] dst = new int[1024];
+      int m = 0;
+      for (int s = 0; s < shards.count(); ++s) {
+         Connection conn = shards.shard(s).forRead();
+         synchronized (conn) {
+            Statement stmt = conn.createStatement ();
+            ResultSet rs = stmt.executeQuery ("SELECT U.login, L.list_member FROM usr U, user_list_contains L WHERE L.list_id = U." + list);
+            while (rs.next()) {
+               if (m == src.length){
+                  src = Arrays.copyOf(src, m * 2);
+                  dst = Arrays.copyOf(dst, m * 2);
+               }//end if
+               src[m] = this._logins.id(rs.getString(1));
+               dst[m] = this._logins.id(rs.getString(2));
+               ++m;
+            }//end while
+            stmt.close ();
+         }
+      }//end for
+      adjacency.build(this._logins.size(), src, dst, m);
+   }//end load
+
+   /**
+    * @param login the user adding a contact
+    * @param contact the contact added
+    */
+   public void addContact (String login, String contact) {
+      update (this._contacts, login, contact, true);
+   }//end addContact
+
+   /**
+    * @param login the user removing a contact
+    * @param contact the contact removed
+    */
+   public void removeContact (String login, String contact) {
+      update (this._contacts, login, contact, false);
+   }//end removeContact
+
+   /**
+    * @param login the user blocking someone
+    * @param blocked the user blocked
+    */
+   public void addBlock (String login, String blocked) {
+      update (this._blocks, login, blocked, true);
+   }//end addBlock
+
+   /**
+    * @param login the user unblocking someone
+    * @param blocked the user unblocked
+    */
+   public void removeBlock (String login, String blocked) {
+      update (this._blocks, login, blocked, false);
+   }//end removeBlock
+
+   private void update (Adjacency adjacency, String login, String other, boolean add) {
+      // before loading there is nothing to keep current; the load reads the change
+      if (!this._loaded)
+         return;
+      int u = this._logins.id(login);
+      int v = this._logins.id(other);
+      int stale;
+      this._lock.writeLock().lock();
+      try{
+         if (add)
+            adjacency.add(u, v);
+         else
+            adjacency.remove(u, v);
+         if (adjacency.deltas > this._compactThreshold)
+            adjacency.compact(this._logins.size());
+         // a block also changes what the blocked user is suggested
+         this._stale.add(u);
+         if (adjacency == this._blocks)
+            this._stale.add(v);
+         stale = this._stale.size();
+      }finally{
+         this._lock.writeLock().unlock();
+      }//end try
+      if (stale > this._compactThreshold)
+         scheduleRefresh ();
+   }//end update
+
+   /**
+    * Ranks the contacts of the user's contacts by how many of the user's
+    * contacts have them, leaving out the user, existing contacts, and
+    * anyone blocked by or blocking the user.
+    *
+    * @param login the user login
+    * @param limit the most suggestions to return
+    * @return the suggestions, most mutual contacts first
+    */
+   public List<Suggestion> suggest (String login, int limit) {
+      List<Suggestion> result = new ArrayList<Suggestion>();
+      int u = this._logins.find(login);
+      if (u < 0)
+         return result;
+      long[] ranked;
+      this._lock.readLock().lock();
+      try{
+         ranked = precomputed(u, limit);
+         if (ranked == null)
+            ranked = rank(u, this._contacts, this._blocks, new int[this._logins.size()], limit);
+      }finally{
+         this._lock.readLock().unlock();
+      }//end try
+      for (long r : ranked)
+         result.add(new Suggestion(this._logins.login(id(r)), mutual(r)));
+      return result;
+   }//end suggest
+
+   /*
+    * Returns the precomputed ranks of u cut to limit, or null when there
+    * are none or they may be out of date. Called under the read lock.
+    **/
+   private long[] precomputed (int u, int limit) {
+      if (this._suggested == null || u >= this._suggested.length || limit > this._precomputeLimit)
+         return null;
+      if (this._stale.contains(u))
+         return null;
+      for (int c : this._contacts.neighbors(u)) {
+         if (this._stale.contains(c))
+            return null;
+      }//end for
+      long[] ranked = this._suggested[u];
+      return ranked.length <= limit ? ranked : Arrays.copyOf(ranked, limit);
+   }//end precomputed
+
+   /*
+    * Starts a recompute on the common pool unless one is already running
+    **/
+   private void scheduleRefresh () {
+      if (this._precomputeLimit <= 0 || !this._refreshing.compareAndSet(false, true))
+         return;
+      ForkJoinPool.commonPool().execute(new Runnable() {
+         public void run () {
+            try{
+               refresh ();
+            }finally{
+               _refreshing.set(false);
+            }//end try
+         }
+      });
+   }//end scheduleRefresh
+
+   /**
+    * Recomputes the suggestions of every user at once, in parallel over
+    * ranges of users on the common fork/join pool, and answers suggest from
+    * the result. The overlays are folded in first so the workers share
+    * plain arrays; suggest ranks users on the spot while this runs.
+    */
+   public void refresh () {
+      final Adjacency contacts;
+      final Adjacency blocks;
+      final int limit = this._precomputeLimit;
+      this._lock.writeLock().lock();
+      try{
+         // changes from here on mark users stale in the fresh set
+         this._suggested = null;
+         this._stale = new IntHashSet();
+         int nodes = this._logins.size();
+         this._contacts.compact(nodes);
+         this._blocks.compact(nodes);
+         // snapshots that later updates cannot touch
+         contacts = new Adjacency();
+         contacts.offsets = this._contacts.offsets;
+         contacts.targets = this._contacts.targets;
+         blocks = new Adjacency();
+         blocks.offsets = this._blocks.offsets;
+         blocks.targets = this._blocks.targets;
+      }finally{
+         this._lock.writeLock().unlock();
+      }//end try
+
+      final int nodes = contacts.rows();
+      final long[][] result = new long[nodes][];
+      ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+         protected void compute () {
+            solve(0, nodes);
+         }
+
+         void solve (final int from, final int to) {
+            if (to - from <= SPLIT){
+               int[] counts = new int[nodes];
+               for (int u = from; u < to; ++u)
+                  result[u] = rank(u, contacts, blocks, counts, limit);
+               return;
+            }//end if
+            final int mid = (from + to) >>> 1;
+            invokeAll(new RecursiveAction() {
+               protected void compute () { solve(from, mid); }
+            }, new RecursiveAction() {
+               protected void compute () { solve(mid, to); }
+            });
+         }
+      });
+
+      this._lock.writeLock().lock();
+      try{
+         this._suggested = result;
+      }finally{
+         this._lock.writeLock().unlock();
+      }//end try
+   }//end refresh
+
+   /*
+    * Counts friends-of-friends of u into counts (all zero on entry and on
+    * return) and returns the best as packed (mutual << 32 | ~id) longs, so
+    * that sorting them orders by mutual count and then by lower id.
+    **/
+   private static long[] rank (int u, Adjacency contacts, Adjacency blocks, int[] counts, int limit) {
+      int[] mine = contacts.neighbors(u);
+      IntHashSet excluded = new IntHashSet(mine.length + 1);
+      excluded.add(u);
+      for (int c : mine)
+         excluded.add(c);
+
+      int[] touched = new int[64];
+      int n = 0;
+      for (int c : mine) {
+         for (int f : contacts.neighbors(c)) {
+            if (f >= counts.length || excluded.contains(f))
+               continue;
+            if (counts[f]++ == 0){
+               if (n == touched.length)
+                  touched = Arrays.copyOf(touched, n * 2);
+               touched[n++] = f;
+            }//end if
+         }//end for
+      }//end for
+
+      long[] packed = new long[n];
+      int k = 0;
+      for (int i = 0; i < n; ++i) {
+         int f = touched[i];
+         if (!blocks.contains(u, f) && !blocks.contains(f, u))
+            packed[k++] = ((long) counts[f] << 32) | (~f & 0xFFFFFFFFL);
+         counts[f] = 0;
+      }//end for
+      Arrays.sort(packed, 0, k);
+      int size = Math.min(limit, k);
+      long[] best = new long[size];
+      for (int i = 0; i < size; ++i)
+         best[i] = packed[k - 1 - i];
+      return best;
+   }//end rank
+
+   private static int id (long packed) {
+      return ~(int) packed;
+   }//end id
+
+   private static int mutual (long packed) {
+      return (int) (packed >>> 32);
+   }//end mutual
+
+}//end ContactGraph
@@ -0,0 +1,349 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+
+/**
+ * This class generates a consistent data set at any scale for
+ * sql/src/load_data.sql: usr_list.csv, usr.csv, usr_list_contains.csv,
+ * chat.csv, chat_list.csv and message.csv.
+ *
+ * Popularity, contact counts, chat sizes, chat activity and who talks in a
+ * chat all follow Zipf-like power laws with the same exponent
+ * (messenger.genSkew), so a few users and chats account for most of the
+ * traffic. Chat c gets a share of the messages proportional to
+ * 1/(c+1)^skew; the msg_id each chat starts at is the prefix sum of those
+ * shares, so every chat knows its ids without the others being generated.
+ *
+ * Every user and chat draws from its own random stream derived from the
+ * seed, so the output depends only on the arguments and not on the number
+ * of threads. Ranges of users and chats are written in parallel to part
+ * files, which are then concatenated in order; nothing larger than a chat's
+ * member list is held in memory.
+ *
+ * Usage: java DatasetGenerator <outdir> <users> <chats> <messages> [seed]
+ *
+ */
+public class DatasetGenerator {
+
+   private static final String[] WORDS = {
+      "lorem", "ipsum", "dolor", "sit", "amet", "quia", "praesentium", "maxime",
+      "iste", "in", "saepe", "libero", "ut", "quod", "et", "est", "voluptas",
+      "nihil", "sunt", "omnis", "qui", "dolorem", "eos", "rerum", "enim",
+      "aut", "non", "at", "vero", "odio", "nam", "hic", "illo", "minus"
+   };
+
+   // kinds of random stream
+   private static final long USER = 1;
+   private static final long CHAT = 2;
+   private static final long MESSAGE = 3;
+
+   private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+   private final long _seed;
+   private final int _users;
+   private final int _chats;
+   private final long _messages;
+   private final double _skew;
+   private final int _maxChatSize;
+   private final int _maxContacts;
+   private final int _chunk;
+
+   // spreads popularity ranks over the user ids; coprime with _users
+   private final long _scatter;
+
+   // the messages span a year, starting on this second
+   private final long _start = LocalDateTime.of(2015, 1, 1, 0, 0).toEpochSecond(ZoneOffset.UTC);
+   private final long _span = 365L * 24 * 3600;
+
+   /**
+    * Creates a new instance of DatasetGenerator
+    *
+    * @param seed the seed every random stream is derived from
+    * @param users the number of users
+    * @param chats the number of chats
+    * @param messages the number of messages
+    * @param skew the exponent of the power laws, 0 for uniform
+    * @param maxChatSize the most members of a chat
+    * @param maxContacts the most contacts of a user
+    * @param chunk how many users or chats go into one part file
+    */
+   public DatasetGenerator (long seed, int users, int chats, long messages, double skew, int maxChatSize, int maxContacts, int chunk) {
+      if (users < 2 || chats < 1 || messages < 0)
+         throw new IllegalArgumentException("at least 2 users and 1 chat are needed");
+      this._seed = seed;
+      this._users = users;
+      this._chats = chats;
+      this._messages = messages;
+      this._skew = skew;
+      this._maxChatSize = Math.max(2, Math.min(maxChatSize, users));
+      this._maxContacts = Math.max(1, Math.min(maxContacts, users - 1));
+      this._chunk = Math.max(1, chunk);
+      long scatter = 1000003;
+      while (gcd(scatter, users) != 1)
+         scatter += 2;
+      this._scatter = scatter;
+   }//end DatasetGenerator
+
+   private static long gcd (long a, long b) {
+      return b == 0 ? a : gcd(b, a % b);
+   }//end gcd
+
+   /*
+    * The random stream of one user, chat or chat's messages
+    **/
+   private SplittableRandom random (long kind, long index) {
+      long z = this._seed + kind * 0x9E3779B97F4A7C15L + index * 0xBF58476D1CE4E5B9L;
+      z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+      z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+      return new SplittableRandom(z ^ (z >>> 31));
+   }//end random
+
+   /*
+    * Draws from 1..n with P(k) roughly proportional to 1/k^skew, by
+    * inverting the continuous power law
+    **/
+   private int powerLaw (SplittableRandom rnd, int n) {
+      double u = rnd.nextDouble();
+      double x;
+      if (Math.abs(this._skew - 1) < 1e-9)
+         x = Math.pow(n + 1, u);
+      else
+         x = Math.pow((Math.pow(n + 1, 1 - this._skew) - 1) * u + 1, 1 / (1 - this._skew));
+      return (int) Math.max(1, Math.min(n, (long) x));
+   }//end powerLaw
+
+   /*
+    * A user drawn by popularity; popular users are spread over the ids
+    **/
+   private int popularUser (SplittableRandom rnd) {
+      return (int) ((powerLaw(rnd, this._users) - 1L) * this._scatter % this._users);
+   }//end popularUser
+
+   private static String login (int user) {
+      return "user" + user;
+   }//end login
+
+   private static String words (SplittableRandom rnd, int min, int max) {
+      StringBuilder sb = new StringBuilder();
+      for (int n = rnd.nextInt(min, max + 1); n > 0; --n) {
+         if (sb.length() > 0)
+            sb.append(' ');
+         sb.append(WORDS[rnd.nextInt(WORDS.length)]);
+      }//end for
+      return sb.toString();
+   }//end words
+
+   /*
+    * The members of a chat, its initial sender first
+    **/
+   private int[] members (int chat) {
+      SplittableRandom rnd = random(CHAT, chat);
+      int size = 1 + powerLaw(rnd, this._maxChatSize - 1);
+      Set<Integer> members = new LinkedHashSet<Integer>();
+      while (members.size() < size)
+         members.add(popularUser(rnd));
+      int[] result = new int[size];
+      int i = 0;
+      for (int m : members)
+         result[i++] = m;
+      return result;
+   }//end members
+
+   /*
+    * Writes the lists, USR row and list members of users [from, to)
+    **/
+   private void writeUsers (int from, int to, PrintWriter lists, PrintWriter usr, PrintWriter contains) {
+      for (int u = from; u < to; ++u) {
+         SplittableRandom rnd = random(USER, u);
+         int block_list = 2 * u;
+         int contact_list = 2 * u + 1;
+         lists.println(block_list + ";block");
+         lists.println(contact_list + ";contact");
+
+         String digits = String.format("%010d", u);
+         String phone = "+1(" + digits.substring(0, 3) + ")" + digits.substring(3, 6) + "-" + digits.substring(6);
+         String password = Long.toHexString(rnd.nextLong()) + Long.toHexString(rnd.nextLong());
+         usr.println(login(u) + ";" + phone + ";" + password + ";" + words(rnd, 2, 4) + ";" + block_list + ";" + contact_list);
+
+         int wanted = powerLaw(rnd, this._maxContacts);
+         Set<Integer> contacts = new LinkedHashSet<Integer>();
+         for (int attempts = 0; contacts.size() < wanted && attempts < wanted * 4; ++attempts) {
+            int c = popularUser(rnd);
+            if (c != u)
+               contacts.add(c);
+         }//end for
+         for (int c : contacts)
+            contains.println(contact_list + ";" + login(c));
+         if (rnd.nextInt(20) == 0){
+            int b = rnd.nextInt(this._users);
+            if (b != u && !contacts.contains(b))
+               contains.println(block_list + ";" + login(b));
+         }//end if
+      }//end for
+   }//end writeUsers
+
+   /*
+    * Writes the CHAT and CHAT_LIST rows of chats [from, to)
+    **/
+   private void writeChats (int from, int to, PrintWriter chat, PrintWriter chatList) {
+      for (int c = from; c < to; ++c) {
+         int[] members = members(c);
+         chat.println(c + ";" + (members.length > 2 ? "group" : "private") + ";" + login(members[0]));
+         for (int m : members)
+            chatList.println(c + ";" + login(m));
+      }//end for
+   }//end writeChats
+
+   private double weight (int chat) {
+      return 1 / Math.pow(chat + 1, this._skew);
+   }//end weight
+
+   /*
+    * Writes the messages of chats [from, to), given the total weight of the
+    * chats before them and of all chats
+    **/
+   private void writeMessages (int from, int to, double before, double total, PrintWriter message) {
+      // summed from 0 exactly as for the chunk totals, so the ids line up
+      double local = 0;
+      for (int c = from; c < to; ++c) {
+         long first = (long) Math.floor(this._messages * ((before + local) / total));
+         local += weight(c);
+         long last = c == this._chats - 1 ? this._messages : (long) Math.floor(this._messages * ((before + local) / total));
+         long count = last - first;
+         if (count <= 0)
+            continue;
+
+         int[] members = members(c);
+         SplittableRandom rnd = random(MESSAGE, c);
+         for (long k = 0; k < count; ++k) {
+            // timestamps rise with msg_id within a chat
+            long ts = this._start + (long) ((k + rnd.nextDouble()) * this._span / count);
+            int sender = members[powerLaw(rnd, members.length) - 1];
+            message.println((first + k + 1) + ";" + words(rnd, 1, 12) + ";"
+                  + LocalDateTime.ofEpochSecond(ts, 0, ZoneOffset.UTC).format(TIMESTAMP) + ";"
+                  + login(sender) + ";" + c);
+         }//end for
+      }//end for
+   }//end writeMessages
+
+   /*
+    * Writes one part of each of several files
+    **/
+   private interface Part {
+      void write (int part, int from, int to, PrintWriter[] out) throws IOException;
+   }//end Part
+
+   /*
+    * Writes the parts of [0, total) in parallel and concatenates them
+    **/
+   private void generate (File dir, int total, Part part, String... names) throws IOException {
+      int parts = (total + this._chunk - 1) / this._chunk;
+      try{
+         IntStream.range(0, parts).parallel().forEach(p -> {
+            PrintWriter[] out = new PrintWriter[names.length];
+            try{
+               for (int i = 0; i < names.length; ++i)
+                  out[i] = new PrintWriter(new BufferedWriter(new FileWriter(new File(dir, names[i] + ".part" + p)), 1 << 16));
+               part.write(p, p * this._chunk, Math.min(total, (p + 1) * this._chunk), out);
+            }catch (IOException e){
+               throw new UncheckedIOException(e);
+            }finally{
+               for (PrintWriter w : out) {
+                  if (w != null)
+                     w.close();
+               }//end for
+            }//end try
+         });
+      }catch (UncheckedIOException e){
+         throw e.getCause();
+      }//end try
+
+      for (String name : names) {
+         FileChannel target = new FileOutputStream(new File(dir, name)).getChannel();
+         for (int p = 0; p < parts; ++p) {
+            File file = new File(dir, name + ".part" + p);
+            FileChannel source = new FileInputStream(file).getChannel();
+            for (long pos = 0, size = source.size(); pos < size; )
+               pos += source.transferTo(pos, size - pos, target);
+            source.close();
+            file.delete();
+         }//end for
+         target.close();
+      }//end for
+   }//end generate
+
+   /**
+    * Writes the six files into a directory.
+    *
+    * @param dir the output directory
+    * @throws java.io.IOException when failed to write a file
+    */
+   public void generate (File dir) throws IOException {
+      dir.mkdirs();
+      generate(dir, this._users,
+            (p, from, to, out) -> writeUsers(from, to, out[0], out[1], out[2]),
+            "usr_list.csv", "usr.csv", "usr_list_contains.csv");
+      generate(dir, this._chats,
+            (p, from, to, out) -> writeChats(from, to, out[0], out[1]),
+            "chat.csv", "chat_list.csv");
+
+      // total weight of each part's chats, then of the parts before each
+      int parts = (this._chats + this._chunk - 1) / this._chunk;
+      double[] sums = IntStream.range(0, parts).parallel().mapToDouble(p -> {
+         double sum = 0;
+         for (int c = p * this._chunk; c < Math.min(this._chats, (p + 1) * this._chunk); ++c)
+            sum += weight(c);
+         return sum;
+      }).toArray();
+      double[] before = new double[parts];
+      double total = 0;
+      for (int p = 0; p < parts; ++p) {
+         before[p] = total;
+         total += sums[p];
+      }//end for
+      final double all = total;
+      generate(dir, this._chats,
+            (p, from, to, out) -> writeMessages(from, to, before[p], all, out[0]),
+            "message.csv");
+   }//end generate
+
+   public static void main (String[] args) {
+      if (args.length != 4 && args.length != 5) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            DatasetGenerator.class.getName () +
+            " <outdir> <users> <chats> <messages> [seed]");
+         return;
+      }//end if
+      try{
+         long started = System.currentTimeMillis();
+         DatasetGenerator generator = new DatasetGenerator(
+               args.length == 5 ? Long.parseLong(args[4]) : 166,
+               Integer.parseInt(args[1]), Integer.parseInt(args[2]), Long.parseLong(args[3]),
+               Double.parseDouble(System.getProperty("messenger.genSkew", "1.0")),
+               Integer.getInteger("messenger.genMaxChatSize", 50),
+               Integer.getInteger("messenger.genMaxContacts", 100),
+               Integer.getInteger("messenger.genChunk", 1000));
+         generator.generate(new File(args[0]));
+         System.out.println(String.format("Generated in %.1f s", (System.currentTimeMillis() - started) / 1000.0));
+      }catch (Exception e){
+         System.err.println (e.getMessage ());
+      }//end try
+   }//end main
+
+}//end DatasetGenerator
@@ -0,0 +1,90 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+
+/**
+ * This class hands out keys of a serial column without a round trip per
+ * row. Keys are reserved from the column's sequence a block at a time with
+ * nextval, so every key is one the sequence itself produced (including the
+ * stride of a sharded sequence) and nothing beyond the sequence needs to be
+ * stored. Keys reserved but never used are simply skipped, like those of a
+ * rolled back insert.
+ *
+ */
+public class IdAllocator {
+
+   private final Connection _connection;
+   private final String _sequence;
+   private final int _blockSize;
+
+   // reserved keys and the position of the next one to hand out
+   private int[] _ids = new int[0];
+   private int _pos = 0;
+
+   /**
+    * Creates a new instance of IdAllocator
+    *
+    * @param connection the primary the sequence lives on
+    * @param sequence name of the DB sequence
+    * @param blockSize how many keys to reserve per round trip
+    */
+   public IdAllocator (Connection connection, String sequence, int blockSize) {
+      this._connection = connection;
+      this._sequence = sequence;
+      this._blockSize = Math.max(1, blockSize);
+   }//end IdAllocator
+
+   /**
+    * @return the next key
+    * @throws java.sql.SQLException when a new block could not be reserved
+    */
+   public synchronized int next () throws SQLException {
+      if (this._pos == this._ids.length)
+         reserve (this._blockSize);
+      return this._ids[this._pos++];
+   }//end next
+
+   /**
+    * Hands out n keys at once, reserving whatever the current block lacks
+    * in a single round trip.
+    *
+    * @param n the number of keys
+    * @return the keys
+    * @throws java.sql.SQLException when a new block could not be reserved
+    */
+   public synchronized int[] next (int n) throws SQLException {
+      int[] result = new int[n];
+      int have = Math.min(n, this._ids.length - this._pos);
+      System.arraycopy(this._ids, this._pos, result, 0, have);
+      this._pos += have;
+      if (have < n){
+         reserve (Math.max(n - have, this._blockSize));
+         System.arraycopy(this._ids, 0, result, have, n - have);
+         this._pos = n - have;
+      }//end if
+      return result;
+   }//end next
+
+   /*
+    * Replaces the current block with count freshly reserved keys
+    **/
+   private void reserve (int count) throws SQLException {
+      int[] ids = new int[count];
+      int i = 0;
+      // the connection is shared; see Messenger.executeTransaction
+      synchronized (this._connection) {
+         Statement stmt = this._connection.createStatement ();
+         ResultSet rs = stmt.executeQuery (String.format("SELECT nextval('%s') FROM generate_series(1, %d)", this._sequence, count));
+         while (rs.next() && i < count)
+            ids[i++] = rs.getInt(1);
+         stmt.close ();
+      }
+      if (i < count)
+         throw new SQLException("Could not reserve keys from " + this._sequence);
+      this._ids = ids;
+      this._pos = 0;
+   }//end reserve
+
+}//end IdAllocator
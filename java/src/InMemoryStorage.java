@@ -0,0 +1,659 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * This class keeps users, lists, chats and messages in this process only,
+ * for a single node without a database server and for tests. Nothing
+ * survives a restart.
+ *
+ * Users are kept in a table indexed by their LoginDictionary id and chats
+ * in one indexed by chat id, so both are found without hashing a string
+ * or boxing a key. Lists and chat memberships are IntHashSets and
+ * LongIntHashMaps of those ids, and each chat keeps its messages in
+ * parallel arrays ordered by msg_id, so a page of history or an unread
+ * count is a binary search away. Each user and chat is guarded by its own
+ * monitor; only creating and deleting users takes the table's.
+ *
+ * The checks the database would make are made here too (unique logins and
+ * phones, existing users, column lengths), reported as SQLExceptions.
+ *
+ */
+public class InMemoryStorage implements MessengerStorage {
+
+   // the column lengths of create_tables.sql
+   private static final int LOGIN_LENGTH = 50;
+   private static final int PHONE_LENGTH = 16;
+   private static final int STATUS_LENGTH = 140;
+   private static final int TEXT_LENGTH = 300;
+
+   /*
+    * A user, guarded by its own monitor
+    **/
+   private static class User {
+      final int id;
+      final String phone;
+      String password;
+      volatile String status;
+      final IntHashSet contacts = new IntHashSet();
+      final IntHashSet blocks = new IntHashSet();
+      final IntHashSet chats = new IntHashSet();
+      int messages = 0;
+
+      User (int id, String password, String phone) {
+         this.id = id;
+         this.password = password;
+         this.phone = phone;
+      }
+
+      IntHashSet list (ListKind kind) {
+         return kind == ListKind.CONTACT ? this.contacts : this.blocks;
+      }
+   }//end User
+
+   /*
+    * A chat and its messages, guarded by its own monitor
+    **/
+   private static class Chat {
+      final int id;
+      final int initSender;
+      String type;
+      // member id -> msg_id of the last message the member has read
+      final LongIntHashMap members = new LongIntHashMap();
+      int[] msgIds = new int[16];
+      long[] timestamps = new long[16];
+      int[] senders = new int[16];
+      String[] texts = new String[16];
+      int count = 0;
+
+      Chat (int id, int initSender) {
+         this.id = id;
+         this.initSender = initSender;
+      }
+
+      // the index of the first message with an id of at least msg_id
+      int lowerBound (int msg_id) {
+         int i = Arrays.binarySearch(this.msgIds, 0, this.count, msg_id);
+         return i < 0 ? -i - 1 : i;
+      }
+
+      int unread (int last_read) {
+         return this.count - lowerBound(last_read + 1);
+      }
+
+      int lastMsgId () {
+         return this.count == 0 ? 0 : this.msgIds[this.count - 1];
+      }
+
+      void append (int msg_id, int sender, String text) {
+         if (this.count == this.msgIds.length){
+            int n = this.count * 2;
+            this.msgIds = Arrays.copyOf(this.msgIds, n);
+            this.timestamps = Arrays.copyOf(this.timestamps, n);
+            this.senders = Arrays.copyOf(this.senders, n);
+            this.texts = Arrays.copyOf(this.texts, n);
+         }//end if
+         this.msgIds[this.count] = msg_id;
+         this.timestamps[this.count] = System.currentTimeMillis();
+         this.senders[this.count] = sender;
+         this.texts[this.count] = text;
+         ++this.count;
+         // the sender has read their own message
+         if (this.members.containsKey(sender))
+            this.members.put(sender, msg_id);
+      }
+
+      void retype () {
+         this.type = this.members.size() > 2 ? "group" : "private";
+      }
+   }//end Chat
+
+   private final LoginDictionary _logins = new LoginDictionary();
+
+   // replaced by a larger copy when full; elements are set under the lock of this
+   private volatile AtomicReferenceArray<User> _users = new AtomicReferenceArray<User>(1024);
+   private volatile AtomicReferenceArray<Chat> _chats = new AtomicReferenceArray<Chat>(1024);
+   private final Map<String, Integer> _phones = new HashMap<String, Integer>();
+   // user ids by phone number as normalized by PhoneNumbers, guarded by the lock of this
+   private final Map<String, Integer> _numbers = new HashMap<String, Integer>();
+
+   private final AtomicInteger _chatIds = new AtomicInteger();
+   private final AtomicInteger _msgIds = new AtomicInteger();
+
+   private final StatusCache _statuses = new StatusCache(
+         Integer.getInteger("messenger.statusCacheSize", 100000),
+         Integer.getInteger("messenger.statusFeedSize", 10000));
+
+   private final ContactGraph _contactGraph = new ContactGraph(this._logins,
+         Integer.getInteger("messenger.contactGraphCompact", 10000),
+         Integer.getInteger("messenger.suggestions", 10));
+
+   /**
+    * Creates a new instance of InMemoryStorage, with no users
+    */
+   public InMemoryStorage () {
+      this._contactGraph.startEmpty();
+   }//end InMemoryStorage
+
+   private static void checkLength (String value, int length, String column) throws SQLException {
+      if (value.length() > length)
+         throw new SQLException(String.format("value too long for %s (%d)", column, length));
+   }//end checkLength
+
+   private static <T> AtomicReferenceArray<T> grow (AtomicReferenceArray<T> table, int index) {
+      if (index < table.length())
+         return table;
+      int n = table.length();
+      while (n <= index)
+         n *= 2;
+      AtomicReferenceArray<T> larger = new AtomicReferenceArray<T>(n);
+      for (int i = 0; i < table.length(); ++i)
+         larger.set(i, table.get(i));
+      return larger;
+   }//end grow
+
+   private User user (String login) {
+      int id = this._logins.find(login);
+      return id < 0 ? null : user(id);
+   }//end user
+
+   private User user (int id) {
+      AtomicReferenceArray<User> users = this._users;
+      return id < users.length() ? users.get(id) : null;
+   }//end user
+
+   private User existingUser (String login) throws SQLException {
+      User u = user(login);
+      if (u == null)
+         throw new SQLException(String.format("user %s does not exist", login.trim()));
+      return u;
+   }//end existingUser
+
+   private Chat chat (int chat_id) {
+      AtomicReferenceArray<Chat> chats = this._chats;
+      return chat_id >= 0 && chat_id < chats.length() ? chats.get(chat_id) : null;
+   }//end chat
+
+   private Chat existingChat (int chat_id) throws SQLException {
+      Chat c = chat(chat_id);
+      if (c == null)
+         throw new SQLException(String.format("chat %d does not exist", chat_id));
+      return c;
+   }//end existingChat
+
+   // ------------------------------------------------------------ users
+
+   public void createUser (String login, String password, String phone) throws SQLException {
+      checkLength(login.trim(), LOGIN_LENGTH, "login");
+      checkLength(phone.trim(), PHONE_LENGTH, "phoneNum");
+      synchronized (this) {
+         int id = this._logins.id(login);
+         if (user(id) != null)
+            throw new SQLException(String.format("login %s is in use", login.trim()));
+         if (this._phones.containsKey(phone.trim()))
+            throw new SQLException(String.format("phone %s is in use", phone.trim()));
+         this._phones.put(phone.trim(), id);
+         String number = PhoneNumbers.normalize(phone);
+         if (number != null && !this._numbers.containsKey(number))
+            this._numbers.put(number, id);
+         this._users = grow(this._users, id);
+         this._users.set(id, new User(id, password, phone.trim()));
+      }
+   }//end createUser
+
+   public boolean checkPassword (String login, String password) {
+      User u = user(login);
+      if (u == null)
+         return false;
+      synchronized (u) {
+         return password.equals(u.password);
+      }
+   }//end checkPassword
+
+   public Set<String> existingUsers (Collection<String> logins) {
+      Set<String> result = new HashSet<String>();
+      for (String l : logins) {
+         if (user(l) != null)
+            result.add(l.trim());
+      }//end for
+      return result;
+   }//end existingUsers
+
+   public void deleteUser (String login) throws SQLException {
+      User u = existingUser(login);
+      synchronized (this) {
+         synchronized (u) {
+            if (u.chats.size() > 0 || u.messages > 0)
+               throw new SQLException(String.format("user %s is still referenced by chats or messages", login.trim()));
+            this._users.set(u.id, null);
+            this._phones.remove(u.phone);
+            String number = PhoneNumbers.normalize(u.phone);
+            Integer owner = number == null ? null : this._numbers.get(number);
+            if (owner != null && owner == u.id)
+               this._numbers.remove(number);
+         }
+      }
+      // the user leaves every list they were on
+      String name = this._logins.login(u.id);
+      AtomicReferenceArray<User> users = this._users;
+      for (int i = 0; i < users.length(); ++i) {
+         User other = users.get(i);
+         if (other == null)
+            continue;
+         boolean contact, block;
+         synchronized (other) {
+            contact = other.contacts.remove(u.id);
+            block = other.blocks.remove(u.id);
+         }
+         if (contact)
+            this._contactGraph.removeContact(this._logins.login(i), name);
+         if (block)
+            this._contactGraph.removeBlock(this._logins.login(i), name);
+      }//end for
+      int[] contacts, blocks;
+      synchronized (u) {
+         contacts = u.contacts.toArray();
+         blocks = u.blocks.toArray();
+      }
+      for (int c : contacts)
+         this._contactGraph.removeContact(name, this._logins.login(c));
+      for (int b : blocks)
+         this._contactGraph.removeBlock(name, this._logins.login(b));
+   }//end deleteUser
+
+   public void deactivateUser (String login) throws SQLException {
+      User u = existingUser(login);
+      synchronized (u) {
+         u.password = null;
+      }
+   }//end deactivateUser
+
+   public Map<String, String> statuses (Collection<String> logins) {
+      Map<String, String> result = new HashMap<String, String>();
+      for (String l : logins) {
+         User u = user(l);
+         if (u != null)
+            result.put(l.trim(), u.status);
+      }//end for
+      return result;
+   }//end statuses
+
+   public void setStatus (String login, String status) throws SQLException {
+      checkLength(status, STATUS_LENGTH, "status");
+      existingUser(login).status = status.trim();
+      this._statuses.publish(login, status);
+   }//end setStatus
+
+   public long statusVersion () {
+      return this._statuses.version();
+   }//end statusVersion
+
+   public List<StatusCache.Change> statusChangesSince (long version) {
+      return this._statuses.changesSince(version);
+   }//end statusChangesSince
+
+   // ------------------------------------------------------------ lists
+
+   public List<String> list (String login, ListKind kind) {
+      List<String> members = new ArrayList<String>();
+      User u = user(login);
+      if (u == null)
+         return members;
+      int[] ids;
+      synchronized (u) {
+         ids = u.list(kind).toArray();
+      }
+      for (int id : ids)
+         members.add(this._logins.login(id));
+      return members;
+   }//end list
+
+   public boolean addToList (String login, ListKind kind, String member) throws SQLException {
+      User u = existingUser(login);
+      User m = existingUser(member);
+      synchronized (u) {
+         if (!u.list(kind).add(m.id))
+            return false;
+      }
+      if (kind == ListKind.CONTACT)
+         this._contactGraph.addContact(login.trim(), member.trim());
+      else
+         this._contactGraph.addBlock(login.trim(), member.trim());
+      return true;
+   }//end addToList
+
+   public boolean removeFromList (String login, ListKind kind, String member) throws SQLException {
+      User u = existingUser(login);
+      int m = this._logins.find(member);
+      if (m < 0)
+         return false;
+      synchronized (u) {
+         if (!u.list(kind).remove(m))
+            return false;
+      }
+      if (kind == ListKind.CONTACT)
+         this._contactGraph.removeContact(login.trim(), member.trim());
+      else
+         this._contactGraph.removeBlock(login.trim(), member.trim());
+      return true;
+   }//end removeFromList
+
+   public List<String> addAllToList (String login, ListKind kind, Collection<String> members) throws SQLException {
+      User u = existingUser(login);
+      List<User> users = new ArrayList<User>();
+      for (String m : members)
+         users.add(existingUser(m));
+      List<String> added = new ArrayList<String>();
+      synchronized (u) {
+         for (User m : users) {
+            if (u.list(kind).add(m.id))
+               added.add(this._logins.login(m.id));
+         }//end for
+      }
+      for (String m : added) {
+         if (kind == ListKind.CONTACT)
+            this._contactGraph.addContact(login.trim(), m);
+         else
+            this._contactGraph.addBlock(login.trim(), m);
+      }//end for
+      return added;
+   }//end addAllToList
+
+   public synchronized Map<String, String> usersByPhone (Collection<String> phones) {
+      Map<String, String> result = new HashMap<String, String>();
+      for (String p : phones) {
+         String number = PhoneNumbers.normalize(p);
+         Integer id = number == null ? null : this._numbers.get(number);
+         if (id != null)
+            result.put(p, this._logins.login(id));
+      }//end for
+      return result;
+   }//end usersByPhone
+
+   public Set<String> contactsAmong (String login, Collection<String> candidates) {
+      Set<String> result = new HashSet<String>();
+      User u = user(login);
+      if (u == null)
+         return result;
+      synchronized (u) {
+         for (String c : candidates) {
+            int id = this._logins.find(c);
+            if (id >= 0 && u.contacts.contains(id))
+               result.add(c.trim());
+         }//end for
+      }
+      return result;
+   }//end contactsAmong
+
+   public Set<String> blockedBy (String login, Collection<String> others) {
+      Set<String> result = new HashSet<String>();
+      int id = this._logins.find(login);
+      if (id < 0)
+         return result;
+      for (String o : others) {
+         User u = user(o);
+         if (u == null)
+            continue;
+         synchronized (u) {
+            if (u.blocks.contains(id))
+               result.add(o.trim());
+         }
+      }//end for
+      return result;
+   }//end blockedBy
+
+   public List<ContactGraph.Suggestion> suggestContacts (String login, int limit) {
+      return this._contactGraph.suggest(login.trim(), limit);
+   }//end suggestContacts
+
+   // ------------------------------------------------------------ chats
+
+   public List<ChatSummary> chatsOf (String login) {
+      List<ChatSummary> result = new ArrayList<ChatSummary>();
+      User u = user(login);
+      if (u == null)
+         return result;
+      int[] ids;
+      synchronized (u) {
+         ids = u.chats.toArray();
+      }
+      for (int chat_id : ids) {
+         Chat c = chat(chat_id);
+         if (c == null)
+            continue;
+         synchronized (c) {
+            if (c.count == 0 || !c.members.containsKey(u.id))
+               continue;
+            result.add(new ChatSummary(c.id, c.type, this._logins.login(c.initSender),
+                  new Timestamp(c.timestamps[c.count - 1]), c.unread(c.members.get(u.id, 0))));
+         }
+      }//end for
+      Collections.sort(result, new Comparator<ChatSummary>() {
+         public int compare (ChatSummary a, ChatSummary b) {
+            return a.lastMessage.compareTo(b.lastMessage);
+         }
+      });
+      return result;
+   }//end chatsOf
+
+   public int createChat (String initSender, List<String> members, String welcome) throws SQLException {
+      checkLength(welcome, TEXT_LENGTH, "msg_text");
+      User init = existingUser(initSender);
+      List<User> all = new ArrayList<User>();
+      all.add(init);
+      for (String m : members)
+         all.add(existingUser(m));
+
+      Chat c = new Chat(this._chatIds.incrementAndGet(), init.id);
+      synchronized (c) {
+         for (User m : all)
+            c.members.put(m.id, 0);
+         c.retype();
+         c.append(this._msgIds.incrementAndGet(), init.id, welcome);
+      }
+      synchronized (this) {
+         this._chats = grow(this._chats, c.id);
+         this._chats.set(c.id, c);
+      }
+      for (User m : all) {
+         synchronized (m) {
+            m.chats.add(c.id);
+         }
+      }//end for
+      synchronized (init) {
+         ++init.messages;
+      }
+      return c.id;
+   }//end createChat
+
+   public boolean isChatMember (int chat_id, String login) {
+      Chat c = chat(chat_id);
+      int id = this._logins.find(login);
+      if (c == null || id < 0)
+         return false;
+      synchronized (c) {
+         return c.members.containsKey(id);
+      }
+   }//end isChatMember
+
+   public String chatInitSender (int chat_id) {
+      Chat c = chat(chat_id);
+      return c == null ? null : this._logins.login(c.initSender);
+   }//end chatInitSender
+
+   public List<String> chatMembers (int chat_id) {
+      List<String> result = new ArrayList<String>();
+      Chat c = chat(chat_id);
+      if (c == null)
+         return result;
+      long[] ids;
+      synchronized (c) {
+         ids = c.members.keys();
+      }
+      for (long id : ids)
+         result.add(this._logins.login((int) id));
+      return result;
+   }//end chatMembers
+
+   public Set<String> chatMembersAmong (int chat_id, Collection<String> candidates) {
+      Set<String> present = new LinkedHashSet<String>();
+      Chat c = chat(chat_id);
+      if (c == null)
+         return present;
+      synchronized (c) {
+         for (String l : candidates) {
+            int id = this._logins.find(l);
+            if (id >= 0 && c.members.containsKey(id))
+               present.add(l.trim());
+         }//end for
+      }
+      return present;
+   }//end chatMembersAmong
+
+   public void addChatMembers (int chat_id, List<String> members) throws SQLException {
+      Chat c = existingChat(chat_id);
+      List<User> added = new ArrayList<User>();
+      for (String m : members)
+         added.add(existingUser(m));
+      synchronized (c) {
+         int last = c.lastMsgId();
+         for (User m : added) {
+            if (!c.members.containsKey(m.id))
+               c.members.put(m.id, last);
+         }//end for
+         c.retype();
+      }
+      for (User m : added) {
+         synchronized (m) {
+            m.chats.add(chat_id);
+         }
+      }//end for
+   }//end addChatMembers
+
+   public boolean removeChatMembers (int chat_id, List<String> members) throws SQLException {
+      if (members.isEmpty())
+         return true;
+      Chat c = existingChat(chat_id);
+      List<User> removed = new ArrayList<User>();
+      boolean keep;
+      synchronized (c) {
+         keep = c.members.size() - members.size() > 1;
+         if (keep){
+            for (String m : members) {
+               User u = user(m);
+               if (u != null && c.members.remove(u.id))
+                  removed.add(u);
+            }//end for
+            c.retype();
+         }//end if
+      }
+      if (!keep){
+         deleteChat(chat_id);
+         return false;
+      }//end if
+      for (User u : removed) {
+         synchronized (u) {
+            u.chats.remove(chat_id);
+         }
+      }//end for
+      return true;
+   }//end removeChatMembers
+
+   public void deleteChat (int chat_id) throws SQLException {
+      Chat c;
+      synchronized (this) {
+         c = chat(chat_id);
+         if (c == null)
+            return;
+         this._chats.set(chat_id, null);
+      }
+      long[] members;
+      int[] senders;
+      synchronized (c) {
+         members = c.members.keys();
+         senders = Arrays.copyOf(c.senders, c.count);
+      }
+      for (long id : members) {
+         User u = user((int) id);
+         if (u == null)
+            continue;
+         synchronized (u) {
+            u.chats.remove(chat_id);
+         }
+      }//end for
+      for (int id : senders) {
+         User u = user(id);
+         if (u == null)
+            continue;
+         synchronized (u) {
+            --u.messages;
+         }
+      }//end for
+   }//end deleteChat
+
+   // ------------------------------------------------------------ messages
+
+   public void postMessage (int chat_id, String sender, String text) throws SQLException {
+      checkLength(text, TEXT_LENGTH, "msg_text");
+      Chat c = existingChat(chat_id);
+      User u = existingUser(sender);
+      synchronized (c) {
+         // taken under the chat's monitor so ids ascend within the chat
+         c.append(this._msgIds.incrementAndGet(), u.id, text);
+      }
+      synchronized (u) {
+         ++u.messages;
+      }
+   }//end postMessage
+
+   public ReadCursor readCursor (int chat_id, String login) {
+      Chat c = chat(chat_id);
+      int id = this._logins.find(login);
+      if (c == null || id < 0)
+         return null;
+      synchronized (c) {
+         if (!c.members.containsKey(id))
+            return null;
+         int last_read = c.members.get(id, 0);
+         return new ReadCursor(last_read, c.unread(last_read));
+      }
+   }//end readCursor
+
+   public List<Message> messagesBefore (int chat_id, int before, int limit) {
+      List<Message> page = new ArrayList<Message>();
+      Chat c = chat(chat_id);
+      if (c == null)
+         return page;
+      synchronized (c) {
+         int to = c.lowerBound(before);
+         for (int i = Math.max(0, to - limit); i < to; ++i)
+            page.add(new Message(c.msgIds[i], c.texts[i], new Timestamp(c.timestamps[i]), this._logins.login(c.senders[i])));
+      }
+      return page;
+   }//end messagesBefore
+
+   public void advanceReadCursor (int chat_id, String login, int msg_id) {
+      Chat c = chat(chat_id);
+      int id = this._logins.find(login);
+      if (c == null || id < 0)
+         return;
+      synchronized (c) {
+         if (c.members.containsKey(id) && c.members.get(id, 0) < msg_id)
+            c.members.put(id, msg_id);
+      }
+   }//end advanceReadCursor
+
+}//end InMemoryStorage
@@ -0,0 +1,133 @@
+import java.util.Arrays;
+
+
+/**
+ * This class is a set of non-negative ints kept in a single open-addressing
+ * array, without boxing each element. It is not synchronized; owners guard
+ * it themselves.
+ *
+ */
+public class IntHashSet {
+
+   // marks a free slot, which is why elements must be non-negative
+   private static final int EMPTY = -1;
+
+   private int[] _keys;
+   private int _size = 0;
+
+   /**
+    * Creates a new instance of IntHashSet
+    */
+   public IntHashSet () {
+      this(4);
+   }//end IntHashSet
+
+   /**
+    * Creates a new instance of IntHashSet
+    *
+    * @param expected the number of elements to make room for
+    */
+   public IntHashSet (int expected) {
+      int capacity = 8;
+      while (capacity < expected * 2)
+         capacity <<= 1;
+      this._keys = new int[capacity];
+      Arrays.fill(this._keys, EMPTY);
+   }//end IntHashSet
+
+   private static int slot (int key, int mask) {
+      int h = key * 0x9E3779B9;
+      return (h ^ (h >>> 16)) & mask;
+   }//end slot
+
+   /**
+    * @param key the element
+    * @return true when the element is in the set
+    */
+   public boolean contains (int key) {
+      int mask = this._keys.length - 1;
+      for (int i = slot(key, mask); this._keys[i] != EMPTY; i = (i + 1) & mask) {
+         if (this._keys[i] == key)
+            return true;
+      }//end for
+      return false;
+   }//end contains
+
+   /**
+    * @param key the element, which must not be negative
+    * @return true when the element was not in the set yet
+    */
+   public boolean add (int key) {
+      if (key < 0)
+         throw new IllegalArgumentException("negative element " + key);
+      if ((this._size + 1) * 2 > this._keys.length)
+         grow ();
+      int mask = this._keys.length - 1;
+      int i = slot(key, mask);
+      for (; this._keys[i] != EMPTY; i = (i + 1) & mask) {
+         if (this._keys[i] == key)
+            return false;
+      }//end for
+      this._keys[i] = key;
+      ++this._size;
+      return true;
+   }//end add
+
+   /**
+    * @param key the element
+    * @return true when the element was in the set
+    */
+   public boolean remove (int key) {
+      int mask = this._keys.length - 1;
+      int i = slot(key, mask);
+      for (; this._keys[i] != key; i = (i + 1) & mask) {
+         if (this._keys[i] == EMPTY)
+            return false;
+      }//end for
+
+      // shift later elements of the probe run back into the hole
+      for (int j = (i + 1) & mask; this._keys[j] != EMPTY; j = (j + 1) & mask) {
+         int home = slot(this._keys[j], mask);
+         boolean movable = j > i ? (home <= i || home > j) : (home <= i && home > j);
+         if (movable){
+            this._keys[i] = this._keys[j];
+            i = j;
+         }//end if
+      }//end for
+      this._keys[i] = EMPTY;
+      --this._size;
+      return true;
+   }//end remove
+
+   /**
+    * @return the number of elements
+    */
+   public int size () {
+      return this._size;
+   }//end size
+
+   /**
+    * @return the elements, in no particular order
+    */
+   public int[] toArray () {
+      int[] result = new int[this._size];
+      int n = 0;
+      for (int k : this._keys) {
+         if (k != EMPTY)
+            result[n++] = k;
+      }//end for
+      return result;
+   }//end toArray
+
+   private void grow () {
+      int[] old = this._keys;
+      this._keys = new int[old.length * 2];
+      Arrays.fill(this._keys, EMPTY);
+      this._size = 0;
+      for (int k : old) {
+         if (k != EMPTY)
+            add (k);
+      }//end for
+   }//end grow
+
+}//end IntHashSet
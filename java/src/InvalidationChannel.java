@@ -0,0 +1,37 @@
+/**
+ * This interface carries "this user changed" messages between the nodes
+ * that cache user data, so a change made through one node, or directly in
+ * the database, drops the stale copies everywhere.
+ *
+ */
+public interface InvalidationChannel {
+
+   /**
+    * Receives the invalidations arriving on a channel.
+    */
+   interface Listener {
+      /** the USR row of login changed */
+      void invalidated (String login);
+      /** changes may have been missed, so nothing cached can be trusted */
+      void invalidatedAll ();
+   }//end Listener
+
+   /**
+    * @param listener receives every invalidation from now on
+    */
+   void subscribe (Listener listener);
+
+   /**
+    * Announces a change made by this node. Channels fed by the database
+    * itself may ignore it.
+    *
+    * @param login the user login
+    */
+   void publish (String login);
+
+   /**
+    * Stops delivering invalidations.
+    */
+   void close ();
+
+}//end InvalidationChannel
@@ -0,0 +1,29 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+/**
+ * This class is an invalidation channel within one process: publishing
+ * delivers to every subscriber at once. It stands in for the database
+ * channel on a single node, and lets several caches in one process (or a
+ * test) share invalidations.
+ *
+ */
+public class LocalInvalidationChannel implements InvalidationChannel {
+
+   private final List<Listener> _listeners = new CopyOnWriteArrayList<Listener>();
+
+   public void subscribe (Listener listener) {
+      this._listeners.add(listener);
+   }//end subscribe
+
+   public void publish (String login) {
+      for (Listener l : this._listeners)
+         l.invalidated (login);
+   }//end publish
+
+   public void close () {
+      this._listeners.clear();
+   }//end close
+
+}//end LocalInvalidationChannel
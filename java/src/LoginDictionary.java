@@ -0,0 +1,70 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * This class assigns each login a dense int id, so in-memory structures can
+ * hold users as primitive ints instead of char(50) strings. Logins are
+ * taken as stored in the database (unescaped); trailing padding is ignored.
+ * Ids are only meaningful within this process.
+ *
+ */
+public class LoginDictionary {
+
+   private final ConcurrentHashMap<String, Integer> _ids = new ConcurrentHashMap<String, Integer>();
+
+   // login of each id; replaced, never modified in place, once published
+   private volatile String[] _logins = new String[1024];
+   private int _count = 0;
+
+   /**
+    * Returns the id of a login, assigning the next free one to a login seen
+    * for the first time.
+    *
+    * @param login the login
+    * @return its id
+    */
+   public int id (String login) {
+      String key = login.trim();
+      Integer id = this._ids.get(key);
+      if (id != null)
+         return id;
+      synchronized (this) {
+         id = this._ids.get(key);
+         if (id != null)
+            return id;
+         String[] logins = this._logins;
+         if (this._count == logins.length)
+            logins = Arrays.copyOf(logins, logins.length * 2);
+         logins[this._count] = key;
+         this._logins = logins;
+         this._ids.put(key, this._count);
+         return this._count++;
+      }
+   }//end id
+
+   /**
+    * @param login the login
+    * @return its id, or -1 when the login has never been seen
+    */
+   public int find (String login) {
+      Integer id = this._ids.get(login.trim());
+      return id == null ? -1 : id;
+   }//end find
+
+   /**
+    * @param id an id handed out by this dictionary
+    * @return the login it stands for
+    */
+   public String login (int id) {
+      return this._logins[id];
+   }//end login
+
+   /**
+    * @return the number of ids handed out
+    */
+   public int size () {
+      return this._ids.size();
+   }//end size
+
+}//end LoginDictionary
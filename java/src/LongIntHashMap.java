@@ -0,0 +1,200 @@
+import java.util.Arrays;
+
+
+/**
+ * This class maps non-negative longs to ints in two parallel open-addressing
+ * arrays, without boxing keys or values. Composite keys such as a chat id
+ * and a day can be packed into the long. It is not synchronized; owners
+ * guard it themselves.
+ *
+ */
+public class LongIntHashMap {
+
+   // marks a free slot, which is why keys must be non-negative
+   private static final long EMPTY = -1L;
+
+   private long[] _keys;
+   private int[] _values;
+   private int _size = 0;
+
+   /**
+    * Creates a new instance of LongIntHashMap
+    */
+   public LongIntHashMap () {
+      this._keys = new long[16];
+      this._values = new int[16];
+      Arrays.fill(this._keys, EMPTY);
+   }//end LongIntHashMap
+
+   private static int slot (long key, int mask) {
+      long h = key * 0x9E3779B97F4A7C15L;
+      return (int) (h ^ (h >>> 32)) & mask;
+   }//end slot
+
+   // the slot holding key, or the free slot where it belongs
+   private int find (long key) {
+      int mask = this._keys.length - 1;
+      int i = slot(key, mask);
+      while (this._keys[i] != EMPTY && this._keys[i] != key)
+         i = (i + 1) & mask;
+      return i;
+   }//end find
+
+   // the slot of key, inserting it with value 0 when absent
+   private int insert (long key) {
+      if (key < 0)
+         throw new IllegalArgumentException("negative key " + key);
+      if ((this._size + 1) * 2 > this._keys.length)
+         grow ();
+      int i = find(key);
+      if (this._keys[i] == EMPTY){
+         this._keys[i] = key;
+         this._values[i] = 0;
+         ++this._size;
+      }//end if
+      return i;
+   }//end insert
+
+   /**
+    * @param key the key
+    * @return true when the key is in the map
+    */
+   public boolean containsKey (long key) {
+      return this._keys[find(key)] == key;
+   }//end containsKey
+
+   /**
+    * @param key the key
+    * @param missing the value to return when the key is absent
+    * @return the value of the key
+    */
+   public int get (long key, int missing) {
+      int i = find(key);
+      return this._keys[i] == key ? this._values[i] : missing;
+   }//end get
+
+   /**
+    * Sets the value of key, inserting the key when absent.
+    *
+    * @param key the key, which must not be negative
+    * @param value the value
+    */
+   public void put (long key, int value) {
+      int i = insert(key);
+      this._values[i] = value;
+   }//end put
+
+   /**
+    * @param key the key
+    * @return true when the key was in the map
+    */
+   public boolean remove (long key) {
+      int mask = this._keys.length - 1;
+      int i = find(key);
+      if (this._keys[i] != key)
+         return false;
+
+      // shift later keys of the probe run back into the hole
+      for (int j = (i + 1) & mask; this._keys[j] != EMPTY; j = (j + 1) & mask) {
+         int home = slot(this._keys[j], mask);
+         boolean movable = j > i ? (home <= i || home > j) : (home <= i && home > j);
+         if (movable){
+            this._keys[i] = this._keys[j];
+            this._values[i] = this._values[j];
+            i = j;
+         }//end if
+      }//end for
+      this._keys[i] = EMPTY;
+      --this._size;
+      return true;
+   }//end remove
+
+   /**
+    * Adds delta to the value of key, which starts at 0 when absent.
+    *
+    * @param key the key, which must not be negative
+    * @param delta the amount to add
+    */
+   public void add (long key, int delta) {
+      int i = insert(key);
+      this._values[i] += delta;
+   }//end add
+
+   /**
+    * Raises the value of key to value, inserting the key when absent.
+    *
+    * @param key the key, which must not be negative
+    * @param value the candidate value
+    */
+   public void max (long key, int value) {
+      int i = find(key);
+      if (this._keys[i] == key){
+         if (value > this._values[i])
+            this._values[i] = value;
+         return;
+      }//end if
+      i = insert(key);
+      this._values[i] = value;
+   }//end max
+
+   /**
+    * Adds every value of another map to this one.
+    *
+    * @param other the map to add
+    */
+   public void addAll (LongIntHashMap other) {
+      for (int i = 0; i < other._keys.length; ++i) {
+         if (other._keys[i] != EMPTY)
+            add (other._keys[i], other._values[i]);
+      }//end for
+   }//end addAll
+
+   /**
+    * Raises every value of this map to the value of the same key in
+    * another map.
+    *
+    * @param other the map to take the maximum with
+    */
+   public void maxAll (LongIntHashMap other) {
+      for (int i = 0; i < other._keys.length; ++i) {
+         if (other._keys[i] != EMPTY)
+            max (other._keys[i], other._values[i]);
+      }//end for
+   }//end maxAll
+
+   /**
+    * @return the number of keys
+    */
+   public int size () {
+      return this._size;
+   }//end size
+
+   /**
+    * @return the keys, in no particular order
+    */
+   public long[] keys () {
+      long[] result = new long[this._size];
+      int n = 0;
+      for (long k : this._keys) {
+         if (k != EMPTY)
+            result[n++] = k;
+      }//end for
+      return result;
+   }//end keys
+
+   private void grow () {
+      long[] oldKeys = this._keys;
+      int[] oldValues = this._values;
+      this._keys = new long[oldKeys.length * 2];
+      this._values = new int[oldKeys.length * 2];
+      Arrays.fill(this._keys, EMPTY);
+      for (int i = 0; i < oldKeys.length; ++i) {
+         if (oldKeys[i] != EMPTY){
+            int j = find(oldKeys[i]);
+            this._keys[j] = oldKeys[i];
+            this._values[j] = oldValues[i];
+         }//end if
+      }//end for
+   }//end grow
+
+}//end LongIntHashMap
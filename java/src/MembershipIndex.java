@@ -0,0 +1,196 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * This class keeps chat membership in memory: the members of each chat,
+ * and each chat's type and initial sender. It is
+ * loaded from the primary of every shard at startup and kept current by
+ * the paths that add, remove and delete members and chats, so the
+ * authorization checks in front of every chat action need no query when
+ * the user is a member.
+ *
+ * Chats and members added by other nodes or by ChatImporter are missing
+ * from it, so callers treat a negative answer as unknown and ask the
+ * database. Members removed elsewhere still look present until restart;
+ * start with -Dmessenger.membershipIndex=false to always ask the database
+ * when several nodes share the shards.
+ *
+ */
+public class MembershipIndex {
+
+   /*
+    * Type, initial sender and members of one chat. The member set is
+    * guarded by the entry itself.
+    **/
+   private static class ChatEntry {
+      volatile String type;
+      final String initSender;
+      final IntHashSet members = new IntHashSet();
+
+      ChatEntry (String type, String initSender) {
+         this.type = type;
+         this.initSender = initSender;
+      }
+   }//end ChatEntry
+
+   private final boolean _enabled;
+   private final LoginDictionary _logins;
+   private final ConcurrentHashMap<Integer, ChatEntry> _chats = new ConcurrentHashMap<Integer, ChatEntry>();
+
+   /**
+    * Creates a new instance of MembershipIndex
+    *
+    * @param enabled false to make every update a no-op
+    * @param logins the dictionary mapping logins to ids
+    */
+   public MembershipIndex (boolean enabled, LoginDictionary logins) {
+      this._enabled = enabled;
+      this._logins = logins;
+   }//end MembershipIndex
+
+   /**
+    * @return true when the index is in use
+    */
+   public boolean isEnabled () {
+      return this._enabled;
+   }//end isEnabled
+
+   /**
+    * Loads CHAT and CHAT_LIST of every shard.
+    *
+    * @param shards the shards to load from
+    * @throws java.sql.SQLException when failed to execute the queries
+    */
+   public void load (ShardRouter shards) throws SQLException {
+      if (!this._enabled)
+         return;
+      for (int s = 0; s < shards.count(); ++s) {
+         // a replica could still lack the chats created just before startup
+         Connection conn = shards.shard(s).primary();
+         synchronized (conn) {
+            Statement stmt = conn.createStatement ();
+            ResultSet rs = stmt.executeQuery ("SELECT chat_id, chat_type, init_sender FROM chat");
+            while (rs.next())
+               addChat (rs.getInt(1), rs.getString(2), rs.getString(3));
+            rs = stmt.executeQuery ("SELECT chat_id, member FROM chat_list");
+            while (rs.next())
+               addMember (rs.getInt(1), rs.getString(2));
+            stmt.close ();
+         }
+      }//end for
+   }//end load
+
+   /**
+    * @param chat_id the chat id
+    * @return true when the chat is known
+    */
+   public boolean hasChat (int chat_id) {
+      return this._chats.containsKey(chat_id);
+   }//end hasChat
+
+   /**
+    * @param chat_id the chat id
+    * @param login the user login
+    * @return true when the user is a member of the chat
+    */
+   public boolean isMember (int chat_id, String login) {
+      ChatEntry chat = this._chats.get(chat_id);
+      int id = this._logins.find(login);
+      if (chat == null || id < 0)
+         return false;
+      synchronized (chat) {
+         return chat.members.contains(id);
+      }
+   }//end isMember
+
+   /**
+    * @param chat_id the chat id
+    * @return the number of members of the chat, 0 when it is unknown
+    */
+   public int memberCount (int chat_id) {
+      ChatEntry chat = this._chats.get(chat_id);
+      if (chat == null)
+         return 0;
+      synchronized (chat) {
+         return chat.members.size();
+      }
+   }//end memberCount
+
+   /**
+    * @param chat_id the chat id
+    * @return the initial sender of the chat, or null when it is unknown
+    */
+   public String initSender (int chat_id) {
+      ChatEntry chat = this._chats.get(chat_id);
+      return chat == null ? null : chat.initSender;
+   }//end initSender
+
+   /**
+    * @param chat_id the chat id
+    * @return the type of the chat, or null when it is unknown
+    */
+   public String chatType (int chat_id) {
+      ChatEntry chat = this._chats.get(chat_id);
+      return chat == null ? null : chat.type;
+   }//end chatType
+
+   /**
+    * @param chat_id the chat id
+    * @param type the chat type
+    * @param initSender the login of the user who created the chat
+    */
+   public void addChat (int chat_id, String type, String initSender) {
+      if (this._enabled)
+         this._chats.putIfAbsent(chat_id, new ChatEntry(type.trim(), initSender == null ? null : initSender.trim()));
+   }//end addChat
+
+   /**
+    * @param chat_id the chat id
+    * @param type the new chat type
+    */
+   public void setType (int chat_id, String type) {
+      ChatEntry chat = this._chats.get(chat_id);
+      if (chat != null)
+         chat.type = type.trim();
+   }//end setType
+
+   /**
+    * @param chat_id the chat id
+    * @param login the login of the new member
+    */
+   public void addMember (int chat_id, String login) {
+      ChatEntry chat = this._chats.get(chat_id);
+      if (chat == null)
+         return;
+      int id = this._logins.id(login);
+      synchronized (chat) {
+         chat.members.add(id);
+      }
+   }//end addMember
+
+   /**
+    * @param chat_id the chat id
+    * @param login the login of the member leaving
+    */
+   public void removeMember (int chat_id, String login) {
+      ChatEntry chat = this._chats.get(chat_id);
+      int id = this._logins.find(login);
+      if (chat == null || id < 0)
+         return;
+      synchronized (chat) {
+         chat.members.remove(id);
+      }
+   }//end removeMember
+
+   /**
+    * @param chat_id the id of the deleted chat
+    */
+   public void removeChat (int chat_id) {
+      this._chats.remove(chat_id);
+   }//end removeChat
+
+}//end MembershipIndex
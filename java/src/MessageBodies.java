@@ -0,0 +1,361 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * This class keeps message texts in MESSAGE_BODY, once per distinct text
+ * and shard, instead of in the char(300) msg_text of every MESSAGE row. A
+ * body is found by the SHA-256 of its text, so the welcome message of
+ * every chat and other repeated texts take one row between them. Bodies
+ * of compressMinBytes or more are stored deflated when that is smaller.
+ *
+ * Bodies never change, so both directions are cached: the id of recently
+ * written texts and the text of recently read ids. A body is written
+ * before the message referring to it; one left behind by a failed insert
+ * is reused by the next message with that text, and prune drops those and
+ * the bodies of deleted messages. Another client may still have a pruned
+ * id cached; its insert then fails and it forgets the id and retries.
+ *
+ * MESSAGE rows with a NULL body_id still carry their text in msg_text;
+ * MessageBodyMigration moves them over.
+ *
+ */
+public class MessageBodies {
+
+   // widest text, as for msg_text
+   public static final int MAX_TEXT = 300;
+
+   private static final char PLAIN = 'p';
+   private static final char DEFLATED = 'z';
+
+   private final ShardRouter _shards;
+   private final boolean _writeNew;
+   private final int _compressMin;
+
+   // shard:hash -> body_id, and (shard << 32 | body_id) -> text
+   private final LinkedHashMap<String, Integer> _ids;
+   private final LinkedHashMap<Long, String> _texts;
+
+   /**
+    * Creates a new instance of MessageBodies
+    *
+    * @param shards the shards holding MESSAGE_BODY
+    * @param writeNew whether new messages get bodies, or keep msg_text
+    * @param compressMin the smallest body, in bytes, worth deflating
+    * @param cacheSize the most ids and texts to keep in each cache
+    */
+   public MessageBodies (ShardRouter shards, boolean writeNew, int compressMin, final int cacheSize) {
+      this._shards = shards;
+      this._writeNew = writeNew;
+      this._compressMin = compressMin;
+      this._ids = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+         protected boolean removeEldestEntry (Map.Entry<String, Integer> eldest) {
+            return size() > cacheSize;
+         }
+      };
+      this._texts = new LinkedHashMap<Long, String>(16, 0.75f, true) {
+         protected boolean removeEldestEntry (Map.Entry<Long, String> eldest) {
+            return size() > cacheSize;
+         }
+      };
+   }//end MessageBodies
+
+   /**
+    * @return whether new messages get bodies
+    */
+   public boolean writesNew () {
+      return this._writeNew;
+   }//end writesNew
+
+   /**
+    * @param text the message text
+    * @return the hex SHA-256 of the text in UTF-8
+    */
+   public static String hash (String text) {
+      try{
+         byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+         StringBuilder sb = new StringBuilder();
+         for (byte b : digest)
+            sb.append(String.format("%02x", b & 0xff));
+         return sb.toString();
+      }catch (NoSuchAlgorithmException e){
+         throw new IllegalStateException(e);
+      }//end try
+   }//end hash
+
+   /*
+    * The stored form of a text: its encoding and bytes
+    **/
+   private char encode (String text, ByteArrayOutputStream out) {
+      byte[] plain = text.getBytes(StandardCharsets.UTF_8);
+      if (plain.length >= this._compressMin){
+         Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+         deflater.setInput(plain);
+         deflater.finish();
+         byte[] buf = new byte[plain.length];
+         int n = 0;
+         while (!deflater.finished() && n < buf.length)
+            n += deflater.deflate(buf, n, buf.length - n);
+         boolean smaller = deflater.finished() && n < plain.length;
+         deflater.end();
+         if (smaller){
+            out.write(buf, 0, n);
+            return DEFLATED;
+         }//end if
+      }//end if
+      out.write(plain, 0, plain.length);
+      return PLAIN;
+   }//end encode
+
+   /**
+    * @param encoding the encoding column of MESSAGE_BODY
+    * @param body the body column
+    * @return the text
+    * @throws java.sql.SQLException when the body is corrupt
+    */
+   public static String decode (String encoding, byte[] body) throws SQLException {
+      if (encoding.trim().charAt(0) == PLAIN)
+         return new String(body, StandardCharsets.UTF_8);
+      Inflater inflater = new Inflater(true);
+      inflater.setInput(body);
+      ByteArrayOutputStream out = new ByteArrayOutputStream(body.length * 4);
+      byte[] buf = new byte[1024];
+      try{
+         while (!inflater.finished()) {
+            int n = inflater.inflate(buf);
+            if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+               throw new SQLException("truncated message body");
+            out.write(buf, 0, n);
+         }//end while
+      }catch (DataFormatException e){
+         throw new SQLException("corrupt message body: " + e.getMessage());
+      }finally{
+         inflater.end();
+      }//end try
+      return new String(out.toByteArray(), StandardCharsets.UTF_8);
+   }//end decode
+
+   /**
+    * Finds or writes the body of a text on the shard of a chat.
+    *
+    * @param chat_id the chat the message goes to
+    * @param text the message text
+    * @return the body_id to put in MESSAGE
+    * @throws java.sql.SQLException when the text is too long or failed to write
+    */
+   public int bodyId (int chat_id, String text) throws SQLException {
+      if (text.length() > MAX_TEXT)
+         throw new SQLException(String.format("value too long for msg_text (%d)", MAX_TEXT));
+      int shard = this._shards.shardOfChat(chat_id);
+      return bodyId(this._shards.shard(shard), shard, text);
+   }//end bodyId
+
+   /**
+    * Finds or writes the body of a text on a shard.
+    *
+    * @param router the shard
+    * @param shard its index
+    * @param text the message text
+    * @return the body_id
+    * @throws java.sql.SQLException when failed to write the body
+    */
+   public int bodyId (ReplicaRouter router, int shard, String text) throws SQLException {
+      String hash = hash(text);
+      String key = shard + ":" + hash;
+      synchronized (this) {
+         Integer cached = this._ids.get(key);
+         if (cached != null)
+            return cached;
+      }
+      Connection conn = router.primary();
+      int id = find(conn, hash);
+      if (id < 0){
+         ByteArrayOutputStream body = new ByteArrayOutputStream();
+         char encoding = encode(text, body);
+         id = router.ids("message_body_body_id_seq").next();
+         // the connection is shared; see Messenger.executeTransaction
+         synchronized (conn) {
+            PreparedStatement stmt = conn.prepareStatement("INSERT INTO message_body(body_id, hash, encoding, body) VALUES (?, ?, ?, ?)");
+            try{
+               stmt.setInt(1, id);
+               stmt.setString(2, hash);
+               stmt.setString(3, String.valueOf(encoding));
+               stmt.setBytes(4, body.toByteArray());
+               stmt.executeUpdate();
+            }catch (SQLException e){
+               // written meanwhile by another client
+               id = find(conn, hash);
+               if (id < 0)
+                  throw e;
+            }finally{
+               stmt.close();
+            }//end try
+         }
+         router.markWrite();
+      }//end if
+      synchronized (this) {
+         this._ids.put(key, id);
+         this._texts.put(((long) shard << 32) | id, text);
+      }
+      return id;
+   }//end bodyId
+
+   /**
+    * Drops the cached id of a text, e.g. after an insert referring to it
+    * failed because the body was pruned by another client.
+    *
+    * @param chat_id the chat the message went to
+    * @param text the message text
+    * @return true when an id was cached
+    */
+   public synchronized boolean forget (int chat_id, String text) {
+      return this._ids.remove(this._shards.shardOfChat(chat_id) + ":" + hash(text)) != null;
+   }//end forget
+
+   /**
+    * Deletes the bodies no message refers to any more and drops them from
+    * the caches.
+    *
+    * @param router the shard
+    * @param shard its index
+    * @param body_ids the bodies to look at, or null for every body
+    * @return the number of bodies deleted
+    * @throws java.sql.SQLException when failed to delete the bodies
+    */
+   public int prune (ReplicaRouter router, int shard, Collection<Integer> body_ids) throws SQLException {
+      if (body_ids != null && body_ids.isEmpty())
+         return 0;
+      String query = "DELETE FROM message_body B WHERE NOT EXISTS (SELECT 1 FROM message M WHERE M.body_id = B.body_id)";
+      if (body_ids != null)
+         query += " AND B.body_id IN (" + join(body_ids) + ")";
+      Set<Integer> deleted = new HashSet<Integer>();
+      Connection conn = router.primary();
+      synchronized (conn) {
+         Statement stmt = conn.createStatement();
+         try{
+            ResultSet rs = stmt.executeQuery(query + " RETURNING B.body_id");
+            while (rs.next())
+               deleted.add(rs.getInt(1));
+         }finally{
+            stmt.close();
+         }//end try
+      }
+      router.markWrite();
+      if (deleted.isEmpty())
+         return 0;
+
+      synchronized (this) {
+         for (Integer id : deleted)
+            this._texts.remove(((long) shard << 32) | id);
+         String prefix = shard + ":";
+         Iterator<Map.Entry<String, Integer>> it = this._ids.entrySet().iterator();
+         while (it.hasNext()) {
+            Map.Entry<String, Integer> e = it.next();
+            if (e.getKey().startsWith(prefix) && deleted.contains(e.getValue()))
+               it.remove();
+         }//end while
+      }
+      return deleted.size();
+   }//end prune
+
+   private static int find (Connection conn, String hash) throws SQLException {
+      synchronized (conn) {
+         PreparedStatement stmt = conn.prepareStatement("SELECT body_id FROM message_body WHERE hash = ?");
+         try{
+            stmt.setString(1, hash);
+            ResultSet rs = stmt.executeQuery();
+            return rs.next() ? rs.getInt(1) : -1;
+         }finally{
+            stmt.close();
+         }//end try
+      }
+   }//end find
+
+   /**
+    * Reads the texts of bodies on the shard of a chat, from the cache
+    * where possible. A replica that has not caught up with a body yet is
+    * passed over for the primary.
+    *
+    * @param chat_id the chat the messages belong to
+    * @param body_ids the bodies
+    * @return the text of each body found, keyed by body_id
+    * @throws java.sql.SQLException when failed to read the bodies
+    */
+   public Map<Integer, String> texts (int chat_id, Collection<Integer> body_ids) throws SQLException {
+      int shard = this._shards.shardOfChat(chat_id);
+      Map<Integer, String> result = new HashMap<Integer, String>();
+      List<Integer> misses = new ArrayList<Integer>();
+      synchronized (this) {
+         for (Integer id : body_ids) {
+            String text = this._texts.get(((long) shard << 32) | id);
+            if (text != null)
+               result.put(id, text);
+            else if (!misses.contains(id))
+               misses.add(id);
+         }//end for
+      }
+      if (misses.isEmpty())
+         return result;
+
+      ReplicaRouter router = this._shards.shard(shard);
+      read(router.forRead(), shard, misses, result);
+      List<Integer> lagging = new ArrayList<Integer>();
+      for (Integer id : misses) {
+         if (!result.containsKey(id))
+            lagging.add(id);
+      }//end for
+      if (!lagging.isEmpty())
+         read(router.primary(), shard, lagging, result);
+      return result;
+   }//end texts
+
+   private void read (Connection conn, int shard, List<Integer> ids, Map<Integer, String> result) throws SQLException {
+      String in = join(ids);
+      synchronized (conn) {
+         Statement stmt = conn.createStatement();
+         try{
+            ResultSet rs = stmt.executeQuery("SELECT body_id, encoding, body FROM message_body WHERE body_id IN (" + in + ")");
+            while (rs.next()) {
+               int id = rs.getInt(1);
+               String text = decode(rs.getString(2), rs.getBytes(3));
+               result.put(id, text);
+               synchronized (this) {
+                  this._texts.put(((long) shard << 32) | id, text);
+               }
+            }//end while
+         }finally{
+            stmt.close();
+         }//end try
+      }
+   }//end read
+
+   private static String join (Collection<Integer> values) {
+      StringBuilder sb = new StringBuilder();
+      for (Integer v : values) {
+         if (sb.length() > 0)
+            sb.append(", ");
+         sb.append(v);
+      }//end for
+      return sb.toString();
+   }//end join
+
+}//end MessageBodies
@@ -0,0 +1,172 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * This class moves the texts of existing MESSAGE rows into MESSAGE_BODY:
+ * every row whose body_id is still NULL gets the body of its text and
+ * loses its msg_text. Rows are done messenger.migrationBatch at a time in
+ * ascending msg_id, each batch in one transaction, so the migration can
+ * run next to live traffic and an interrupted one simply runs again.
+ *
+ * The space of the old msg_text values comes back once MESSAGE is
+ * vacuumed. Run it against every shard.
+ *
+ * With -prune it instead deletes the bodies no message refers to, such as
+ * those left behind by failed inserts.
+ *
+ * Usage: java MessageBodyMigration <dbname> <port> <user> [-prune]
+ *
+ */
+public class MessageBodyMigration {
+
+   private final Connection _connection;
+   private final ReplicaRouter _router;
+   private final MessageBodies _bodies;
+   private final int _batchSize;
+
+   private long _migrated = 0;
+   private long _textBytes = 0;
+
+   /**
+    * Creates a new instance of MessageBodyMigration
+    *
+    * @param connection the database to migrate
+    * @param batchSize the most messages per transaction
+    */
+   public MessageBodyMigration (Connection connection, int batchSize) {
+      this._connection = connection;
+      this._router = new ReplicaRouter(connection, new ArrayList<Connection>(), 0, 0,
+            Integer.getInteger("messenger.idBlockSize", 20));
+      List<ReplicaRouter> shards = new ArrayList<ReplicaRouter>();
+      shards.add(this._router);
+      this._bodies = new MessageBodies(new ShardRouter(shards), true,
+            Integer.getInteger("messenger.compressMinBytes", 64),
+            Integer.getInteger("messenger.bodyCacheSize", 10000));
+      this._batchSize = batchSize;
+   }//end MessageBodyMigration
+
+   /**
+    * Migrates every message without a body.
+    *
+    * @throws java.sql.SQLException when failed to read or update messages
+    */
+   public void migrate () throws SQLException {
+      int last = 0;
+      for (;;) {
+         // body_id -> msg_ids of this batch
+         Map<Integer, List<Integer>> batch = new LinkedHashMap<Integer, List<Integer>>();
+         int n = 0;
+         Statement stmt = this._connection.createStatement();
+         try{
+            ResultSet rs = stmt.executeQuery(String.format("SELECT msg_id, msg_text FROM message WHERE body_id IS NULL AND msg_id > %d ORDER BY msg_id LIMIT %d", last, this._batchSize));
+            while (rs.next()) {
+               last = rs.getInt(1);
+               String text = rtrim(rs.getString(2));
+               int body_id = this._bodies.bodyId(this._router, 0, text);
+               List<Integer> ids = batch.get(body_id);
+               if (ids == null)
+                  batch.put(body_id, ids = new ArrayList<Integer>());
+               ids.add(last);
+               this._textBytes += text.length();
+               ++n;
+            }//end while
+         }finally{
+            stmt.close();
+         }//end try
+         if (n == 0)
+            break;
+         update(batch);
+         this._migrated += n;
+         System.out.println(String.format("%d messages migrated, up to msg_id %d", this._migrated, last));
+      }//end for
+      System.out.println(String.format("Done: %d messages (%d bytes of text). Run VACUUM FULL message to release their msg_text.", this._migrated, this._textBytes));
+   }//end migrate
+
+   /**
+    * Deletes every body no message refers to.
+    *
+    * @throws java.sql.SQLException when failed to delete the bodies
+    */
+   public void prune () throws SQLException {
+      int n = this._bodies.prune(this._router, 0, null);
+      System.out.println(String.format("Done: %d unreferenced message bodies deleted.", n));
+   }//end prune
+
+   private void update (Map<Integer, List<Integer>> batch) throws SQLException {
+      boolean autoCommit = this._connection.getAutoCommit();
+      this._connection.setAutoCommit(false);
+      Statement stmt = this._connection.createStatement ();
+      try{
+         for (Map.Entry<Integer, List<Integer>> e : batch.entrySet())
+            stmt.executeUpdate (String.format("UPDATE message SET body_id = %d, msg_text = NULL WHERE msg_id IN (%s) AND body_id IS NULL", e.getKey(), join(e.getValue())));
+         this._connection.commit();
+      }catch (SQLException e){
+         this._connection.rollback();
+         throw e;
+      }finally{
+         stmt.close ();
+         this._connection.setAutoCommit(autoCommit);
+      }//end try
+   }//end update
+
+   /*
+    * msg_text without the padding of its char(300)
+    **/
+   private static String rtrim (String s) {
+      int end = s.length();
+      while (end > 0 && s.charAt(end - 1) == ' ')
+         --end;
+      return s.substring(0, end);
+   }//end rtrim
+
+   private static String join (List<Integer> values) {
+      StringBuilder sb = new StringBuilder();
+      for (Integer v : values) {
+         if (sb.length() > 0)
+            sb.append(", ");
+         sb.append(v);
+      }//end for
+      return sb.toString();
+   }//end join
+
+   public static void main (String[] args) {
+      if (args.length != 3 && !(args.length == 4 && args[3].equals("-prune"))) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            MessageBodyMigration.class.getName () +
+            " <dbname> <port> <user> [-prune]");
+         return;
+      }//end if
+
+      Connection connection = null;
+      try{
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+         connection = DriverManager.getConnection(url, args[2], "");
+         MessageBodyMigration migration = new MessageBodyMigration(connection, Integer.getInteger("messenger.migrationBatch", 1000));
+         if (args.length == 4)
+            migration.prune();
+         else
+            migration.migrate();
+      }catch (Exception e){
+         System.err.println (e.getMessage ());
+      }finally{
+         try{
+            if (connection != null)
+               connection.close ();
+         }catch (SQLException e){
+            // ignored.
+         }//end try
+      }//end try
+   }//end main
+
+}//end MessageBodyMigration
@@ -0,0 +1,629 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+
+/**
+ * This class stores messages in append-only log files instead of the
+ * MESSAGE table. The log is a directory of numbered segments of a fixed
+ * size, each preallocated and memory-mapped, so appending is a copy into
+ * the map and reading a message is a lookup in the per-chat offset index
+ * followed by a read from the map.
+ *
+ * Every record carries a CRC32 of its contents. Opening the log scans the
+ * segments to rebuild the index, stopping at the first record that is
+ * torn or fails its check. Appenders wait until their record is on disk,
+ * but one fsync covers every record appended while the previous one ran
+ * (group commit), optionally after lingering to collect more.
+ *
+ * Deleting a chat appends a tombstone and counts its records as dead;
+ * sealed segments that are mostly dead are rewritten without them in the
+ * background. Tombstones are kept, so a chat stays deleted whatever
+ * segments are rewritten.
+ *
+ * Message ids come from outside, in practice from message_msg_id_seq of
+ * the chat's shard, so they never collide with rows of the MESSAGE table.
+ * The log itself is local to the node that writes it: messages sent
+ * through one node are not seen by clients connected to another.
+ *
+ */
+public class MessageLog {
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   private static final byte MESSAGE = 1;
+   private static final byte TOMBSTONE = 2;
+
+   // length and crc in front of each record
+   private static final int HEADER = 8;
+   // type, chat id, msg id and timestamp at the start of each payload
+   private static final int FIXED = 1 + 4 + 4 + 8;
+
+   /**
+    * Hands out the msg_id of each new message.
+    */
+   public interface MsgIds {
+      /**
+       * @param chat_id the chat the message goes to
+       * @return an id higher than any handed out before for the chat
+       * @throws java.sql.SQLException when no id could be reserved
+       */
+      int next (int chat_id) throws SQLException;
+   }//end MsgIds
+
+   /*
+    * One segment file and its map. The active segment is mapped read-write
+    * at its full size, sealed ones read-only at their written size.
+    **/
+   private static class Segment {
+      final int number;
+      final File file;
+      MappedByteBuffer map;
+      int size;
+      long dead = 0;
+
+      Segment (int number, File file) {
+         this.number = number;
+         this.file = file;
+      }
+   }//end Segment
+
+   /*
+    * Where the messages of one chat are, in msg_id order
+    **/
+   private static class ChatIndex {
+      int[] msgIds = new int[8];
+      long[] positions = new long[8];
+      int[] senders = new int[8];
+      int count = 0;
+      long lastTimestamp = -1;
+
+      void add (int msg_id, long position, int sender, long timestamp) {
+         if (this.count == this.msgIds.length){
+            this.msgIds = Arrays.copyOf(this.msgIds, this.count * 2);
+            this.positions = Arrays.copyOf(this.positions, this.count * 2);
+            this.senders = Arrays.copyOf(this.senders, this.count * 2);
+         }//end if
+         this.msgIds[this.count] = msg_id;
+         this.positions[this.count] = position;
+         this.senders[this.count] = sender;
+         ++this.count;
+         this.lastTimestamp = Math.max(this.lastTimestamp, timestamp);
+      }
+
+      // the index of the first message with an id of at least msg_id
+      int lowerBound (int msg_id) {
+         int i = Arrays.binarySearch(this.msgIds, 0, this.count, msg_id);
+         return i < 0 ? -i - 1 : i;
+      }
+   }//end ChatIndex
+
+   private final File _dir;
+   private final int _segmentBytes;
+   private final long _lingerMillis;
+   private final double _compactRatio;
+   private final LoginDictionary _logins;
+   private final MsgIds _ids;
+
+   // guards the segments, the index and the append position
+   private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+   private final List<Segment> _segments = new ArrayList<Segment>();
+   private final Map<Integer, ChatIndex> _chats = new HashMap<Integer, ChatIndex>();
+   private int _maxMsgId = 0;
+
+   // bytes appended and bytes known to be on disk, for group commit
+   private final Object _syncLock = new Object();
+   private long _written = 0;
+   private long _synced = 0;
+   private boolean _syncing = false;
+
+   private final ExecutorService _compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread (Runnable r) {
+         Thread t = new Thread(r, "message-log-compactor");
+         t.setDaemon(true);
+         return t;
+      }
+   });
+
+   /**
+    * Opens the log in a directory, creating it when absent, and rebuilds
+    * the index from its segments.
+    *
+    * @param dir the directory of the segments
+    * @param logins the dictionary mapping senders to ids
+    * @param ids hands out the ids of new messages
+    * @param segmentBytes the size of each segment
+    * @param lingerMillis how long a sync waits for more records to cover
+    * @param compactRatio the share of dead bytes that gets a segment rewritten
+    * @throws java.io.IOException when failed to read or create the segments
+    */
+   public MessageLog (File dir, LoginDictionary logins, MsgIds ids, int segmentBytes, long lingerMillis, double compactRatio) throws IOException {
+      this._dir = dir;
+      this._logins = logins;
+      this._segmentBytes = Math.max(segmentBytes, 4096);
+      this._lingerMillis = lingerMillis;
+      this._compactRatio = compactRatio;
+      this._ids = ids;
+      if (!dir.isDirectory() && !dir.mkdirs())
+         throw new IOException("cannot create " + dir);
+
+      int number = 0;
+      while (segmentFile(number).exists()) {
+         Segment s = new Segment(number, segmentFile(number));
+         RandomAccessFile f = new RandomAccessFile(s.file, "rw");
+         try{
+            s.map = f.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, f.length());
+         }finally{
+            f.close();
+         }//end try
+         this._segments.add(s);
+         scan(s);
+         ++number;
+      }//end while
+      if (this._segments.isEmpty()){
+         roll();
+      }else{
+         // the last segment goes on taking appends; what follows a torn record is cleared
+         Segment last = this._segments.get(this._segments.size() - 1);
+         if (last.map.capacity() < this._segmentBytes){
+            remap(last, this._segmentBytes);
+         }//end if
+         ByteBuffer tail = last.map.duplicate();
+         tail.position(last.size);
+         byte[] zeros = new byte[Math.min(tail.remaining(), 1 << 16)];
+         while (tail.hasRemaining())
+            tail.put(zeros, 0, Math.min(zeros.length, tail.remaining()));
+         for (int i = 0; i < this._segments.size() - 1; ++i)
+            seal(this._segments.get(i));
+      }//end if
+   }//end MessageLog
+
+   private File segmentFile (int number) {
+      return new File(this._dir, String.format("%010d.seg", number));
+   }//end segmentFile
+
+   private static long position (int segment, int offset) {
+      return ((long) segment << 32) | offset;
+   }//end position
+
+   /*
+    * Reads the records of a segment into the index, up to the first one
+    * that is torn or corrupt
+    **/
+   private void scan (Segment s) {
+      ByteBuffer b = s.map.duplicate();
+      int pos = 0;
+      while (pos + HEADER + FIXED <= b.capacity()) {
+         int length = b.getInt(pos);
+         if (length < FIXED || pos + HEADER + length > b.capacity())
+            break;
+         CRC32 crc = new CRC32();
+         b.limit(pos + HEADER + length).position(pos + HEADER);
+         crc.update(b);
+         b.limit(b.capacity());
+         if ((int) crc.getValue() != b.getInt(pos + 4)){
+            System.err.println(String.format("Message log: %s is corrupt at %d, ignoring the rest", s.file, pos));
+            break;
+         }//end if
+         byte type = b.get(pos + HEADER);
+         int chat_id = b.getInt(pos + HEADER + 1);
+         if (type == TOMBSTONE){
+            ChatIndex dropped = this._chats.remove(chat_id);
+            if (dropped != null)
+               countDead(dropped);
+         }else{
+            int msg_id = b.getInt(pos + HEADER + 5);
+            long timestamp = b.getLong(pos + HEADER + 9);
+            index(chat_id).add(msg_id, position(s.number, pos), this._logins.id(readString(b, pos + HEADER + FIXED, true)), timestamp);
+            this._maxMsgId = Math.max(this._maxMsgId, msg_id);
+         }//end if
+         pos += HEADER + length;
+      }//end while
+      s.size = pos;
+   }//end scan
+
+   private ChatIndex index (int chat_id) {
+      ChatIndex c = this._chats.get(chat_id);
+      if (c == null)
+         this._chats.put(chat_id, c = new ChatIndex());
+      return c;
+   }//end index
+
+   // a string stored as a length (short for the sender, int for the text) and UTF-8 bytes
+   private static String readString (ByteBuffer b, int pos, boolean isShort) {
+      int length = isShort ? b.getShort(pos) : b.getInt(pos);
+      byte[] bytes = new byte[length];
+      ByteBuffer d = b.duplicate();
+      d.position(pos + (isShort ? 2 : 4));
+      d.get(bytes);
+      return new String(bytes, UTF8);
+   }//end readString
+
+   private void remap (Segment s, int size) throws IOException {
+      RandomAccessFile f = new RandomAccessFile(s.file, "rw");
+      try{
+         f.setLength(size);
+         s.map = f.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      }finally{
+         f.close();
+      }//end try
+   }//end remap
+
+   /*
+    * Forces a segment that takes no more appends and trims its file to
+    * what was written
+    **/
+   private void seal (Segment s) throws IOException {
+      s.map.force();
+      RandomAccessFile f = new RandomAccessFile(s.file, "rw");
+      try{
+         f.setLength(s.size);
+         s.map = f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, s.size);
+      }finally{
+         f.close();
+      }//end try
+   }//end seal
+
+   /*
+    * Seals the active segment, if any, and starts the next one
+    **/
+   private void roll () throws IOException {
+      if (!this._segments.isEmpty())
+         seal(this._segments.get(this._segments.size() - 1));
+      Segment s = new Segment(this._segments.size(), segmentFile(this._segments.size()));
+      remap(s, this._segmentBytes);
+      this._segments.add(s);
+   }//end roll
+
+   /**
+    * Appends a message and returns once it is on disk.
+    *
+    * @param chat_id the chat id
+    * @param sender the sender login
+    * @param text the message text
+    * @return the msg_id given to the message
+    * @throws java.io.IOException when failed to write or sync the record
+    */
+   public int append (int chat_id, String sender, String text) throws IOException {
+      int msg_id;
+      long end;
+      this._lock.writeLock().lock();
+      try{
+         // taken under the lock, so each chat's ids are appended in order
+         try{
+            msg_id = this._ids.next(chat_id);
+         }catch (SQLException e){
+            throw new IOException("no msg_id for the message: " + e.getMessage());
+         }//end try
+         this._maxMsgId = Math.max(this._maxMsgId, msg_id);
+         long timestamp = System.currentTimeMillis();
+         long position = write(MESSAGE, chat_id, msg_id, timestamp, sender.trim(), text);
+         index(chat_id).add(msg_id, position, this._logins.id(sender), timestamp);
+         end = this._written;
+      }finally{
+         this._lock.writeLock().unlock();
+      }//end try
+      sync(end);
+      return msg_id;
+   }//end append
+
+   /**
+    * Deletes the messages of a chat, durably, and has the segments holding
+    * them compacted once they are mostly dead.
+    *
+    * @param chat_id the chat id
+    * @throws java.io.IOException when failed to write or sync the tombstone
+    */
+   public void deleteChat (int chat_id) throws IOException {
+      long end;
+      this._lock.writeLock().lock();
+      try{
+         ChatIndex dropped = this._chats.remove(chat_id);
+         if (dropped == null)
+            return;
+         write(TOMBSTONE, chat_id, 0, System.currentTimeMillis(), "", "");
+         countDead(dropped);
+         end = this._written;
+      }finally{
+         this._lock.writeLock().unlock();
+      }//end try
+      sync(end);
+      this._compactor.execute(new Runnable() {
+         public void run () {
+            try{
+               compact();
+            }catch (IOException e){
+               System.err.println("Message log compaction failed: " + e.getMessage());
+            }//end try
+         }
+      });
+   }//end deleteChat
+
+   private void countDead (ChatIndex dropped) {
+      for (int i = 0; i < dropped.count; ++i) {
+         Segment s = this._segments.get((int) (dropped.positions[i] >>> 32));
+         s.dead += HEADER + s.map.getInt((int) dropped.positions[i]);
+      }//end for
+   }//end countDead
+
+   /*
+    * Writes a record at the end of the active segment, rolling to a new
+    * one when it does not fit. Called with the write lock held.
+    **/
+   private long write (byte type, int chat_id, int msg_id, long timestamp, String sender, String text) throws IOException {
+      byte[] s = sender.getBytes(UTF8);
+      byte[] t = text.getBytes(UTF8);
+      int length = FIXED + 2 + s.length + 4 + t.length;
+      if (HEADER + length > this._segmentBytes)
+         throw new IOException("message too large for a log segment");
+      Segment active = this._segments.get(this._segments.size() - 1);
+      if (active.size + HEADER + length > active.map.capacity()){
+         roll();
+         active = this._segments.get(this._segments.size() - 1);
+      }//end if
+
+      ByteBuffer payload = ByteBuffer.allocate(length);
+      payload.put(type).putInt(chat_id).putInt(msg_id).putLong(timestamp);
+      payload.putShort((short) s.length).put(s).putInt(t.length).put(t);
+      CRC32 crc = new CRC32();
+      crc.update(payload.array());
+
+      ByteBuffer b = active.map.duplicate();
+      b.position(active.size);
+      b.putInt(length).putInt((int) crc.getValue()).put(payload.array());
+      long position = position(active.number, active.size);
+      active.size += HEADER + length;
+      synchronized (this._syncLock) {
+         this._written += HEADER + length;
+      }
+      return position;
+   }//end write
+
+   /*
+    * Waits until everything up to end is on disk. The first waiter forces
+    * the active segment for everyone who appended before it started;
+    * those arriving meanwhile wait for the next force.
+    **/
+   private void sync (long end) throws IOException {
+      while (true) {
+         synchronized (this._syncLock) {
+            while (this._syncing && this._synced < end) {
+               try{
+                  this._syncLock.wait();
+               }catch (InterruptedException e){
+                  Thread.currentThread().interrupt();
+                  throw new IOException("interrupted waiting for the message log to sync");
+               }//end try
+            }//end while
+            if (this._synced >= end)
+               return;
+            this._syncing = true;
+         }
+         long target = 0;
+         boolean forced = false;
+         try{
+            if (this._lingerMillis > 0){
+               try{
+                  Thread.sleep(this._lingerMillis);
+               }catch (InterruptedException e){
+                  Thread.currentThread().interrupt();
+               }//end try
+            }//end if
+            synchronized (this._syncLock) {
+               target = this._written;
+            }
+            // read after the target: earlier bytes in sealed segments were forced when rolled over
+            MappedByteBuffer active;
+            this._lock.readLock().lock();
+            try{
+               active = this._segments.get(this._segments.size() - 1).map;
+            }finally{
+               this._lock.readLock().unlock();
+            }//end try
+            active.force();
+            forced = true;
+         }finally{
+            synchronized (this._syncLock) {
+               if (forced)
+                  this._synced = Math.max(this._synced, target);
+               this._syncing = false;
+               this._syncLock.notifyAll();
+            }
+         }//end try
+      }//end while
+   }//end sync
+
+   /**
+    * @return the highest msg_id in the log, 0 when empty
+    */
+   public int maxMsgId () {
+      this._lock.readLock().lock();
+      try{
+         return this._maxMsgId;
+      }finally{
+         this._lock.readLock().unlock();
+      }//end try
+   }//end maxMsgId
+
+   /**
+    * @param chat_id the chat id
+    * @return the id of the chat's newest message in the log, 0 when none
+    */
+   public int lastMsgId (int chat_id) {
+      this._lock.readLock().lock();
+      try{
+         ChatIndex c = this._chats.get(chat_id);
+         return c == null || c.count == 0 ? 0 : c.msgIds[c.count - 1];
+      }finally{
+         this._lock.readLock().unlock();
+      }//end try
+   }//end lastMsgId
+
+   /**
+    * @param chat_id the chat id
+    * @return the time of the chat's newest message in the log, or null when none
+    */
+   public Timestamp lastTimestamp (int chat_id) {
+      this._lock.readLock().lock();
+      try{
+         ChatIndex c = this._chats.get(chat_id);
+         return c == null || c.lastTimestamp < 0 ? null : new Timestamp(c.lastTimestamp);
+      }finally{
+         this._lock.readLock().unlock();
+      }//end try
+   }//end lastTimestamp
+
+   /**
+    * @param chat_id the chat id
+    * @param last_read the id of the last message the reader has read
+    * @param reader the reader login, whose own messages count as read
+    * @return the messages in the log after last_read not sent by reader
+    */
+   public int unread (int chat_id, int last_read, String reader) {
+      int id = this._logins.find(reader);
+      this._lock.readLock().lock();
+      try{
+         ChatIndex c = this._chats.get(chat_id);
+         if (c == null)
+            return 0;
+         int n = 0;
+         for (int i = c.lowerBound(last_read + 1); i < c.count; ++i) {
+            if (c.senders[i] != id)
+               ++n;
+         }//end for
+         return n;
+      }finally{
+         this._lock.readLock().unlock();
+      }//end try
+   }//end unread
+
+   /**
+    * @param chat_id the chat id
+    * @param before the msg_id to page below
+    * @param limit the most messages to return
+    * @return up to limit messages of the chat with ids below before, oldest first
+    */
+   public List<MessengerStorage.Message> messagesBefore (int chat_id, int before, int limit) {
+      List<MessengerStorage.Message> page = new ArrayList<MessengerStorage.Message>();
+      this._lock.readLock().lock();
+      try{
+         ChatIndex c = this._chats.get(chat_id);
+         if (c == null)
+            return page;
+         int to = c.lowerBound(before);
+         for (int i = Math.max(0, to - limit); i < to; ++i) {
+            ByteBuffer b = this._segments.get((int) (c.positions[i] >>> 32)).map;
+            int pos = (int) c.positions[i] + HEADER;
+            String sender = readString(b, pos + FIXED, true);
+            String text = readString(b, pos + FIXED + 2 + b.getShort(pos + FIXED), false);
+            page.add(new MessengerStorage.Message(b.getInt(pos + 5), text, new Timestamp(b.getLong(pos + 9)), sender));
+         }//end for
+      }finally{
+         this._lock.readLock().unlock();
+      }//end try
+      return page;
+   }//end messagesBefore
+
+   /**
+    * Rewrites the sealed segments whose share of dead bytes has reached
+    * the compaction ratio, keeping live records and tombstones.
+    *
+    * @throws java.io.IOException when failed to rewrite a segment
+    */
+   public void compact () throws IOException {
+      this._lock.writeLock().lock();
+      try{
+         for (int i = 0; i < this._segments.size() - 1; ++i) {
+            Segment s = this._segments.get(i);
+            if (s.size > 0 && s.dead >= s.size * this._compactRatio)
+               rewrite(s);
+         }//end for
+      }finally{
+         this._lock.writeLock().unlock();
+      }//end try
+   }//end compact
+
+   /*
+    * Copies the live records of a sealed segment to a new file, swaps it
+    * in and points the index at the new offsets. Called with the write
+    * lock held.
+    **/
+   private void rewrite (Segment s) throws IOException {
+      ByteBuffer b = s.map.duplicate();
+      ByteBuffer out = ByteBuffer.allocate(s.size - (int) s.dead);
+      List<int[]> moved = new ArrayList<int[]>();
+      for (int pos = 0; pos < s.size; ) {
+         int length = b.getInt(pos);
+         int chat_id = b.getInt(pos + HEADER + 1);
+         boolean live = b.get(pos + HEADER) == TOMBSTONE;
+         if (!live){
+            int msg_id = b.getInt(pos + HEADER + 5);
+            ChatIndex c = this._chats.get(chat_id);
+            int i = c == null ? -1 : c.lowerBound(msg_id);
+            live = i >= 0 && i < c.count && c.positions[i] == position(s.number, pos);
+            if (live)
+               moved.add(new int[] { chat_id, i, out.position() });
+         }//end if
+         if (live){
+            b.limit(pos + HEADER + length).position(pos);
+            out.put(b);
+            b.limit(b.capacity());
+         }//end if
+         pos += HEADER + length;
+      }//end for
+
+      File tmp = new File(this._dir, s.file.getName() + ".compact");
+      RandomAccessFile f = new RandomAccessFile(tmp, "rw");
+      try{
+         f.setLength(0);
+         out.flip();
+         f.getChannel().write(out);
+         f.getChannel().force(true);
+      }finally{
+         f.close();
+      }//end try
+      Files.move(tmp.toPath(), s.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      s.size = (int) s.file.length();
+      s.dead = 0;
+      f = new RandomAccessFile(s.file, "r");
+      try{
+         s.map = f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, s.size);
+      }finally{
+         f.close();
+      }//end try
+      for (int[] m : moved)
+         this._chats.get(m[0]).positions[m[1]] = position(s.number, m[2]);
+   }//end rewrite
+
+   /**
+    * Forces what was appended and stops the compactor.
+    */
+   public void close () {
+      this._compactor.shutdown();
+      this._lock.writeLock().lock();
+      try{
+         this._segments.get(this._segments.size() - 1).map.force();
+      }finally{
+         this._lock.writeLock().unlock();
+      }//end try
+   }//end close
+
+}//end MessageLog
@@ -18,11 +18,27 @@ import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.io.File;
+import java.io.IOException;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.lang.management.ManagementFactory;
+import javax.management.ObjectName;
  
 
 /**
@@ -35,11 +51,66 @@ public class Messenger {
    // reference to physical database connection.
    private Connection _connection = null;
 
+   // the shards, each routing read-only statements between its primary
+   // and replicas. Shard 0 is the database given on the command line.
+   private ShardRouter _shards = null;
+
+   // runs the per-shard queries of a scatter-gather in parallel
+   private ExecutorService _scatter = null;
+
+   // dense int ids for logins held by the in-memory structures
+   private final LoginDictionary _logins = new LoginDictionary();
+
+   // chat membership, types and initial senders, held in memory
+   private MembershipIndex _membership = null;
+
+   // versioned status messages and the feed of their changes
+   private final StatusCache _statuses = new StatusCache(
+         Integer.getInteger("messenger.statusCacheSize", 100000),
+         Integer.getInteger("messenger.statusFeedSize", 10000));
+
+   // contact and block lists as a graph for contact suggestions, loaded on first use
+   private final ContactGraph _contactGraph = new ContactGraph(this._logins,
+         Integer.getInteger("messenger.contactGraphCompact", 10000),
+         Integer.getInteger("messenger.suggestions", 10));
+
+   // per-user write rates and the global limit on concurrent writes
+   private final AdmissionController _admission = new AdmissionController(
+         Double.parseDouble(System.getProperty("messenger.writesPerSecond", "5")),
+         Integer.getInteger("messenger.writeBurst", 20),
+         Integer.getInteger("messenger.maxConcurrentWrites", 16),
+         Long.getLong("messenger.writeQueueMillis", 200),
+         Integer.getInteger("messenger.admissionUsers", 100000));
+
+   // users, lists, chats and messages, in the database or in memory
+   private MessengerStorage _storage = null;
+
+   // the storage operations as futures, for overlapping them
+   private AsyncMessenger _async = null;
+
+   // message texts in MESSAGE_BODY, deduplicated and compressed
+   private MessageBodies _bodies = null;
+
+   // messages kept in log files instead of the MESSAGE table, when configured
+   private MessageLog _messageLog = null;
+
+   // USR rows without passwords, read through by PostgresStorage
+   private final ProfileCache _profiles = new ProfileCache(
+         Integer.getInteger("messenger.profileCacheSize", 100000));
+
+   // tells the profile and status caches which USR rows changed
+   private InvalidationChannel _invalidation = null;
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
                                 new InputStreamReader(System.in));
 
+   // status version each user's last contact listing was taken at, by login.
+   // The status feed only holds the setStatus calls of this process; changes
+   // made on other nodes invalidate the cache but never show up as changes.
+   static Map<String, Long> contactsSnapshotVersion = new HashMap<String, Long>();
+
    /**
     * Creates a new instance of Messenger
     *
@@ -59,6 +130,42 @@ public class Messenger {
 
          // obtain a physical connection
          this._connection = DriverManager.getConnection(url, user, passwd);
+
+         // further shards are given as a comma separated list of port[/dbname]
+         List<ReplicaRouter> shards = new ArrayList<ReplicaRouter>();
+         List<String> specs = new ArrayList<String>();
+         shards.add(connectReplicas(this._connection, 0, dbname, user, passwd));
+         specs.add(dbport);
+         for (String spec : System.getProperty("messenger.shards", "").split(",")) {
+            if (spec.trim().isEmpty())
+               continue;
+            specs.add(spec);
+            Connection primary = connect(spec, dbname, user, passwd);
+            shards.add(connectReplicas(primary, shards.size(), dbname, user, passwd));
+         }//end for
+         this._shards = new ShardRouter(shards);
+         if (this._shards.isSharded()){
+            this._scatter = Executors.newFixedThreadPool(this._shards.count(), new ThreadFactory() {
+               public Thread newThread (Runnable r) {
+                  Thread t = new Thread(r, "shard-scatter");
+                  t.setDaemon(true);
+                  return t;
+               }
+            });
+         }//end if
+
+         this._membership = new MembershipIndex(
+               Boolean.parseBoolean(System.getProperty("messenger.membershipIndex", "true")), this._logins);
+         this._membership.load(this._shards);
+         openMessageLog();
+         this._bodies = new MessageBodies(this._shards,
+               Boolean.parseBoolean(System.getProperty("messenger.messageBodies", "false")),
+               Integer.getInteger("messenger.compressMinBytes", 64),
+               Integer.getInteger("messenger.bodyCacheSize", 10000));
+         openInvalidation(specs, dbname, user, passwd);
+         this._storage = new PostgresStorage(this);
+         this._async = AsyncMessenger.open(this._storage);
+         registerAdmissionMBean();
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -67,6 +174,310 @@ public class Messenger {
       }//end catch
    }//end Messenger
 
+   /**
+    * Creates a new instance of Messenger on a storage that needs no
+    * database, such as InMemoryStorage
+    *
+    * @param storage the storage of users, lists, chats and messages
+    */
+   public Messenger (MessengerStorage storage) {
+      this._storage = storage;
+      this._async = AsyncMessenger.open(storage);
+      registerAdmissionMBean();
+   }//end Messenger
+
+   /*
+    * Opens the message log named by messenger.messageLog, if any. Its ids
+    * come from message_msg_id_seq of each chat's shard, like those of the
+    * MESSAGE table, so the two never collide. The sequences are first
+    * moved past the ids already in the log, which older versions drew on
+    * their own.
+    **/
+   private void openMessageLog () throws SQLException, IOException {
+      String dir = System.getProperty("messenger.messageLog");
+      if (dir == null || dir.trim().isEmpty())
+         return;
+      this._messageLog = new MessageLog(new File(dir.trim()), this._logins, new MessageLog.MsgIds() {
+               public int next (int chat_id) throws SQLException {
+                  return chatShard(chat_id).ids("message_msg_id_seq").next();
+               }
+            },
+            Integer.getInteger("messenger.logSegmentBytes", 64 << 20),
+            Long.getLong("messenger.logLingerMillis", 2),
+            Double.parseDouble(System.getProperty("messenger.logCompactRatio", "0.5")));
+      int max = this._messageLog.maxMsgId();
+      for (int s = 0; s < this._shards.count(); ++s)
+         executeQueryAndReturnResult(this._shards.shard(s), String.format("SELECT setval('message_msg_id_seq', %d) FROM message_msg_id_seq WHERE last_value < %d", max, max));
+   }//end openMessageLog
+
+   /*
+    * Starts the channel named by messenger.invalidation: "postgres" (the
+    * default) listens to the USR changes of every shard on connections of
+    * its own, "local" only sees the changes made through this process.
+    **/
+   private void openInvalidation (List<String> specs, String dbname, String user, String passwd) {
+      if (!"local".equals(System.getProperty("messenger.invalidation", "postgres"))){
+         List<Connection> connections = new ArrayList<Connection>();
+         try{
+            for (String spec : specs)
+               connections.add(connect(spec, dbname, user, passwd));
+            this._invalidation = new PostgresInvalidationChannel(connections,
+                  Long.getLong("messenger.invalidationPollMillis", 100),
+                  Long.getLong("messenger.invalidationRetainMillis", 3600000));
+         }catch (SQLException e){
+            System.err.println("USR changes of other nodes will not be seen, run triggers.sql: " + e.getMessage());
+            for (Connection conn : connections) {
+               try{
+                  conn.close();
+               }catch (SQLException ignored){
+                  // ignored.
+               }//end try
+            }//end for
+         }//end try
+      }//end if
+      if (this._invalidation == null)
+         this._invalidation = new LocalInvalidationChannel();
+      this._invalidation.subscribe(new InvalidationChannel.Listener() {
+         public void invalidated (String login) {
+            _profiles.invalidated(login);
+            _statuses.invalidate(login);
+         }
+         public void invalidatedAll () {
+            _profiles.invalidatedAll();
+            _statuses.invalidateAll();
+         }
+      });
+   }//end openInvalidation
+
+   /*
+    * Publishes the admission counters over JMX, e.g. to jconsole
+    **/
+   private void registerAdmissionMBean () {
+      try{
+         ManagementFactory.getPlatformMBeanServer().registerMBean(this._admission,
+               new ObjectName("messenger:type=AdmissionController"));
+      }catch (Exception e){
+         System.err.println("Admission counters are not available over JMX: " + e.getMessage());
+      }//end try
+   }//end registerAdmissionMBean
+
+   /*
+    * Opens a connection given as port[/dbname] on this machine
+    **/
+   private static Connection connect (String spec, String dbname, String user, String passwd) throws SQLException {
+      spec = spec.trim();
+      String url = "jdbc:postgresql://localhost:" + (spec.indexOf('/') < 0 ? spec + "/" + dbname : spec);
+      System.out.println ("Connection URL: " + url);
+      return DriverManager.getConnection(url, user, passwd);
+   }//end connect
+
+   /*
+    * Connects the replicas of a shard, listed in messenger.replicas.<shard>
+    * (or messenger.replicas for shard 0), and wraps them in a router
+    **/
+   private static ReplicaRouter connectReplicas (Connection primary, int shard, String dbname, String user, String passwd) throws SQLException {
+      String replicaSpec = System.getProperty("messenger.replicas." + shard,
+            shard == 0 ? System.getProperty("messenger.replicas", "") : "");
+      List<Connection> replicas = new ArrayList<Connection>();
+      for (String spec : replicaSpec.split(",")) {
+         if (!spec.trim().isEmpty())
+            replicas.add(connect(spec, dbname, user, passwd));
+      }//end for
+      return new ReplicaRouter(primary, replicas,
+            Long.getLong("messenger.maxStalenessMillis", 5000),
+            Long.getLong("messenger.stickinessMillis", 5000),
+            Integer.getInteger("messenger.idBlockSize", 20));
+   }//end connectReplicas
+
+   /**
+    * @param login the user login
+    * @return the shard holding the user's USR and list rows
+    */
+   public ReplicaRouter userShard (String login) {
+      return this._shards.forLogin(login);
+   }//end userShard
+
+   /**
+    * @param chat_id the chat id
+    * @return the shard holding the chat's CHAT, CHAT_LIST and MESSAGE rows
+    */
+   public ReplicaRouter chatShard (int chat_id) {
+      return this._shards.forChat(chat_id);
+   }//end chatShard
+
+   /**
+    * @return the login dictionary shared by the in-memory structures
+    */
+   public LoginDictionary logins () {
+      return this._logins;
+   }//end logins
+
+   /**
+    * @return the in-memory chat membership index
+    */
+   public MembershipIndex membership () {
+      return this._membership;
+   }//end membership
+
+   /**
+    * @return the status cache and change feed
+    */
+   public StatusCache statuses () {
+      return this._statuses;
+   }//end statuses
+
+   /**
+    * @return the profile cache
+    */
+   public ProfileCache profiles () {
+      return this._profiles;
+   }//end profiles
+
+   /**
+    * @return the channel announcing USR changes
+    */
+   public InvalidationChannel invalidation () {
+      return this._invalidation;
+   }//end invalidation
+
+   /**
+    * @return the contact graph, without loading it
+    */
+   public ContactGraph contactGraph () {
+      return this._contactGraph;
+   }//end contactGraph
+
+   /**
+    * @return the storage the user interface works on
+    */
+   public MessengerStorage storage () {
+      return this._storage;
+   }//end storage
+
+   /**
+    * @return the storage operations as futures
+    */
+   public AsyncMessenger async () {
+      return this._async;
+   }//end async
+
+   /**
+    * @return the message bodies of the MESSAGE table
+    */
+   public MessageBodies messageBodies () {
+      return this._bodies;
+   }//end messageBodies
+
+   /**
+    * @return the message log, or null when messages are kept in the MESSAGE table
+    */
+   public MessageLog messageLog () {
+      return this._messageLog;
+   }//end messageLog
+
+   /**
+    * @return the admission control of the write path
+    */
+   public AdmissionController admission () {
+      return this._admission;
+   }//end admission
+
+   /**
+    * @return the contact graph, loaded from every shard if this is its first use
+    * @throws java.sql.SQLException when failed to load the graph
+    */
+   public ContactGraph loadedContactGraph () throws SQLException {
+      this._contactGraph.ensureLoaded(this._shards);
+      return this._contactGraph;
+   }//end loadedContactGraph
+
+   /**
+    * Looks up the status of several users, from the status cache where
+    * possible. The misses are read from the primaries with one query per
+    * shard, since a replica may still show a status older than the
+    * invalidations already received, and cached unless a login was
+    * invalidated meanwhile.
+    *
+    * @param logins the logins, as stored in the database
+    * @return the status of each login that exists, keyed by trimmed login
+    * @throws java.sql.SQLException when failed to execute the queries
+    */
+   public Map<String, String> statusesOf (Collection<String> logins) throws SQLException {
+      Map<String, String> result = new HashMap<String, String>();
+      List<String> misses = new ArrayList<String>();
+      for (String login : logins) {
+         StatusCache.Entry e = this._statuses.get(login);
+         if (e != null)
+            result.put(login.trim(), e.status);
+         else
+            misses.add(sanitize_input(login.trim()));
+      }//end for
+      if (misses.isEmpty())
+         return result;
+
+      long generation = this._statuses.generation();
+      Map<Integer, String> queries = new HashMap<Integer, String>();
+      for (Map.Entry<Integer, List<String>> e : groupByShard(this, misses).entrySet())
+         queries.put(e.getKey(), String.format("SELECT login, status FROM usr WHERE login IN (%s)", sqlList(e.getValue())));
+      for (List<String> r : gatherQueries(queries, false)) {
+         String status = r.get(1) == null ? null : r.get(1).trim();
+         this._statuses.load(r.get(0), status, generation);
+         result.put(r.get(0).trim(), status);
+      }//end for
+      return result;
+   }//end statusesOf
+
+   /**
+    * Authorization check in front of chat actions, answered from the
+    * membership index when it knows the member and else from CHAT_LIST.
+    *
+    * @param chat_id the chat id
+    * @param member the login, as escaped by sanitize_input
+    * @return true when member belongs to the chat
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean isChatMember (int chat_id, String member) throws SQLException {
+      if (this._membership.isEnabled() && this._membership.isMember(chat_id, unsanitize_input(member)))
+         return true;
+      String query = String.format("SELECT * FROM chat_list WHERE chat_id = %d AND member='%s'", chat_id, member);
+      return executeQuery(chatShard(chat_id), query) > 0;
+   }//end isChatMember
+
+   /**
+    * @param chat_id the chat id
+    * @return the initial sender of the chat, or null when there is no such chat
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public String chatInitSender (int chat_id) throws SQLException {
+      String sender = this._membership.isEnabled() ? this._membership.initSender(chat_id) : null;
+      if (sender != null)
+         return sender;
+      String query = String.format("SELECT init_sender FROM chat WHERE chat_id = %d", chat_id);
+      List<List<String>> result = executeQueryAndReturnResult(chatShard(chat_id), query);
+      return result.isEmpty() ? null : result.get(0).get(0).trim();
+   }//end chatInitSender
+
+   /**
+    * @param chat_id the chat id
+    * @return the number of members, from the membership index or else the
+    *         member_count maintained on CHAT
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int chatMemberCount (int chat_id) throws SQLException {
+      if (this._membership.isEnabled() && this._membership.hasChat(chat_id))
+         return this._membership.memberCount(chat_id);
+      String query = String.format("SELECT member_count FROM chat WHERE chat_id = %d", chat_id);
+      List<List<String>> result = executeQueryAndReturnResult(chatShard(chat_id), query);
+      return result.isEmpty() ? 0 : Integer.parseInt(result.get(0).get(0).trim());
+   }//end chatMemberCount
+
+   /**
+    * @return the shard router
+    */
+   public ShardRouter shards () {
+      return this._shards;
+   }//end shards
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
@@ -75,16 +486,69 @@ public class Messenger {
     * @throws java.sql.SQLException when update failed
     */
    public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      executeUpdate (this._shards.shard(0), sql);
+   }//end executeUpdate
 
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+   /**
+    * Same as executeUpdate, on the primary of the given shard.
+    *
+    * @param shard the shard to update
+    * @param sql the input SQL string
+    * @throws java.sql.SQLException when update failed
+    */
+   public void executeUpdate (ReplicaRouter shard, String sql) throws SQLException {
+      Connection conn = shard.primary();
+      // held by executeTransaction too, so the update cannot land inside its transaction
+      synchronized (conn) {
+         // creates a statement object
+         Statement stmt = conn.createStatement ();
+
+         // issues the update instruction
+         stmt.executeUpdate (sql);
+
+         // close the instruction
+         stmt.close ();
+      }
 
-      // close the instruction
-      stmt.close ();
+      // keep this session's following reads on the primary
+      shard.markWrite ();
    }//end executeUpdate
 
+   /**
+    * Method to execute several update SQL statements on the primary of the
+    * given shard as one transaction. Either all of them take effect or,
+    * when one fails, none of them.
+    *
+    * Connections are shared by concurrent callers (see AsyncMessenger), so
+    * every statement run on one, here and in the other execute methods,
+    * holds the connection's monitor.
+    *
+    * @param shard the shard to update
+    * @param sql the input SQL strings
+    * @throws java.sql.SQLException when update failed
+    */
+   public void executeTransaction (ReplicaRouter shard, String... sql) throws SQLException {
+      Connection conn = shard.primary();
+      // the connection is shared, so its transaction must not interleave with another
+      synchronized (conn) {
+         conn.setAutoCommit (false);
+         try{
+            Statement stmt = conn.createStatement ();
+            for (String s : sql)
+               stmt.addBatch (s);
+            stmt.executeBatch ();
+            stmt.close ();
+            conn.commit ();
+         }catch (SQLException e){
+            conn.rollback ();
+            throw e;
+         }finally{
+            conn.setAutoCommit (true);
+         }//end try
+      }
+      shard.markWrite ();
+   }//end executeTransaction
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
@@ -95,37 +559,63 @@ public class Messenger {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-	 if(outputHeader){
-	    for(int i = 1; i <= numCol; i++){
-		System.out.print(rsmd.getColumnName(i) + "\t");
-	    }
-	    System.out.println();
-	    outputHeader = false;
-	 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
+      return executeQueryAndPrintResult (this._connection, query);
+   }//end executeQueryAndPrintResult
+
+   public int executeQueryAndPrintResult (ReplicaRouter shard, String query) throws SQLException {
+      return executeQueryAndPrintResult (shard.primary(), query);
+   }//end executeQueryAndPrintResult
+
+   /**
+    * Same as executeQueryAndPrintResult, but the query is read-only and may
+    * be served by a replica within the configured staleness tolerance.
+    *
+    * @param query the input query string
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeReadQueryAndPrintResult (String query) throws SQLException {
+      return executeReadQueryAndPrintResult (this._shards.shard(0), query);
+   }//end executeReadQueryAndPrintResult
+
+   public int executeReadQueryAndPrintResult (ReplicaRouter shard, String query) throws SQLException {
+      return executeQueryAndPrintResult (shard.forRead (), query);
+   }//end executeReadQueryAndPrintResult
+
+   private static int executeQueryAndPrintResult (Connection conn, String query) throws SQLException {
+      synchronized (conn) {
+         // creates a statement object
+         Statement stmt = conn.createStatement ();
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery (query);
+
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+         int rowCount = 0;
+
+         // iterates through the result set and output them to standard out.
+         boolean outputHeader = true;
+         while (rs.next()){
+   	 if(outputHeader){
+   	    for(int i = 1; i <= numCol; i++){
+   		System.out.print(rsmd.getColumnName(i) + "\t");
+   	    }
+   	    System.out.println();
+   	    outputHeader = false;
+   	 }
+            for (int i=1; i<=numCol; ++i)
+               System.out.print (rs.getString (i) + "\t");
+            System.out.println ();
+            ++rowCount;
+         }//end while
+         stmt.close ();
+         return rowCount;
+      }
    }//end executeQuery
 
    /**
@@ -138,31 +628,107 @@ public class Messenger {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-      // creates a statement object 
-      Statement stmt = this._connection.createStatement (); 
+      return executeQueryAndReturnResult (this._connection, query);
+   }//end executeQueryAndReturnResult
+
+   public List<List<String>> executeQueryAndReturnResult (ReplicaRouter shard, String query) throws SQLException {
+      return executeQueryAndReturnResult (shard.primary(), query);
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Same as executeQueryAndReturnResult, but the query is read-only and may
+    * be served by a replica within the configured staleness tolerance.
+    *
+    * @param query the input query string
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeReadQueryAndReturnResult (String query) throws SQLException {
+      return executeReadQueryAndReturnResult (this._shards.shard(0), query);
+   }//end executeReadQueryAndReturnResult
+
+   public List<List<String>> executeReadQueryAndReturnResult (ReplicaRouter shard, String query) throws SQLException {
+      return executeQueryAndReturnResult (shard.forRead (), query);
+   }//end executeReadQueryAndReturnResult
+
+   /**
+    * Scatter-gather: runs one read-only query on each of the given shards
+    * in parallel and concatenates the records they return.
+    *
+    * @param queries the query to run, keyed by shard index
+    * @return the records of all queries, in no particular order
+    * @throws java.sql.SQLException when any of the queries failed
+    */
+   public List<List<String>> gatherReadQueries (Map<Integer, String> queries) throws SQLException {
+      return gatherQueries (queries, true);
+   }//end gatherReadQueries
+
+   /**
+    * Scatter-gather as gatherReadQueries, on the replicas or the primaries.
+    *
+    * @param queries the query to run, keyed by shard index
+    * @param replicas false to run every query on its shard's primary
+    * @return the records of all queries, in no particular order
+    * @throws java.sql.SQLException when any of the queries failed
+    */
+   public List<List<String>> gatherQueries (Map<Integer, String> queries, final boolean replicas) throws SQLException {
+      List<List<String>> result = new ArrayList<List<String>>();
+      if (this._scatter == null){
+         for (Map.Entry<Integer, String> e : queries.entrySet()) {
+            ReplicaRouter shard = this._shards.shard(e.getKey());
+            result.addAll(executeQueryAndReturnResult(replicas ? shard.forRead () : shard.primary (), e.getValue()));
+         }//end for
+         return result;
+      }//end if
+
+      List<Future<List<List<String>>>> parts = new ArrayList<Future<List<List<String>>>>();
+      for (Map.Entry<Integer, String> e : queries.entrySet()) {
+         final ReplicaRouter shard = this._shards.shard(e.getKey());
+         final String query = e.getValue();
+         parts.add(this._scatter.submit(new Callable<List<List<String>>>() {
+            public List<List<String>> call () throws SQLException {
+               return executeQueryAndReturnResult (replicas ? shard.forRead () : shard.primary (), query);
+            }
+         }));
+      }//end for
+      try{
+         for (Future<List<List<String>>> part : parts)
+            result.addAll(part.get());
+      }catch (Exception e){
+         Throwable cause = e.getCause() != null ? e.getCause() : e;
+         throw new SQLException("Scatter-gather failed: " + cause.getMessage());
+      }//end try
+      return result;
+   }//end gatherQueries
+
+   private static List<List<String>> executeQueryAndReturnResult (Connection conn, String query) throws SQLException { 
+      synchronized (conn) {
+         // creates a statement object 
+         Statement stmt = conn.createStatement (); 
  
-      // issues the query instruction 
-      ResultSet rs = stmt.executeQuery (query); 
+         // issues the query instruction 
+         ResultSet rs = stmt.executeQuery (query); 
  
-      /* 
-       ** obtains the metadata object for the returned result set.  The metadata 
-       ** contains row and column info. 
-       */ 
-      ResultSetMetaData rsmd = rs.getMetaData (); 
-      int numCol = rsmd.getColumnCount (); 
-      int rowCount = 0; 
+         /* 
+          ** obtains the metadata object for the returned result set.  The metadata 
+          ** contains row and column info. 
+          */ 
+         ResultSetMetaData rsmd = rs.getMetaData (); 
+         int numCol = rsmd.getColumnCount (); 
+         int rowCount = 0; 
  
-      // iterates through the result set and saves the data returned by the query. 
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>(); 
-      while (rs.next()){
-          List<String> record = new ArrayList<String>(); 
-         for (int i=1; i<=numCol; ++i) 
-            record.add(rs.getString (i)); 
-         result.add(record); 
-      }//end while 
-      stmt.close (); 
-      return result; 
+         // iterates through the result set and saves the data returned by the query. 
+         boolean outputHeader = false;
+         List<List<String>> result  = new ArrayList<List<String>>(); 
+         while (rs.next()){
+             List<String> record = new ArrayList<String>(); 
+            for (int i=1; i<=numCol; ++i) 
+               record.add(rs.getString (i)); 
+            result.add(record); 
+         }//end while 
+         stmt.close (); 
+         return result; 
+      }
    }//end executeQueryAndReturnResult
 
    /**
@@ -174,20 +740,27 @@ public class Messenger {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+       return executeQuery (this._shards.shard(0), query);
+   }//end executeQuery
+
+   public int executeQuery (ReplicaRouter shard, String query) throws SQLException {
+      Connection conn = shard.primary();
+      synchronized (conn) {
+          // creates a statement object
+          Statement stmt = conn.createStatement ();
 
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+          // issues the query instruction
+          ResultSet rs = stmt.executeQuery (query);
 
-       int rowCount = 0;
+          int rowCount = 0;
 
-       // iterates through the result set and count nuber of results.
-       while(rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+          // iterates through the result set and count nuber of results.
+          while(rs.next()){
+             rowCount++;
+          }//end while
+          stmt.close ();
+          return rowCount;
+      }
    }
 
    /**
@@ -200,18 +773,47 @@ public class Messenger {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
+	return getCurrSeqVal(this._shards.shard(0), sequence);
+   }
+
+   public int getCurrSeqVal(ReplicaRouter shard, String sequence) throws SQLException {
+	Connection conn = shard.primary();
+	synchronized (conn) {
+	Statement stmt = conn.createStatement ();
 	
 	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
 	if (rs.next())
 		return rs.getInt(1);
 	return -1;
+	}
    }
 
    /**
     * Method to close the physical connection if it is open.
     */
    public void cleanup(){
+      if (this._async != null){
+         this._async.close ();
+      }//end if
+      if (this._invalidation != null){
+         this._invalidation.close ();
+      }//end if
+      if (this._messageLog != null){
+         this._messageLog.close ();
+      }//end if
+      if (this._scatter != null){
+         this._scatter.shutdownNow ();
+      }//end if
+      if (this._shards != null){
+         this._shards.close ();
+         for (int i = 1; i < this._shards.count(); ++i){
+            try{
+               this._shards.shard(i).primary().close ();
+            }catch (SQLException e){
+               // ignored.
+            }//end try
+         }//end for
+      }//end if
       try{
          if (this._connection != null){
             this._connection.close ();
@@ -221,18 +823,117 @@ public class Messenger {
       }//end try
    }//end cleanup
 
+   /**
+    * Records that member belongs to chat_id in the chat directory on the
+    * member's shard. The directory answers "all chats of a user" without
+    * visiting every shard; it is only kept when there is more than one.
+    *
+    * @param member the member login
+    * @param chat_id the chat id
+    * @throws java.sql.SQLException when the update failed
+    */
+   public void addToDirectory (String member, int chat_id) throws SQLException {
+      if (this._shards.isSharded())
+         executeUpdate(userShard(member), String.format("INSERT INTO chat_directory(member, chat_id) VALUES('%s', %d)", member, chat_id));
+   }//end addToDirectory
+
+   /**
+    * Records several members (sanitized) of chat_id in the chat directory,
+    * with one insert per shard.
+    *
+    * @param members the member logins
+    * @param chat_id the chat id
+    * @throws java.sql.SQLException when the update failed
+    */
+   public void addToDirectory (Collection<String> members, int chat_id) throws SQLException {
+      if (!this._shards.isSharded())
+         return;
+      for (Map.Entry<Integer, List<String>> e : groupByShard(this, members).entrySet())
+         executeUpdate(this._shards.shard(e.getKey()), String.format("INSERT INTO chat_directory(member, chat_id) SELECT member, %d FROM (VALUES %s) AS M(member)", chat_id, sqlRows(e.getValue())));
+   }//end addToDirectory
+
+   /**
+    * Removes several members (sanitized) of chat_id from the chat directory,
+    * with one delete per shard.
+    *
+    * @param members the member logins
+    * @param chat_id the chat id
+    * @throws java.sql.SQLException when the update failed
+    */
+   public void removeFromDirectory (Collection<String> members, int chat_id) throws SQLException {
+      if (!this._shards.isSharded())
+         return;
+      for (Map.Entry<Integer, List<String>> e : groupByShard(this, members).entrySet())
+         executeUpdate(this._shards.shard(e.getKey()), String.format("DELETE FROM chat_directory WHERE chat_id = %d AND member IN (%s)", chat_id, sqlList(e.getValue())));
+   }//end removeFromDirectory
+
+   /**
+    * Removes member from chat_id in the chat directory.
+    *
+    * @param member the member login
+    * @param chat_id the chat id
+    * @throws java.sql.SQLException when the update failed
+    */
+   public void removeFromDirectory (String member, int chat_id) throws SQLException {
+      if (this._shards.isSharded())
+         executeUpdate(userShard(member), String.format("DELETE FROM chat_directory WHERE member = '%s' AND chat_id = %d", member, chat_id));
+   }//end removeFromDirectory
+
+   /**
+    * Removes every member of chat_id from the chat directory of all shards.
+    *
+    * @param chat_id the chat id
+    * @throws java.sql.SQLException when the update failed
+    */
+   public void dropFromDirectory (int chat_id) throws SQLException {
+      if (!this._shards.isSharded())
+         return;
+      for (int i = 0; i < this._shards.count(); ++i)
+         executeUpdate(this._shards.shard(i), String.format("DELETE FROM chat_directory WHERE chat_id = %d", chat_id));
+   }//end dropFromDirectory
+
+   /**
+    * Prints records the way executeQueryAndPrintResult does, for results
+    * that were assembled from several shards.
+    *
+    * @param columns the column names of the header
+    * @param records the records to print
+    * @return the number of records printed
+    */
+   public static int printRecords (String[] columns, List<List<String>> records) {
+      if (!records.isEmpty()){
+         for (String c : columns)
+            System.out.print(c + "\t");
+         System.out.println();
+      }//end if
+      for (List<String> record : records) {
+         for (String v : record)
+            System.out.print (v + "\t");
+         System.out.println ();
+      }//end for
+      return records.size();
+   }//end printRecords
+
    public static String sanitize_input(String s){
      String ret = s.replace("'", "''");
      return ret;
    }
 
+   //undoes sanitize_input, for logins compared with values read from the database
+   public static String unsanitize_input(String s){
+     String ret = s.replace("''", "'");
+     return ret;
+   }
+
    /**
     * The main execution method
     *
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      // -Dmessenger.storage=memory runs without a database, keeping everything in this process
+      boolean memory = "memory".equals(System.getProperty("messenger.storage"));
+      if (!memory && args.length != 3) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
@@ -244,14 +945,18 @@ public class Messenger {
       Greeting();
       Messenger esql = null;
       try{
-         // use postgres JDBC driver.
-         Class.forName ("org.postgresql.Driver").newInstance ();
-         // instantiate the Messenger object and creates a physical
-         // connection.
-         String dbname = args[0];
-         String dbport = args[1];
-         String user = args[2];
-         esql = new Messenger (dbname, dbport, user, "");
+         if (memory){
+            esql = new Messenger (new InMemoryStorage ());
+         }else{
+            // use postgres JDBC driver.
+            Class.forName ("org.postgresql.Driver").newInstance ();
+            // instantiate the Messenger object and creates a physical
+            // connection.
+            String dbname = args[0];
+            String dbport = args[1];
+            String user = args[2];
+            esql = new Messenger (dbname, dbport, user, "");
+         }//end if
 
          boolean keepon = true;
          while(keepon) {
@@ -343,21 +1048,14 @@ public class Messenger {
    public static void CreateUser(Messenger esql){
       try{
          System.out.print("\tEnter user login: ");
-         String login = sanitize_input(in.readLine());
+         String login = in.readLine();
          System.out.print("\tEnter user password: ");
-         String password = sanitize_input(in.readLine());
+         String password = in.readLine();
          System.out.print("\tEnter user phone: ");
-         String phone = sanitize_input(in.readLine());
+         String phone = in.readLine();
 
-	 //Creating empty contact\block lists for a user
-	 esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('block')");
-	 int block_id = esql.getCurrSeqVal("user_list_list_id_seq");
-         esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('contact')");
-	 int contact_id = esql.getCurrSeqVal("user_list_list_id_seq");
-         
-	 String query = String.format("INSERT INTO USR (phoneNum, login, password, block_list, contact_list) VALUES ('%s','%s','%s',%s,%s)", phone, login, password, block_id, contact_id);
-
-         esql.executeUpdate(query);
+	 //the user comes with empty contact\block lists
+	 esql.storage().createUser(login, password, phone);
          System.out.println ("User successfully created!");
       }catch(Exception e){
         System.out.println("Your username or phone number is already in use");
@@ -372,13 +1070,11 @@ public class Messenger {
    public static String LogIn(Messenger esql){
       try{
          System.out.print("\tEnter user login: ");
-         String login = sanitize_input(in.readLine());
+         String login = in.readLine();
          System.out.print("\tEnter user password: ");
-         String password = sanitize_input(in.readLine());
+         String password = in.readLine();
 
-         String query = String.format("SELECT * FROM Usr WHERE login = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
-	 if (userNum > 0)
+	 if (esql.storage().checkPassword(login, password))
 		return login;
 	 else
 		 System.err.println("\tInvalid Credentials.");
@@ -405,8 +1101,11 @@ public class Messenger {
 		System.out.println("4. List Blocked Contacts");
 		System.out.println("5. Block Contact");
 		System.out.println("6. Unblock Contact");
+		System.out.println("7. Contact Status Changes");
+		System.out.println("8. Suggested Contacts");
+		System.out.println("9. Find Contacts by Phone");
 		System.out.println(".........................");
-		System.out.println("9. Back");
+		System.out.println("10. Back");
 		switch (readChoice()){
 		   case 1: ListContacts(esql, user); break;
 		   case 2: AddToContacts(esql, user); break;
@@ -414,7 +1113,10 @@ public class Messenger {
 		   case 4: ListBlockedContacts(esql, user); break;
 		   case 5: BlockContact(esql, user); break;
 		   case 6: UnblockContact(esql, user); break;
-		   case 9: contactsmenu = false; break;
+		   case 7: ListContactStatusChanges(esql, user); break;
+		   case 8: SuggestContacts(esql, user); break;
+		   case 9: FindContactsByPhone(esql, user); break;
+		   case 10: contactsmenu = false; break;
 		   default : System.out.println("Unrecognized choice!"); break;
 		}
 	  }
@@ -422,8 +1124,8 @@ public class Messenger {
 
    public static void ListContacts(Messenger esql, String user){
 	try{   
-         String query = String.format("SELECT list_member, U2.status FROM User_list_contains L, Usr U, Usr U2 WHERE U.login = '%s' AND L.list_id = U.contact_list AND U2.login=L.list_member", user);
-		 int rows = esql.executeQueryAndPrintResult(query);
+		 contactsSnapshotVersion.put(user.trim(), esql.storage().statusVersion());
+		 int rows = printListWithStatus(esql, user, MessengerStorage.ListKind.CONTACT);
 
 		 if(rows == 0)
 			 System.out.println("No contacts");
@@ -433,28 +1135,171 @@ public class Messenger {
       }
    }//end
 
-   public static void AddToContacts(Messenger esql, String user){
+   /*
+    * Prints the members of the user's contact or block list with their
+    * status, taken from the status cache wherever it has them.
+    * @return number of members printed
+    **/
+   public static int printListWithStatus(Messenger esql, String user, MessengerStorage.ListKind list) throws SQLException{
+	 List<String> members = esql.storage().list(user, list);
+	 Map<String, String> statuses = esql.storage().statuses(members);
+
+	 List<List<String>> records = new ArrayList<List<String>>();
+	 for (String m : members) {
+		 List<String> record = new ArrayList<String>();
+		 record.add(m);
+		 record.add(statuses.get(m));
+		 records.add(record);
+	 }
+	 return printRecords(new String[] { "list_member", "status" }, records);
+   }//end
+
+   /*
+    * Prints the statuses of the user's contacts that changed since the user's
+    * last contact listing, instead of listing every contact again. Only status
+    * changes made through this process are listed.
+    **/
+   public static void ListContactStatusChanges(Messenger esql, String user){
+	try{
+		 Long snapshot = contactsSnapshotVersion.get(user.trim());
+		 if(snapshot == null){
+			 ListContacts(esql, user);
+			 return;
+		 }
+		 long version = esql.storage().statusVersion();
+		 List<StatusCache.Change> changes = esql.storage().statusChangesSince(snapshot);
+		 if(changes == null){
+			 //the feed has moved past the snapshot
+			 ListContacts(esql, user);
+			 return;
+		 }
+		 contactsSnapshotVersion.put(user.trim(), version);
+		 if(changes.isEmpty()){
+			 System.out.println("No status changes");
+			 return;
+		 }
+
+		 Set<String> contacts = new HashSet<String>(esql.storage().list(user, MessengerStorage.ListKind.CONTACT));
+		 List<List<String>> records = new ArrayList<List<String>>();
+		 for (StatusCache.Change c : changes) {
+			 if (contacts.contains(c.login)){
+				 List<String> record = new ArrayList<String>();
+				 record.add(c.login);
+				 record.add(c.status);
+				 records.add(record);
+			 }
+		 }
+		 if(printRecords(new String[] { "list_member", "status" }, records) == 0)
+			 System.out.println("No status changes");
+
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+      }
+   }//end
+
+   /*
+    * Lists the users most of the user's contacts have as contacts
+    **/
+   public static void SuggestContacts(Messenger esql, String user){
+	try{
+		 List<ContactGraph.Suggestion> suggestions = esql.storage().suggestContacts(
+				 user, Integer.getInteger("messenger.suggestions", 10));
+		 List<List<String>> records = new ArrayList<List<String>>();
+		 for (ContactGraph.Suggestion s : suggestions) {
+			 List<String> record = new ArrayList<String>();
+			 record.add(s.login);
+			 record.add(Integer.toString(s.mutual));
+			 records.add(record);
+		 }
+		 if(printRecords(new String[] { "login", "mutual_contacts" }, records) == 0)
+			 System.out.println("No suggestions");
+
+      }catch(Exception e){
+         System.err.println (e.getMessage ());
+      }
+   }//end
+
+   /*
+    * Matches an address book against the phone numbers of all users in one
+    * pass and offers to add every match to the contact list at once. The
+    * numbers are typed comma separated, or read one per line from a file
+    * given as @path.
+    **/
+   public static void FindContactsByPhone(Messenger esql, String user){
+	   boolean admitted = false;
 	   try{
-		 System.out.print("\tEnter contact to add: ");
-         String contact = sanitize_input(in.readLine());
-		 String query = String.format("SELECT * FROM Usr WHERE login = '%s'", contact);
-         int userNum = esql.executeQuery(query);
-		 if (userNum > 0 && user.compareTo(contact) != 0){
+		 System.out.print("\tEnter phone numbers (comma separated, or @file with one per line): ");
+		 String input = in.readLine().trim();
+		 List<String> phones = new ArrayList<String>();
+		 if (input.startsWith("@")){
+			 BufferedReader book = new BufferedReader(new FileReader(input.substring(1).trim()));
+			 try{
+				 for (String line = book.readLine(); line != null; line = book.readLine()) {
+					 if (!line.trim().isEmpty())
+						 phones.add(line.trim());
+				 }
+			 }finally{
+				 book.close();
+			 }
+		 }
+		 else
+			 phones.addAll(parseLogins(input));
+
+		 Map<String, String> matches = esql.storage().usersByPhone(phones);
+		 Set<String> found = new LinkedHashSet<String>();
+		 List<List<String>> records = new ArrayList<List<String>>();
+		 for (String p : phones) {
+			 String login = matches.get(p);
+			 if (login == null || login.equals(user.trim()))
+				 continue;
+			 found.add(login);
+			 List<String> record = new ArrayList<String>();
+			 record.add(p);
+			 record.add(login);
+			 records.add(record);
+		 }
+		 if(printRecords(new String[] { "phone", "login" }, records) == 0){
+			 System.out.println("No users found");
+			 return;
+		 }
 
-		   query = String.format("SELECT contact_list FROM usr WHERE login = '%s'", user);
-		   String list_id = esql.executeQueryAndReturnResult(query).get(0).get(0);
+		 while(true){
+			 System.out.print(String.format("\tAdd all %d to your contacts? yes(y) or no(n) ", found.size()));
+			 String answer = sanitize_input(in.readLine());
+			 if(answer.compareToIgnoreCase("no")== 0 || answer.compareToIgnoreCase("n") == 0)
+				 return;
+			 else if(answer.compareToIgnoreCase("yes")== 0 || answer.compareToIgnoreCase("y") == 0)
+				 break;
+			 else
+				 System.err.println("\tUnrecognized command!");
+		 }
+		 if (!(admitted = admitWrite(esql, user)))
+			 return;
+		 List<String> added = esql.storage().addAllToList(user, MessengerStorage.ListKind.CONTACT, found);
+		 System.out.println(String.format("\t%d contact(s) added, %d already in your contacts.", added.size(), found.size() - added.size()));
+
+	   } catch(Exception e){
+		   System.err.println(e.getMessage());
+	   } finally{
+		   if (admitted)
+			   esql.admission().release();
+	   }
+   }//end
 
+   public static void AddToContacts(Messenger esql, String user){
+	   boolean admitted = false;
+	   try{
+		 System.out.print("\tEnter contact to add: ");
+         String contact = in.readLine();
+		 if (!(admitted = admitWrite(esql, user)))
+			 return;
+		 if (user.compareTo(contact) != 0 && !esql.storage().existingUsers(Collections.singletonList(contact)).isEmpty()){
 
-		   query = String.format("SELECT * FROM user_list_contains WHERE list_id = '%s' AND list_member = '%s'", list_id, contact );
-		   userNum = esql.executeQuery(query);
-		   if(userNum > 0){
+		   if(!esql.storage().addToList(user, MessengerStorage.ListKind.CONTACT, contact)){
 			   System.err.println("\tContact already exists in contact list");
 			   return;
 		   }
 
-		   query = String.format("INSERT INTO user_list_contains(list_id, list_member) VALUES('%s', '%s') ", list_id, contact );
-		   esql.executeUpdate(query);
-
 		   System.out.println("\tContact added successfully.");
 
 		 }
@@ -466,6 +1311,9 @@ public class Messenger {
 		 }
 	   } catch(Exception e){
 		   System.err.println(e.getMessage());
+	   } finally{
+		   if (admitted)
+			   esql.admission().release();
 	   }
 
    }//end
@@ -473,16 +1321,9 @@ public class Messenger {
    public static void DeleteFromContacts(Messenger esql, String user){
 	   try{
 		 System.out.print("\tEnter contact to delete: ");
-         String contact = sanitize_input(in.readLine());
+         String contact = in.readLine();
 	
-	     String query = String.format("SELECT contact_list FROM usr WHERE login = '%s'", user);
-	     String list_id = esql.executeQueryAndReturnResult(query).get(0).get(0);
-		 query = String.format("SELECT * FROM user_list_contains WHERE list_id = '%s' AND list_member = '%s'", list_id, contact );
-		 int userNum = esql.executeQuery(query);
-		 if (userNum > 0){
-
-		   query = String.format("DELETE FROM user_list_contains WHERE list_id = '%s' AND list_member = '%s'", list_id, contact );
-		   esql.executeUpdate(query);
+		 if (esql.storage().removeFromList(user, MessengerStorage.ListKind.CONTACT, contact)){
 
 		   System.out.println("\tContact deleted successfully.");
 
@@ -498,8 +1339,7 @@ public class Messenger {
 
    public static void ListBlockedContacts(Messenger esql, String user){
 	try{   
-         String query = String.format("SELECT list_member, U2.status FROM User_list_contains L, Usr U,Usr U2 WHERE U.login = '%s' AND L.list_id = U.block_list AND U2.login=L.list_member", user);
-		 int rows = esql.executeQueryAndPrintResult(query);
+		 int rows = printListWithStatus(esql, user, MessengerStorage.ListKind.BLOCK);
 
 		 if(rows == 0)
 			 System.out.println("No blocked contacts");
@@ -512,24 +1352,14 @@ public class Messenger {
    public static void BlockContact(Messenger esql, String user){
 	   try{
 		 System.out.print("\tEnter contact to block: ");
-         String contact = sanitize_input(in.readLine());
-		 String query = String.format("SELECT * FROM Usr WHERE login = '%s'", contact);
-         int userNum = esql.executeQuery(query);
-		 if (userNum > 0 && user.compareTo(contact) != 0){
-
-		   query = String.format("SELECT block_list FROM usr WHERE login = '%s'", user);
-		   String list_id = esql.executeQueryAndReturnResult(query).get(0).get(0);
+         String contact = in.readLine();
+		 if (user.compareTo(contact) != 0 && !esql.storage().existingUsers(Collections.singletonList(contact)).isEmpty()){
 
-		   query = String.format("SELECT * FROM user_list_contains WHERE list_id = '%s' AND list_member = '%s'", list_id, contact );
-		   userNum = esql.executeQuery(query);
-		   if(userNum > 0){
+		   if(!esql.storage().addToList(user, MessengerStorage.ListKind.BLOCK, contact)){
 			   System.err.println("\tContact already exists in block list");
 			   return;
 		   }
 
-		   query = String.format("INSERT INTO user_list_contains(list_id, list_member) VALUES('%s', '%s') ", list_id, contact );
-		   esql.executeUpdate(query);
-
 		   System.out.println("\tContact blocked successfully.");
 
 		 }
@@ -548,16 +1378,9 @@ public class Messenger {
    public static void UnblockContact(Messenger esql, String user){
 	   try{
 		 System.out.print("\tEnter contact to unblock: ");
-         String contact = sanitize_input(in.readLine());
+         String contact = in.readLine();
 	
-	     String query = String.format("SELECT block_list FROM usr WHERE login = '%s'", user);
-	     String list_id = esql.executeQueryAndReturnResult(query).get(0).get(0);
-		 query = String.format("SELECT * FROM user_list_contains WHERE list_id = '%s' AND list_member = '%s'", list_id, contact );
-		 int userNum = esql.executeQuery(query);
-		 if (userNum > 0){
-
-		   query = String.format("DELETE FROM user_list_contains WHERE list_id = '%s' AND list_member = '%s'", list_id, contact );
-		   esql.executeUpdate(query);
+		 if (esql.storage().removeFromList(user, MessengerStorage.ListKind.BLOCK, contact)){
 
 		   System.out.println("\tContact unblocked successfully.");
 
@@ -576,11 +1399,10 @@ public class Messenger {
    public static void UpdateStatusMessage(Messenger esql, String user){
 	   try{
 		   System.out.println("Your current status message is:");
-		   String query = String.format("SELECT status FROM usr WHERE login='%s'", user);
-		   String status = esql.executeQueryAndReturnResult(query).get(0).get(0);
+		   String status = esql.storage().statuses(Collections.singletonList(user)).get(user.trim());
 		   System.out.println(status);
 	   System.out.println("New status message: ");
-	   String newstatus = sanitize_input(in.readLine());
+	   String newstatus = in.readLine();
 		while(true){
 			System.out.print("\tupdate (u) or cancel(c)? ");
 			String input = sanitize_input(in.readLine());
@@ -590,8 +1412,7 @@ public class Messenger {
 			}
 			else if(input.compareToIgnoreCase("update")== 0 || input.compareToIgnoreCase("u") == 0){
 				//send message
-				query = String.format("UPDATE usr SET status='%s' WHERE login='%s'", newstatus, user);
-				esql.executeUpdate(query);
+				esql.storage().setStatus(user, newstatus);
 				System.out.println("Status updated.");
 				break;
 			}
@@ -636,10 +1457,17 @@ public class Messenger {
 
    public static void ListChats(Messenger esql, String user){
 	try{   
-		 
-        // String query = String.format("SELECT chat.chat_id, chat_type, init_sender, msg_timestamp FROM chat, chat_list, message WHERE member = '%s' AND chat.chat_id = chat_list.chat_id AND chat.chat_id = message.chat_id ORDER BY msg_timestamp", user);
-		String query = String.format("SELECT chat.chat_id, chat_type, init_sender, max AS msg_timestamp FROM chat, chat_list, (SELECT chat_id, max(msg_timestamp) FROM message GROUP BY chat_id) msg WHERE chat_list.member = '%s' AND chat.chat_id = msg.chat_id AND chat_list.chat_id = msg.chat_id ORDER BY max ASC;", user);
-		 int rows = esql.executeQueryAndPrintResult(query);
+		List<List<String>> chats = new ArrayList<List<String>>();
+		for (MessengerStorage.ChatSummary c : esql.storage().chatsOf(user)) {
+			List<String> record = new ArrayList<String>();
+			record.add(Integer.toString(c.chatId));
+			record.add(c.type);
+			record.add(c.initSender);
+			record.add(c.lastMessage.toString());
+			record.add(Integer.toString(c.unread));
+			chats.add(record);
+		}
+		int rows = printRecords(new String[] { "chat_id", "chat_type", "init_sender", "msg_timestamp", "unread_count" }, chats);
 
 		 if(rows == 0)
 			 System.out.println("No chats");
@@ -650,130 +1478,185 @@ public class Messenger {
    }//end 
 
    public static void NewChat(Messenger esql, String user){
+	   boolean admitted = false;
 	   try{
-      String query;
-
-      int chat_id = 0;
-      boolean cont = true;
-      boolean created = false;
-       int i = 0;
-      while(cont) {
-        System.out.println("Your contacts:");
-        query = String.format("SELECT list_member FROM User_list_contains L, Usr U WHERE U.login = '%s' AND L.list_id = U.contact_list", user);
-        esql.executeQueryAndPrintResult(query);
-
-        System.out.print("\tAdd member to chat: ");
-        String member = sanitize_input(in.readLine());
-
-        //does member exist
-        query = String.format("Select * from User_list_contains L, Usr U where U.login = '%s' AND L.list_id = U.contact_list AND L.list_member='%s'", user, member);
-        int rows = esql.executeQuery(query);
-        query = String.format("SELECT * FROM User_list_contains L, Usr U WHERE U.login = '%s' AND L.list_id = U.block_list AND L.list_member='%s'", member, user);
-        int blocked = esql.executeQuery(query);
-        query = String.format("Select * from chat_list where chat_id = %d AND member = '%s'", chat_id, member);
-        int alreadycontains = esql.executeQuery(query);
-
-        if(rows > 0 && member.compareTo(user) != 0 && alreadycontains <=0 && blocked == 0){
-          if (!created)
-          {
-            query = String.format("INSERT INTO chat(chat_type, init_sender) VALUES('private', '%s')", user);
-            esql.executeUpdate(query);
-            chat_id = esql.getCurrSeqVal("chat_chat_id_seq");
-            query = String.format("INSERT INTO chat_list(chat_id, member) VALUES(%d, '%s')", chat_id, user);
-            esql.executeUpdate(query);
-            created = true;
-          }
-          query = String.format("INSERT INTO chat_list(chat_id, member) VALUES(%d, '%s')", chat_id, member);
-          esql.executeUpdate(query);
-          System.out.println("\tMember added to chat");
-          i++;			
-
-        }
-        else{
-          if(member.compareTo(user) == 0)
-            System.err.println("\tCannot add yourself to chat.");
-          else if(alreadycontains > 0)
-            System.err.println("\tMember already in chat");
-          else if (blocked > 0)
-            System.err.println("\tYou have been blocked by this user");
-          else
-            System.err.println("\tMember is not in your contacts.");
-        }
-
-
-        while(true){
-          System.out.print("\tWould you like to add another member? (yes(y) or no(n)) ");
-          String input = sanitize_input(in.readLine());
-          if(input.compareToIgnoreCase("no")== 0 || input.compareToIgnoreCase("n") == 0){
-            cont = false;
-            break;
-          }
-          else if(input.compareToIgnoreCase("yes")== 0 || input.compareToIgnoreCase("y") == 0){
-            cont = true;
-            break;
-          }
-          else
-            System.err.println("\tUnrecognized command!");
-        }
-
-      }
-
-      String chat_type = null;
-      if (i > 0)
-      {
-
-        if(i > 1){
-          chat_type = "group";
-          query = String.format("UPDATE chat SET chat_type = '%s' WHERE chat_id = %d", chat_type, chat_id);
-          esql.executeUpdate(query);
-        }
-         String message = "Welcome to the chat!";
-         query = String.format("INSERT INTO message(msg_text, sender_login, chat_id) VALUES('%s', '%s', %d)", message, user, chat_id);
-
-         esql.executeUpdate(query);
-
-         System.out.println("\tChat created Successfully");
-      }
+      System.out.println("Your contacts:");
+      List<String> contacts = esql.storage().list(user, MessengerStorage.ListKind.CONTACT);
+      List<List<String>> records = new ArrayList<List<String>>();
+      for (String c : contacts)
+        records.add(Collections.singletonList(c));
+      printRecords(new String[] { "list_member" }, records);
+
+      System.out.print("\tAdd members to chat (comma separated, * for all contacts): ");
+      String input = in.readLine();
+      Collection<String> candidates;
+      if (input.trim().equals("*"))
+        candidates = new LinkedHashSet<String>(contacts);
       else
+        candidates = parseLogins(input);
+      if (!(admitted = admitWrite(esql, user)))
+        return;
+
+      List<String> members = eligibleMembers(esql, user, -1, candidates, true);
+      if (members.isEmpty())
       {
         System.out.println("\tChat wasn't created");
+        return;
       }
 
+      int chat_id = esql.storage().createChat(user, members, "Welcome to the chat!");
+      for (String m : members)
+        System.out.println(String.format("\t%s added to chat", m));
+      System.out.println(String.format("\tChat %d created Successfully", chat_id));
+
 	   } catch(Exception e){
 		   System.err.println(e.getMessage());
+	   } finally{
+		   if (admitted)
+			   esql.admission().release();
 	   }
 
 	   
    }//end 
 
+   /*
+    * Splits a comma separated list of logins, dropping blanks and repeats
+    **/
+   public static Set<String> parseLogins(String input){
+	   Set<String> logins = new LinkedHashSet<String>();
+	   for (String l : input.split(",")) {
+		   if (!l.trim().isEmpty())
+			   logins.add(l.trim());
+	   }
+	   return logins;
+   }//end
+
+   //quoted, comma separated logins for an IN list; logins must already be sanitized
+   public static String sqlList(Collection<String> logins){
+	   StringBuilder sb = new StringBuilder();
+	   for (String l : logins) {
+		   if (sb.length() > 0)
+			   sb.append(", ");
+		   sb.append('\'').append(l).append('\'');
+	   }
+	   return sb.toString();
+   }//end
+
+   //one parenthesized row per login for a VALUES list; logins must already be sanitized
+   public static String sqlRows(Collection<String> logins){
+	   StringBuilder sb = new StringBuilder();
+	   for (String l : logins) {
+		   if (sb.length() > 0)
+			   sb.append(", ");
+		   sb.append("('").append(l).append("')");
+	   }
+	   return sb.toString();
+   }//end
+
+   /*
+    * Splits sanitized logins by the shard holding each user
+    **/
+   public static Map<Integer, List<String>> groupByShard(Messenger esql, Collection<String> logins){
+	   Map<Integer, List<String>> byShard = new HashMap<Integer, List<String>>();
+	   for (String l : logins) {
+		   int shard = esql.shards().shardOfLogin(l);
+		   List<String> group = byShard.get(shard);
+		   if (group == null)
+			   byShard.put(shard, group = new ArrayList<String>());
+		   group.add(l);
+	   }
+	   return byShard;
+   }//end
+
+   /*
+    * Runs one query per shard over the logins living there and returns the
+    * first column of every record, trimmed and sanitized. The format must
+    * contain a single %s for the IN list.
+    **/
+   public static Set<String> gatherLogins(Messenger esql, Collection<String> logins, String format) throws SQLException{
+	   Map<Integer, String> queries = new HashMap<Integer, String>();
+	   for (Map.Entry<Integer, List<String>> e : groupByShard(esql, logins).entrySet())
+		   queries.put(e.getKey(), String.format(format, sqlList(e.getValue())));
+	   Set<String> result = new HashSet<String>();
+	   for (List<String> r : esql.gatherReadQueries(queries))
+		   result.add(sanitize_input(r.get(0).trim()));
+	   return result;
+   }//end
+
+   /*
+    * Filters candidate logins down to those that may join chat_id (-1 for a
+    * chat not created yet), reporting each one turned away. With
+    * contacts_only a member must be one of the user's contacts and must not
+    * have blocked the user; otherwise the member just has to exist. All
+    * checks are a handful of set-based lookups, whatever the number of
+    * candidates, and run at the same time.
+    * @return the eligible logins, in input order
+    **/
+   public static List<String> eligibleMembers(Messenger esql, String user, int chat_id, Collection<String> candidates, boolean contacts_only) throws SQLException{
+	   AsyncMessenger.Eligibility checked = AsyncMessenger.await(esql.async().eligibleMembers(user, chat_id, candidates, contacts_only));
+	   for (Map.Entry<String, AsyncMessenger.Rejection> r : checked.rejected.entrySet()) {
+		   switch (r.getValue()) {
+		   case SELF:
+			   System.err.println("\tCannot add yourself to chat.");
+			   break;
+		   case NOT_CONTACT:
+			   System.err.println(String.format("\t%s: Member is not in your contacts.", r.getKey()));
+			   break;
+		   case NOT_FOUND:
+			   System.err.println(String.format("\t%s: Member does not exist.", r.getKey()));
+			   break;
+		   case BLOCKED:
+			   System.err.println(String.format("\t%s: You have been blocked by this user", r.getKey()));
+			   break;
+		   default:
+			   System.err.println(String.format("\t%s: Member already in chat", r.getKey()));
+		   }
+	   }
+	   return checked.eligible;
+   }//end
+
    public static void ViewChat(Messenger esql, String user){
 	   try{
 		 System.out.print("\tEnter chat id to view: ");
          int chat_id = Integer.parseInt(sanitize_input(in.readLine()));
 
-		 String query = String.format("SELECT * FROM chat_list WHERE chat_id = %d AND member='%s'", chat_id, user);
-		 int rows = esql.executeQuery(query);
-		 if(rows <= 0){
+		 MessengerStorage.ReadCursor cursor = esql.storage().readCursor(chat_id, user);
+		 if(cursor == null){
 			System.err.println(String.format("Chat %d cannot be viewed.", chat_id));
 			return;
 		 }
+		 int last_read = cursor.lastRead;
+		 if(cursor.unread > 0)
+			System.out.println(String.format("%d new message(s)", cursor.unread));
 
-         query = String.format("SELECT * FROM message WHERE chat_id = %d ORDER BY msg_timestamp", chat_id);
-		 List<List<String> > chat = esql.executeQueryAndReturnResult(query);
-
+		 //pages are read newest first, each one below the oldest message shown so far
 		 boolean cont = true;
 		 boolean notendofmessages = true;
-		 int count = chat.size();
-		 int end = chat.size();
+		 boolean empty = true;
+		 int before = Integer.MAX_VALUE;
+		 int newest_shown = last_read;
+		 boolean marked = false;
 		 while(cont){
-			end = count;
-			count -= 10;
-			if(count < 0){
-				count = 0;
+			List<MessengerStorage.Message> page = esql.storage().messagesBefore(chat_id, before, 10);
+			if(page.size() < 10){
 				cont = false;
 				notendofmessages = false;
 			}
-		    display10messages(chat, count, end);
+			if(!page.isEmpty()){
+				empty = false;
+				before = page.get(0).msgId;
+				display10messages(page, last_read);
+				newest_shown = Math.max(newest_shown, page.get(page.size() - 1).msgId);
+			}
+
+			//the unread messages have all been shown once the pages reach back
+			//past last_read or to the start of the chat; only then advance the
+			//read cursor, so unread messages never scrolled to stay unread
+			boolean caught_up = !notendofmessages || page.get(0).msgId <= last_read;
+			if(caught_up && !marked && newest_shown > last_read){
+				esql.storage().advanceReadCursor(chat_id, user, newest_shown);
+				marked = true;
+			}
 			while(notendofmessages){
 				System.out.print("\tSrcoll up (up(u)) or quit(q) ");
 				String input = sanitize_input(in.readLine());
@@ -796,7 +1679,7 @@ public class Messenger {
 
 		 
 
-		 if(chat.isEmpty())
+		 if(empty)
 			 System.out.println("Chat doesn't exist");
 
       }catch(Exception e){
@@ -805,15 +1688,25 @@ public class Messenger {
 
    }//end 
 
-   public static void display10messages(List<List<String>> chat, int begin, int end){
-
-	   for(int i = begin; i < chat.size() && i< end; i++){
+   /*
+    * Prints a page of messages, marking where the ones newer than the
+    * reader's cursor begin
+    **/
+   public static void display10messages(List<MessengerStorage.Message> chat, int last_read){
+
+	   boolean marked = false;
+	   for(int i = 0; i < chat.size(); i++){
+		   MessengerStorage.Message m = chat.get(i);
+		   if(!marked && m.msgId > last_read){
+			   System.out.println("---------- new messages ----------");
+			   marked = true;
+		   }
 		   String tmp;
-		   tmp = String.format("Sender: %s", chat.get(i).get(3));
+		   tmp = String.format("Sender: %s", m.sender);
 		   System.out.println(tmp);
-		   tmp = String.format("Time: %s", chat.get(i).get(2));
+		   tmp = String.format("Time: %s", m.timestamp);
 		   System.out.println(tmp);
-		   tmp = String.format("Message: %s", chat.get(i).get(1));
+		   tmp = String.format("Message: %s", m.text);
 		   System.out.println(tmp);
 		   System.out.println();
 	   }
@@ -826,19 +1719,15 @@ public class Messenger {
 		 System.out.print("\tEnter chat id to edit: ");
          int chat_id = Integer.parseInt(sanitize_input(in.readLine()));
 
-		 String query = String.format("SELECT * FROM chat_list WHERE chat_id = %d AND member='%s'", chat_id, user);
-		 int rows = esql.executeQuery(query);
-		 if(rows <= 0){
+		 if(!esql.storage().isChatMember(chat_id, user)){
 			System.err.println(String.format("Chat %d cannot be viewed.", chat_id));
 			return;
 		 }
 
-         query = String.format("SELECT init_sender FROM chat WHERE chat_id = %d", chat_id);
-		 String init_sender = esql.executeQueryAndReturnResult(query).get(0).get(0);
-		 init_sender = init_sender.trim();
+		 String init_sender = esql.storage().chatInitSender(chat_id);
 
 		 boolean initial_sender = false;
-		 if(init_sender.equals(user) ){
+		 if(init_sender != null && init_sender.equals(user.trim()) ){
 			 initial_sender = true;
 		 }
 
@@ -861,7 +1750,7 @@ public class Messenger {
 		   case 2: if(initial_sender) AddMemToChat(esql, user, chat_id); 
 		   			else System.out.println("Unrecognized choice!");
 					break;
-		   case 3: if(initial_sender) DeleteMemFromChat(esql, user, chat_id);
+		   case 3: if(initial_sender) chatsmenu = DeleteMemFromChat(esql, user, chat_id);
 		   			else System.out.println("Unrecognized choice!");
 					break;
 		   case 4: if(initial_sender) chatsmenu = DeleteChat(esql, user, chat_id);
@@ -888,12 +1777,7 @@ public class Messenger {
 			}
 			else if(input.compareToIgnoreCase("yes")== 0 || input.compareToIgnoreCase("y") == 0){
 				//delete chat
-				String query = String.format("DELETE FROM chat_list WHERE chat_id=%d", chat_id);
-				esql.executeUpdate(query);
-				query = String.format("DELETE FROM message WHERE chat_id=%d", chat_id);
-				esql.executeUpdate(query);
-				query = String.format("DELETE FROM chat WHERE chat_id=%d", chat_id);
-				esql.executeUpdate(query);
+				esql.storage().deleteChat(chat_id);
 
 				System.out.println(String.format("Chat %d deleted successfully!", chat_id));
 				return false;
@@ -913,9 +1797,10 @@ public class Messenger {
    }
 
    public static void SendMessage(Messenger esql, String user, int chat_id){
+	   boolean admitted = false;
 	   try{
 	   System.out.println("Message: ");
-	   String message = sanitize_input(in.readLine());
+	   String message = in.readLine();
 		while(true){
 			System.out.print("\tSend (s) or Cancel(c)? ");
 			String input = sanitize_input(in.readLine());
@@ -925,8 +1810,9 @@ public class Messenger {
 			}
 			else if(input.compareToIgnoreCase("send")== 0 || input.compareToIgnoreCase("s") == 0){
 				//send message
-				String query = String.format("INSERT INTO message(msg_text, sender_login, chat_id) VALUES('%s', '%s', %d)", message, user, chat_id);
-				esql.executeUpdate(query);
+				if (!(admitted = admitWrite(esql, user)))
+					break;
+				esql.storage().postMessage(chat_id, user, message);
 				System.out.println("Message sent.");
 				break;
 			}
@@ -936,94 +1822,84 @@ public class Messenger {
 
 	   }catch(Exception e){
 		   System.err.println(e.getMessage());
+	   }finally{
+		   if (admitted)
+			   esql.admission().release();
 	   }
    }
 
+   /*
+    * Asks admission control for a write slot, telling the user when to retry
+    * if there is none. A true result must be paired with admission().release()
+    **/
+   public static boolean admitWrite(Messenger esql, String user) throws InterruptedException{
+	   switch (esql.admission().acquire(user)){
+		   case ADMITTED:
+			   return true;
+		   case THROTTLED:
+			   System.err.println(String.format("\tToo many requests, try again in %.1f seconds.", esql.admission().retryAfterMillis(user) / 1000.0));
+			   return false;
+		   default:
+			   System.err.println("\tThe server is busy, try again shortly.");
+			   return false;
+	   }
+   }//end
+
+   //prints the members of a chat under a member column
+   public static void printChatMembers(Messenger esql, int chat_id) throws SQLException{
+	   List<List<String>> records = new ArrayList<List<String>>();
+	   for (String m : esql.storage().chatMembers(chat_id))
+		   records.add(Collections.singletonList(m));
+	   printRecords(new String[] { "member" }, records);
+   }//end
+
    public static void AddMemToChat(Messenger esql, String user, int chat_id){
 	   try{
 		   System.out.println("Current members of the chat:");
-		   String query = String.format("SElECT member FROM chat_list WHERE chat_id=%d", chat_id);
-		   esql.executeQueryAndPrintResult(query);
-
-		   System.out.println("Enter member to add: ");
-		   String member = sanitize_input(in.readLine());
-		   query = String.format("SELECT * FROM usr WHERE login='%s'", member);
-		   int rows = esql.executeQuery(query);
-		   query = String.format("SELECT * FROM chat_list WHERE chat_id=%d AND member='%s'", chat_id, member);
-		   int inlist = esql.executeQuery(query);
-		   if(rows > 0 && inlist <=0){
-			   //add member
-			   query = String.format("INSERT INTO chat_list(chat_id, member) VALUES(%d, '%s')", chat_id, member);
-			   esql.executeUpdate(query);
-			   System.out.println(String.format("%s added successfully!", member));
-
-         query = String.format("UPDATE chat SET chat_type = 'group' WHERE chat_id = %d", chat_id);
-         esql.executeUpdate(query);
+		   printChatMembers(esql, chat_id);
 
-		   }
-		   else if(inlist>0){
-			   System.err.println("Member already in chat.");
-		   }
-		   else{
-			   System.err.println("Member does not exist.");
-		   }
+		   System.out.println("Enter members to add (comma separated): ");
+		   Set<String> candidates = parseLogins(in.readLine());
+		   List<String> members = eligibleMembers(esql, user, chat_id, candidates, false);
+		   esql.storage().addChatMembers(chat_id, members);
+		   for (String member : members)
+			   System.out.println(String.format("%s added successfully!", member));
 
 	   }catch(Exception e){
 	   		System.err.println(e.getMessage());
 	   }
    }//end 
 
-   public static void DeleteMemFromChat(Messenger esql, String user, int chat_id){
+   //returns false when the chat was deleted because too few members were left
+   public static boolean DeleteMemFromChat(Messenger esql, String user, int chat_id){
 	   try{
 		   System.out.println("Current members of the chat:");
-		  String query = String.format("SElECT member FROM chat_list WHERE chat_id=%d", chat_id);
-		  esql.executeQueryAndPrintResult(query);
-
-
-		   System.out.println("Enter member to delete: ");
-		   String member = sanitize_input(in.readLine());
-		   query = String.format("SELECT * FROM usr WHERE login='%s'", member);
-		   int rows = esql.executeQuery(query);
-		   query = String.format("SELECT * FROM chat_list WHERE chat_id=%d AND member='%s'", chat_id, member);
-		   int inlist = esql.executeQuery(query);
-		   if(rows > 0 && inlist > 0 && member.compareTo(user) != 0){
-			   //delete member
-			   query = String.format("DELETE FROM chat_list WHERE chat_id=%d AND member='%s'", chat_id, member);
-			   esql.executeUpdate(query);
-			   System.out.println(String.format("%s deleted successfully!", member));
-        
-         query = String.format("SELECT * FROM chat_list WHERE chat_id=%d", chat_id);
-         rows = esql.executeQuery(query);
-		     esql.executeQueryAndPrintResult(query);
-         System.out.println(rows);
-         if (rows == 2)
-         {
-           query = String.format("UPDATE chat SET chat_type = 'private' WHERE chat_id = %d", chat_id);
-           esql.executeUpdate(query);
-         }
-         else if (rows == 1)
-         {
-           query = String.format("DELETE FROM chat_list WHERE chat_id=%d", chat_id);
-				   esql.executeUpdate(query);
-				   query = String.format("DELETE FROM message WHERE chat_id=%d", chat_id);
-				   esql.executeUpdate(query);
-           query = String.format("DELETE FROM chat WHERE chat_id=%d", chat_id);
-           esql.executeUpdate(query);
-         }
-
-		   }
-		   else if(inlist<=0){
-			   System.err.println("Member not in chat.");
-		   }
-		   else if(member.compareTo(user) == 0){
-			   System.err.println("Cannot delete yourself from the chat.");
-		   }
-		   else{
-			   System.err.println("Member does not exist.");
+		   printChatMembers(esql, chat_id);
+
+
+		   System.out.println("Enter members to delete (comma separated): ");
+		   Set<String> candidates = parseLogins(in.readLine());
+		   List<String> members = new ArrayList<String>();
+		   Set<String> present = esql.storage().chatMembersAmong(chat_id, candidates);
+		   for (String member : candidates) {
+			   if(member.compareTo(user) == 0)
+				   System.err.println("Cannot delete yourself from the chat.");
+			   else if(!present.contains(member))
+				   System.err.println(String.format("%s: Member not in chat.", member));
+			   else
+				   members.add(member);
 		   }
 
+		   boolean exists = esql.storage().removeChatMembers(chat_id, members);
+		   for (String member : members)
+			   System.out.println(String.format("%s deleted successfully!", member));
+		   if(!exists)
+			   System.out.println(String.format("Chat %d had too few members left and was deleted.", chat_id));
+		   return exists;
+
 	   }catch(Exception e){
 	   		System.err.println(e.getMessage());
+	   		return true;
 	   }   
 	}//end 
 
@@ -1042,13 +1918,10 @@ public class Messenger {
 				}
 				else if(input.compareToIgnoreCase("yes")== 0 || input.compareToIgnoreCase("y") == 0){
 					System.out.print("Please enter your password to verify deleting your account: ");
-					String password = sanitize_input(in.readLine());
-					 String query = String.format("SELECT * FROM Usr WHERE login = '%s' AND password = '%s'", user, password);
-						 int userNum = esql.executeQuery(query);
-					 if (userNum > 0){
-						//delete account
-						query = String.format("DELETE FROM usr WHERE login='%s' AND password='%s'", user, password);
-						esql.executeUpdate(query);
+					String password = in.readLine();
+					 if (esql.storage().checkPassword(user, password)){
+						//delete account, failing while anything still refers to it
+						esql.storage().deleteUser(user);
 						System.out.println("Your account has been successfully deleted.");
 					  return null;
 					}
@@ -1070,8 +1943,7 @@ public class Messenger {
 				  }
 				  else if(input.compareToIgnoreCase("yes")== 0 || input.compareToIgnoreCase("y") == 0){
 
-            String query = String.format("UPDATE usr SET password='!JbB_3a#A)BG?1' WHERE login='%s'", user);
-						esql.executeUpdate(query);
+						esql.storage().deactivateUser(user);
 						System.out.println("Your account has been successfully deleted.");
             return null;
           }
@@ -0,0 +1,240 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * This interface is everything the user interface asks of the data: users
+ * and their contact and block lists, chats and their members, and
+ * messages. PostgresStorage keeps them in the (possibly sharded and
+ * replicated) database; InMemoryStorage keeps them in this process only.
+ *
+ * Logins, passwords and texts are passed as the user typed them; escaping
+ * them for SQL is up to the implementation. Failures are reported as
+ * SQLExceptions by either one, so the interface can stand in for the
+ * database without changing how callers handle errors.
+ *
+ */
+public interface MessengerStorage {
+
+   /**
+    * The two lists every user has.
+    */
+   enum ListKind { CONTACT, BLOCK }
+
+   /**
+    * A chat as listed for one of its members.
+    */
+   class ChatSummary {
+      public final int chatId;
+      public final String type;
+      public final String initSender;
+      public final Timestamp lastMessage;
+      public final int unread;
+
+      public ChatSummary (int chatId, String type, String initSender, Timestamp lastMessage, int unread) {
+         this.chatId = chatId;
+         this.type = type;
+         this.initSender = initSender;
+         this.lastMessage = lastMessage;
+         this.unread = unread;
+      }
+   }//end ChatSummary
+
+   /**
+    * One message of a chat.
+    */
+   class Message {
+      public final int msgId;
+      public final String text;
+      public final Timestamp timestamp;
+      public final String sender;
+
+      public Message (int msgId, String text, Timestamp timestamp, String sender) {
+         this.msgId = msgId;
+         this.text = text;
+         this.timestamp = timestamp;
+         this.sender = sender;
+      }
+   }//end Message
+
+   /**
+    * How far a member has read a chat.
+    */
+   class ReadCursor {
+      public final int lastRead;
+      public final int unread;
+
+      public ReadCursor (int lastRead, int unread) {
+         this.lastRead = lastRead;
+         this.unread = unread;
+      }
+   }//end ReadCursor
+
+   // ------------------------------------------------------------ users
+
+   /**
+    * Creates a user with empty contact and block lists.
+    *
+    * @throws java.sql.SQLException when the login or phone is in use
+    */
+   void createUser (String login, String password, String phone) throws SQLException;
+
+   /**
+    * @return true when the login exists with that password
+    */
+   boolean checkPassword (String login, String password) throws SQLException;
+
+   /**
+    * @return those of the logins that belong to users
+    */
+   Set<String> existingUsers (Collection<String> logins) throws SQLException;
+
+   /**
+    * Deletes a user that nothing but lists refers to.
+    *
+    * @throws java.sql.SQLException when the user still has chats or messages
+    */
+   void deleteUser (String login) throws SQLException;
+
+   /**
+    * Locks a user out while keeping everything that refers to them.
+    */
+   void deactivateUser (String login) throws SQLException;
+
+   /**
+    * @return the status of each login that exists, null when unset
+    */
+   Map<String, String> statuses (Collection<String> logins) throws SQLException;
+
+   void setStatus (String login, String status) throws SQLException;
+
+   /**
+    * @return the version of the latest status change
+    */
+   long statusVersion ();
+
+   /**
+    * @return the latest change of each login changed after the version, or
+    *         null when they are no longer known
+    */
+   List<StatusCache.Change> statusChangesSince (long version);
+
+   // ------------------------------------------------------------ lists
+
+   /**
+    * @return the members of one of the user's lists
+    */
+   List<String> list (String login, ListKind kind) throws SQLException;
+
+   /**
+    * @return false when member was on the list already
+    */
+   boolean addToList (String login, ListKind kind, String member) throws SQLException;
+
+   /**
+    * @return false when member was not on the list
+    */
+   boolean removeFromList (String login, ListKind kind, String member) throws SQLException;
+
+   /**
+    * Adds several users to one of the user's lists at once.
+    *
+    * @return the members that were not on the list yet
+    * @throws java.sql.SQLException when a member is not a user
+    */
+   List<String> addAllToList (String login, ListKind kind, Collection<String> members) throws SQLException;
+
+   /**
+    * Matches phone numbers, as written in an address book, against those
+    * of the users, comparing them as normalized by PhoneNumbers.
+    *
+    * @return the login of each phone number that belongs to a user
+    */
+   Map<String, String> usersByPhone (Collection<String> phones) throws SQLException;
+
+   /**
+    * @return those of the candidates on the user's contact list
+    */
+   Set<String> contactsAmong (String login, Collection<String> candidates) throws SQLException;
+
+   /**
+    * @return those of the others who have the user on their block list
+    */
+   Set<String> blockedBy (String login, Collection<String> others) throws SQLException;
+
+   /**
+    * @return the users most of the user's contacts have as contacts
+    */
+   List<ContactGraph.Suggestion> suggestContacts (String login, int limit) throws SQLException;
+
+   // ------------------------------------------------------------ chats
+
+   /**
+    * @return the user's chats that have messages, least recently active first
+    */
+   List<ChatSummary> chatsOf (String login) throws SQLException;
+
+   /**
+    * Creates a chat of initSender and members, opened with a first message
+    * from initSender.
+    *
+    * @return the chat id
+    */
+   int createChat (String initSender, List<String> members, String welcome) throws SQLException;
+
+   boolean isChatMember (int chat_id, String login) throws SQLException;
+
+   /**
+    * @return the initial sender, or null when there is no such chat
+    */
+   String chatInitSender (int chat_id) throws SQLException;
+
+   List<String> chatMembers (int chat_id) throws SQLException;
+
+   /**
+    * @return those of the candidates in the chat
+    */
+   Set<String> chatMembersAmong (int chat_id, Collection<String> candidates) throws SQLException;
+
+   /**
+    * Adds members not in the chat yet; the history counts as read by them.
+    */
+   void addChatMembers (int chat_id, List<String> members) throws SQLException;
+
+   /**
+    * Removes members of the chat, deleting a chat left with one member.
+    *
+    * @return false when the chat was deleted
+    */
+   boolean removeChatMembers (int chat_id, List<String> members) throws SQLException;
+
+   void deleteChat (int chat_id) throws SQLException;
+
+   // ------------------------------------------------------------ messages
+
+   /**
+    * Adds a message, counting it as unread for the other members and as
+    * read for the sender.
+    */
+   void postMessage (int chat_id, String sender, String text) throws SQLException;
+
+   /**
+    * @return the member's cursor, or null when login is not in the chat
+    */
+   ReadCursor readCursor (int chat_id, String login) throws SQLException;
+
+   /**
+    * @return up to limit messages with ids below before, oldest first
+    */
+   List<Message> messagesBefore (int chat_id, int before, int limit) throws SQLException;
+
+   /**
+    * Moves the member's cursor forward to msg_id.
+    */
+   void advanceReadCursor (int chat_id, String login, int msg_id) throws SQLException;
+
+}//end MessengerStorage
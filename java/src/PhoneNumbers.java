@@ -0,0 +1,73 @@
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * This class brings phone numbers written in different ways to one form,
+ * so an address book can be matched against USR.phoneNum: the digits
+ * alone, with the country code in front. A number written without one
+ * ("(555) 123-4567") gets the default country code, and an international
+ * prefix of 00 counts as a +.
+ *
+ * USR.phoneNum is indexed by its digits alone (usr_phone_digits_index),
+ * which may or may not include a country code, so a normalized number is
+ * looked up under both forms.
+ *
+ */
+public class PhoneNumbers {
+
+   // numbers shorter than this are extensions or typos, not phones
+   private static final int MIN_DIGITS = 7;
+
+   private static final String COUNTRY_CODE = System.getProperty("messenger.countryCode", "1");
+   private static final int NATIONAL_DIGITS = Integer.getInteger("messenger.nationalDigits", 10);
+
+   private PhoneNumbers () {
+   }//end PhoneNumbers
+
+   /**
+    * @param phone a phone number as written
+    * @return its digits with the country code in front, or null when it
+    *         has too few digits to be a phone number
+    */
+   public static String normalize (String phone) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < phone.length(); ++i) {
+         char c = phone.charAt(i);
+         if (c >= '0' && c <= '9')
+            sb.append(c);
+      }//end for
+      String digits = sb.toString();
+      if (digits.length() < MIN_DIGITS)
+         return null;
+      if (phone.trim().startsWith("+"))
+         return digits;
+      if (digits.startsWith("00"))
+         return digits.substring(2);
+      if (digits.length() == NATIONAL_DIGITS)
+         return COUNTRY_CODE + digits;
+      return digits;
+   }//end normalize
+
+   /**
+    * @param normalized a number returned by normalize
+    * @return the digit strings it may be stored as: itself and, in the
+    *         default country, the number without the country code
+    */
+   public static List<String> keys (String normalized) {
+      List<String> keys = new ArrayList<String>();
+      keys.add(normalized);
+      if (normalized.startsWith(COUNTRY_CODE) && normalized.length() == COUNTRY_CODE.length() + NATIONAL_DIGITS)
+         keys.add(normalized.substring(COUNTRY_CODE.length()));
+      return keys;
+   }//end keys
+
+   /**
+    * @param stored the digits of a stored phone number, one of the keys
+    * @return the normalized number it is a key of
+    */
+   public static String fromDigits (String stored) {
+      return stored.length() == NATIONAL_DIGITS ? COUNTRY_CODE + stored : stored;
+   }//end fromDigits
+
+}//end PhoneNumbers
@@ -0,0 +1,223 @@
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+/**
+ * This class delivers the USR changes of every shard, whichever node or
+ * client made them. The usr_changed trigger (triggers.sql) records the
+ * login of each changed row in USR_CHANGES and sends NOTIFY usr_changed;
+ * this channel LISTENs on a connection of its own per shard and, when
+ * notified, reads the rows added since it last looked.
+ *
+ * The notifications of this JDBC driver carry no payload, hence the
+ * table; it also means a notification lost with a connection costs
+ * nothing but an invalidate-all. The driver only reads notifications
+ * while running a statement, so each connection is polled with a trivial
+ * query. getNotifications() is reached by reflection so this class
+ * compiles without the driver.
+ *
+ * Versions are taken when a change is made but become visible when its
+ * transaction commits, which need not be in version order. A version
+ * skipped over is remembered as a gap and asked for again on every read
+ * until it shows up or is older than the changes kept in USR_CHANGES
+ * (its transaction was most likely rolled back).
+ *
+ */
+public class PostgresInvalidationChannel implements InvalidationChannel {
+
+   // the most versions remembered as missing per shard
+   private static final int MAX_GAPS = 1000;
+
+   private final List<Connection> _connections;
+   private final long[] _versions;
+   // per shard, versions below _versions not seen yet -> when first missed
+   private final List<TreeMap<Long, Long>> _gaps = new ArrayList<TreeMap<Long, Long>>();
+   private final long _pollMillis;
+   private final long _retainMillis;
+   private final List<Listener> _listeners = new CopyOnWriteArrayList<Listener>();
+   private final Thread _poller;
+   private volatile boolean _closed = false;
+
+   /**
+    * Creates a new instance of PostgresInvalidationChannel and starts
+    * listening.
+    *
+    * @param connections a connection to the primary of each shard, used by nothing else
+    * @param pollMillis how often to check for notifications
+    * @param retainMillis how long changes are kept in USR_CHANGES
+    * @throws java.sql.SQLException when failed to LISTEN or read USR_CHANGES
+    */
+   public PostgresInvalidationChannel (List<Connection> connections, long pollMillis, long retainMillis) throws SQLException {
+      this._connections = connections;
+      this._versions = new long[connections.size()];
+      this._pollMillis = pollMillis;
+      this._retainMillis = retainMillis;
+      for (int s = 0; s < connections.size(); ++s) {
+         this._versions[s] = listen(connections.get(s));
+         this._gaps.add(new TreeMap<Long, Long>());
+      }//end for
+      this._poller = new Thread(new Runnable() {
+         public void run () {
+            poll ();
+         }
+      }, "usr-invalidation");
+      this._poller.setDaemon(true);
+      this._poller.start();
+   }//end PostgresInvalidationChannel
+
+   /*
+    * LISTENs on a connection and returns the latest change already made
+    **/
+   private static long listen (Connection conn) throws SQLException {
+      Statement stmt = conn.createStatement();
+      try{
+         stmt.executeUpdate("LISTEN usr_changed");
+         ResultSet rs = stmt.executeQuery("SELECT COALESCE(max(version), 0) FROM usr_changes");
+         rs.next();
+         return rs.getLong(1);
+      }finally{
+         stmt.close();
+      }//end try
+   }//end listen
+
+   public void subscribe (Listener listener) {
+      this._listeners.add(listener);
+   }//end subscribe
+
+   public void publish (String login) {
+      // the trigger announces every change, this node's included
+   }//end publish
+
+   private void poll () {
+      long lastPrune = System.currentTimeMillis();
+      boolean failing = false;
+      while (!this._closed) {
+         try{
+            Thread.sleep(this._pollMillis);
+         }catch (InterruptedException e){
+            return;
+         }//end try
+         try{
+            for (int s = 0; s < this._connections.size(); ++s) {
+               if (notified(this._connections.get(s)))
+                  this._versions[s] = deliver(this._connections.get(s), this._versions[s], this._gaps.get(s));
+            }//end for
+            if (System.currentTimeMillis() - lastPrune > this._retainMillis / 2){
+               for (Connection conn : this._connections)
+                  prune(conn);
+               lastPrune = System.currentTimeMillis();
+            }//end if
+            failing = false;
+         }catch (SQLException e){
+            if (this._closed)
+               return;
+            // whatever happened meanwhile went unseen
+            if (!failing)
+               System.err.println("USR invalidations interrupted: " + e.getMessage());
+            failing = true;
+            for (Listener l : this._listeners)
+               l.invalidatedAll ();
+         }//end try
+      }//end while
+   }//end poll
+
+   /*
+    * Runs a trivial statement so the driver takes in pending notifications,
+    * then drains them
+    **/
+   private static boolean notified (Connection conn) throws SQLException {
+      Statement stmt = conn.createStatement();
+      try{
+         stmt.executeQuery("SELECT 1").close();
+      }finally{
+         stmt.close();
+      }//end try
+      try{
+         Method m = conn.getClass().getMethod("getNotifications");
+         Object[] notifications = (Object[]) m.invoke(conn);
+         return notifications != null && notifications.length > 0;
+      }catch (Exception e){
+         // a driver without notifications: read the table every time
+         return true;
+      }//end try
+   }//end notified
+
+   /*
+    * Delivers the changes after version and those of the gaps, and
+    * returns the latest version
+    **/
+   private long deliver (Connection conn, long version, TreeMap<Long, Long> gaps) throws SQLException {
+      long now = System.currentTimeMillis();
+      for (Iterator<Long> i = gaps.values().iterator(); i.hasNext(); ) {
+         if (now - i.next() > this._retainMillis)
+            i.remove();
+      }//end for
+      StringBuilder query = new StringBuilder(String.format("SELECT version, login FROM usr_changes WHERE version > %d", version));
+      if (!gaps.isEmpty()){
+         query.append(" OR version IN (");
+         boolean first = true;
+         for (Long v : gaps.keySet()) {
+            query.append(first ? "" : ", ").append(v);
+            first = false;
+         }//end for
+         query.append(")");
+      }//end if
+      query.append(" ORDER BY version");
+
+      Statement stmt = conn.createStatement();
+      try{
+         ResultSet rs = stmt.executeQuery(query.toString());
+         while (rs.next()) {
+            long v = rs.getLong(1);
+            if (v > version){
+               for (long missed = version + 1; missed < v; ++missed)
+                  gaps.put(missed, now);
+               version = v;
+            }else{
+               gaps.remove(v);
+            }//end if
+            for (Listener l : this._listeners)
+               l.invalidated (rs.getString(2));
+         }//end while
+      }finally{
+         stmt.close();
+      }//end try
+      // past the bound, forget the gaps but drop everything they may hide
+      if (gaps.size() > MAX_GAPS){
+         gaps.clear();
+         for (Listener l : this._listeners)
+            l.invalidatedAll ();
+      }//end if
+      return version;
+   }//end deliver
+
+   private void prune (Connection conn) throws SQLException {
+      Statement stmt = conn.createStatement();
+      try{
+         stmt.executeUpdate(String.format("DELETE FROM usr_changes WHERE changed_at < now() - interval '%d milliseconds'", this._retainMillis));
+      }finally{
+         stmt.close();
+      }//end try
+   }//end prune
+
+   public void close () {
+      this._closed = true;
+      this._poller.interrupt();
+      for (Connection conn : this._connections) {
+         try{
+            conn.close();
+         }catch (SQLException e){
+            // ignored.
+         }//end try
+      }//end for
+   }//end close
+
+}//end PostgresInvalidationChannel
@@ -0,0 +1,618 @@
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * This class is the storage of the user interface in PostgreSQL, through
+ * the connections, shard and replica routing, caches and membership index
+ * of a Messenger. Every value is escaped with sanitize_input on its way
+ * into SQL, and logins come back trimmed of their char(50) padding.
+ *
+ * When the Messenger has a MessageLog, new messages go to the log instead
+ * of the MESSAGE table and only reading a chat moves a cursor in
+ * CHAT_LIST. A member's unread count is then the unread_count of the
+ * messages still in the table plus the log's messages after their cursor.
+ *
+ * Message texts in the MESSAGE table are kept in MESSAGE_BODY when the
+ * Messenger's MessageBodies writes new bodies; either way, rows that refer
+ * to a body are read back through it.
+ *
+ * USR rows, passwords aside, are read through the Messenger's
+ * ProfileCache. Misses are read from the primaries, since a replica may
+ * still show a row older than the invalidations already received.
+ *
+ */
+public class PostgresStorage implements MessengerStorage {
+
+   // the password that locks a deactivated account
+   private static final String DEACTIVATED = "!JbB_3a#A)BG?1";
+
+   private final Messenger _esql;
+   private final MessageLog _log;
+   private final ProfileCache _profiles;
+   private final MessageBodies _bodies;
+
+   /**
+    * Creates a new instance of PostgresStorage
+    *
+    * @param esql the connected Messenger to run the statements on
+    */
+   public PostgresStorage (Messenger esql) {
+      this._esql = esql;
+      this._log = esql.messageLog();
+      this._profiles = esql.profiles();
+      this._bodies = esql.messageBodies();
+   }//end PostgresStorage
+
+   private static SQLException logFailure (IOException e) {
+      return new SQLException("Message log: " + e.getMessage());
+   }//end logFailure
+
+   private static String q (String s) {
+      return Messenger.sanitize_input(s);
+   }//end q
+
+   private static String column (ListKind kind) {
+      return kind == ListKind.CONTACT ? "contact_list" : "block_list";
+   }//end column
+
+   /*
+    * Sanitizes every login of a collection, keeping its order
+    **/
+   private static List<String> q (Collection<String> logins) {
+      List<String> result = new ArrayList<String>();
+      for (String l : logins)
+         result.add(q(l));
+      return result;
+   }//end q
+
+   /*
+    * Undoes sanitize_input on the logins gathered by Messenger.gatherLogins
+    **/
+   private static Set<String> raw (Set<String> logins) {
+      Set<String> result = new HashSet<String>();
+      for (String l : logins)
+         result.add(Messenger.unsanitize_input(l));
+      return result;
+   }//end raw
+
+   private static String trim (String s) {
+      return s == null ? null : s.trim();
+   }//end trim
+
+   // ------------------------------------------------------------ users
+
+   /*
+    * The profiles of the logins that exist, keyed by trimmed login, read
+    * through the profile cache with one query per shard for the misses
+    **/
+   private Map<String, ProfileCache.Profile> profiles (Collection<String> logins) throws SQLException {
+      Map<String, ProfileCache.Profile> result = new HashMap<String, ProfileCache.Profile>();
+      List<String> misses = new ArrayList<String>();
+      for (String login : logins) {
+         ProfileCache.Profile p = this._profiles.get(login);
+         if (p != null)
+            result.put(p.login, p);
+         else
+            misses.add(q(login.trim()));
+      }//end for
+      if (misses.isEmpty())
+         return result;
+
+      long generation = this._profiles.generation();
+      for (Map.Entry<Integer, List<String>> e : Messenger.groupByShard(this._esql, misses).entrySet()) {
+         String query = String.format("SELECT login, phoneNum, block_list, contact_list FROM usr WHERE login IN (%s)", Messenger.sqlList(e.getValue()));
+         for (List<String> r : this._esql.executeQueryAndReturnResult(this._esql.shards().shard(e.getKey()), query)) {
+            ProfileCache.Profile p = new ProfileCache.Profile(r.get(0).trim(), trim(r.get(1)),
+                  Integer.parseInt(r.get(2).trim()), Integer.parseInt(r.get(3).trim()));
+            this._profiles.load(p, generation);
+            result.put(p.login, p);
+         }//end for
+      }//end for
+      return result;
+   }//end profiles
+
+   /*
+    * The profile of one login, or null if there is no such user
+    **/
+   private ProfileCache.Profile profile (String login) throws SQLException {
+      return profiles(Collections.singletonList(login)).get(login.trim());
+   }//end profile
+
+   /*
+    * Drops a USR row this node changed from the caches of every node. The
+    * postgres channel hears of it from the trigger as well, but this node
+    * should not wait for that.
+    **/
+   private void changed (String login) {
+      this._profiles.invalidated(login);
+      this._esql.invalidation().publish(login);
+   }//end changed
+
+   public void createUser (String login, String password, String phone) throws SQLException {
+      //the user and its empty contact\block lists, on the user's shard
+      ReplicaRouter shard = this._esql.userShard(q(login));
+      int[] list_ids = shard.ids("user_list_list_id_seq").next(2);
+      int block_id = list_ids[0];
+      int contact_id = list_ids[1];
+      this._esql.executeTransaction(shard,
+            String.format("INSERT INTO USER_LIST(list_id, list_type) VALUES (%d, 'block'), (%d, 'contact')", block_id, contact_id),
+            String.format("INSERT INTO USR (phoneNum, login, password, block_list, contact_list) VALUES ('%s','%s','%s',%s,%s)", q(phone), q(login), q(password), block_id, contact_id));
+      changed(login);
+   }//end createUser
+
+   public boolean checkPassword (String login, String password) throws SQLException {
+      String query = String.format("SELECT * FROM Usr WHERE login = '%s' AND password = '%s'", q(login), q(password));
+      return this._esql.executeQuery(this._esql.userShard(q(login)), query) > 0;
+   }//end checkPassword
+
+   public Set<String> existingUsers (Collection<String> logins) throws SQLException {
+      return new HashSet<String>(profiles(logins).keySet());
+   }//end existingUsers
+
+   public void deleteUser (String login) throws SQLException {
+      //foreign keys cannot see references from other shards, so sharded accounts are always deactivated
+      if (this._esql.shards().isSharded())
+         throw new SQLException("account may be referenced from other shards");
+      this._esql.executeUpdate(this._esql.userShard(q(login)), String.format("DELETE FROM usr WHERE login='%s'", q(login)));
+      changed(login);
+   }//end deleteUser
+
+   public void deactivateUser (String login) throws SQLException {
+      String query = String.format("UPDATE usr SET password='%s' WHERE login='%s'", q(DEACTIVATED), q(login));
+      this._esql.executeUpdate(this._esql.userShard(q(login)), query);
+      changed(login);
+   }//end deactivateUser
+
+   public Map<String, String> statuses (Collection<String> logins) throws SQLException {
+      return this._esql.statusesOf(logins);
+   }//end statuses
+
+   public void setStatus (String login, String status) throws SQLException {
+      String query = String.format("UPDATE usr SET status='%s' WHERE login='%s'", q(status), q(login));
+      this._esql.executeUpdate(this._esql.userShard(q(login)), query);
+      this._esql.statuses().publish(login, status);
+   }//end setStatus
+
+   public long statusVersion () {
+      return this._esql.statuses().version();
+   }//end statusVersion
+
+   public List<StatusCache.Change> statusChangesSince (long version) {
+      return this._esql.statuses().changesSince(version);
+   }//end statusChangesSince
+
+   // ------------------------------------------------------------ lists
+
+   public List<String> list (String login, ListKind kind) throws SQLException {
+      String query = String.format("SELECT list_member FROM User_list_contains L, Usr U WHERE U.login = '%s' AND L.list_id = U.%s", q(login), column(kind));
+      List<String> members = new ArrayList<String>();
+      for (List<String> m : this._esql.executeReadQueryAndReturnResult(this._esql.userShard(q(login)), query))
+         members.add(m.get(0).trim());
+      return members;
+   }//end list
+
+   /*
+    * The list id of one of the user's lists, from the profile cache
+    **/
+   private String listId (String login, ListKind kind) throws SQLException {
+      ProfileCache.Profile p = profile(login);
+      if (p == null)
+         throw new SQLException("no such user: " + login);
+      return Integer.toString(kind == ListKind.CONTACT ? p.contactList : p.blockList);
+   }//end listId
+
+   public boolean addToList (String login, ListKind kind, String member) throws SQLException {
+      ReplicaRouter shard = this._esql.userShard(q(login));
+      String list_id = listId(login, kind);
+      String query = String.format("SELECT * FROM user_list_contains WHERE list_id = '%s' AND list_member = '%s'", list_id, q(member));
+      if (this._esql.executeQuery(shard, query) > 0)
+         return false;
+      query = String.format("INSERT INTO user_list_contains(list_id, list_member) VALUES('%s', '%s') ", list_id, q(member));
+      this._esql.executeUpdate(shard, query);
+      if (kind == ListKind.CONTACT)
+         this._esql.contactGraph().addContact(login.trim(), member.trim());
+      else
+         this._esql.contactGraph().addBlock(login.trim(), member.trim());
+      return true;
+   }//end addToList
+
+   public boolean removeFromList (String login, ListKind kind, String member) throws SQLException {
+      ReplicaRouter shard = this._esql.userShard(q(login));
+      String list_id = listId(login, kind);
+      String query = String.format("SELECT * FROM user_list_contains WHERE list_id = '%s' AND list_member = '%s'", list_id, q(member));
+      if (this._esql.executeQuery(shard, query) == 0)
+         return false;
+      query = String.format("DELETE FROM user_list_contains WHERE list_id = '%s' AND list_member = '%s'", list_id, q(member));
+      this._esql.executeUpdate(shard, query);
+      if (kind == ListKind.CONTACT)
+         this._esql.contactGraph().removeContact(login.trim(), member.trim());
+      else
+         this._esql.contactGraph().removeBlock(login.trim(), member.trim());
+      return true;
+   }//end removeFromList
+
+   public List<String> addAllToList (String login, ListKind kind, Collection<String> members) throws SQLException {
+      List<String> added = new ArrayList<String>();
+      if (members.isEmpty())
+         return added;
+      ReplicaRouter shard = this._esql.userShard(q(login));
+      String list_id = listId(login, kind);
+      Set<String> present = new HashSet<String>();
+      String query = String.format("SELECT list_member FROM user_list_contains WHERE list_id = %s AND list_member IN (%s)", list_id, Messenger.sqlList(q(members)));
+      for (List<String> r : this._esql.executeQueryAndReturnResult(shard, query))
+         present.add(r.get(0).trim());
+      for (String m : members) {
+         if (present.add(m.trim()))
+            added.add(m.trim());
+      }//end for
+      if (added.isEmpty())
+         return added;
+      //one insert for the whole batch
+      query = String.format("INSERT INTO user_list_contains(list_id, list_member) SELECT %s, member FROM (VALUES %s) AS M(member)", list_id, Messenger.sqlRows(q(added)));
+      this._esql.executeUpdate(shard, query);
+      for (String m : added) {
+         if (kind == ListKind.CONTACT)
+            this._esql.contactGraph().addContact(login.trim(), m);
+         else
+            this._esql.contactGraph().addBlock(login.trim(), m);
+      }//end for
+      return added;
+   }//end addAllToList
+
+   public Map<String, String> usersByPhone (Collection<String> phones) throws SQLException {
+      //the phones as given of each normalized number, and every form it may be stored in
+      Map<String, List<String>> given = new HashMap<String, List<String>>();
+      Set<String> keys = new LinkedHashSet<String>();
+      for (String p : phones) {
+         String n = PhoneNumbers.normalize(p);
+         if (n == null)
+            continue;
+         List<String> g = given.get(n);
+         if (g == null)
+            given.put(n, g = new ArrayList<String>());
+         g.add(p);
+         keys.addAll(PhoneNumbers.keys(n));
+      }//end for
+      Map<String, String> result = new HashMap<String, String>();
+      if (keys.isEmpty())
+         return result;
+
+      //one pass over the digits index of every shard, as users live wherever their login puts them
+      String query = String.format("SELECT login, regexp_replace(phoneNum, '[^0-9]', '', 'g') FROM usr WHERE regexp_replace(phoneNum, '[^0-9]', '', 'g') IN (%s)", Messenger.sqlList(keys));
+      Map<Integer, String> queries = new HashMap<Integer, String>();
+      for (int s = 0; s < this._esql.shards().count(); ++s)
+         queries.put(s, query);
+      for (List<String> r : this._esql.gatherReadQueries(queries)) {
+         List<String> g = given.get(PhoneNumbers.fromDigits(r.get(1).trim()));
+         if (g == null)
+            continue;
+         for (String p : g)
+            result.put(p, r.get(0).trim());
+      }//end for
+      return result;
+   }//end usersByPhone
+
+   public Set<String> contactsAmong (String login, Collection<String> candidates) throws SQLException {
+      Set<String> result = new HashSet<String>();
+      if (candidates.isEmpty())
+         return result;
+      String query = String.format("SELECT list_member FROM User_list_contains L, Usr U WHERE U.login = '%s' AND L.list_id = U.contact_list AND L.list_member IN (%s)", q(login), Messenger.sqlList(q(candidates)));
+      for (List<String> r : this._esql.executeQueryAndReturnResult(this._esql.userShard(q(login)), query))
+         result.add(r.get(0).trim());
+      return result;
+   }//end contactsAmong
+
+   public Set<String> blockedBy (String login, Collection<String> others) throws SQLException {
+      if (others.isEmpty())
+         return new HashSet<String>();
+      return raw(Messenger.gatherLogins(this._esql, q(others), "SELECT U.login FROM User_list_contains L, Usr U WHERE L.list_id = U.block_list AND L.list_member = '" + q(login).replace("%", "%%") + "' AND U.login IN (%s)"));
+   }//end blockedBy
+
+   public List<ContactGraph.Suggestion> suggestContacts (String login, int limit) throws SQLException {
+      return this._esql.loadedContactGraph().suggest(login.trim(), limit);
+   }//end suggestContacts
+
+   // ------------------------------------------------------------ chats
+
+   public List<ChatSummary> chatsOf (String login) throws SQLException {
+      String user = q(login);
+      //with the log, the newest message and the unread count come from it, not from MESSAGE
+      String format = this._log == null
+            ? "SELECT chat.chat_id, chat_type, init_sender, max AS msg_timestamp, unread_count FROM chat, chat_list, (SELECT chat_id, max(msg_timestamp) FROM message%s GROUP BY chat_id) msg WHERE chat_list.member = '%s' AND chat.chat_id = msg.chat_id AND chat_list.chat_id = msg.chat_id"
+            : "SELECT chat.chat_id, chat_type, init_sender, (SELECT max(msg_timestamp) FROM message M WHERE M.chat_id = chat.chat_id), unread_count, last_read_msg_id FROM chat, chat_list WHERE chat_list.member = '%2$s' AND chat.chat_id = chat_list.chat_id%1$s";
+      String filter = this._log == null ? " WHERE chat_id IN (%s)" : " AND chat.chat_id IN (%s)";
+      List<List<String>> rows;
+      if (!this._esql.shards().isSharded()){
+         rows = this._esql.executeReadQueryAndReturnResult(String.format(format, "", user));
+      }else{
+         //the directory on the user's shard names the chats, including those the
+         //membership index has not seen; each chat shard is then asked for its part
+         List<Integer> chat_ids = new ArrayList<Integer>();
+         String query = String.format("SELECT chat_id FROM chat_directory WHERE member = '%s'", user);
+         for (List<String> c : this._esql.executeReadQueryAndReturnResult(this._esql.userShard(user), query))
+            chat_ids.add(Integer.parseInt(c.get(0).trim()));
+         Map<Integer, StringBuilder> ids = new HashMap<Integer, StringBuilder>();
+         for (int chat_id : chat_ids) {
+            int shard = this._esql.shards().shardOfChat(chat_id);
+            StringBuilder shardIds = ids.get(shard);
+            if (shardIds == null)
+               ids.put(shard, shardIds = new StringBuilder());
+            else
+               shardIds.append(", ");
+            shardIds.append(chat_id);
+         }//end for
+         Map<Integer, String> queries = new HashMap<Integer, String>();
+         for (Map.Entry<Integer, StringBuilder> e : ids.entrySet())
+            queries.put(e.getKey(), String.format(format, String.format(filter, e.getValue()), user));
+         rows = this._esql.gatherReadQueries(queries);
+      }//end if
+
+      List<ChatSummary> chats = new ArrayList<ChatSummary>();
+      for (List<String> r : rows) {
+         int chat_id = Integer.parseInt(r.get(0).trim());
+         Timestamp last = r.get(3) == null ? null : Timestamp.valueOf(r.get(3).trim());
+         int unread = Integer.parseInt(r.get(4).trim());
+         if (this._log != null){
+            Timestamp logged = this._log.lastTimestamp(chat_id);
+            if (logged != null)
+               last = logged;
+            unread += this._log.unread(chat_id, Integer.parseInt(r.get(5).trim()), login);
+         }//end if
+         if (last != null)
+            chats.add(new ChatSummary(chat_id, trim(r.get(1)), trim(r.get(2)), last, unread));
+      }//end for
+      Collections.sort(chats, new Comparator<ChatSummary>() {
+         public int compare (ChatSummary a, ChatSummary b) {
+            return a.lastMessage.compareTo(b.lastMessage);
+         }
+      });
+      return chats;
+   }//end chatsOf
+
+   public int createChat (String initSender, List<String> members, String welcome) throws SQLException {
+      String user = q(initSender);
+      //the chat, its members and the welcome message go in together
+      int shard_index = this._esql.shards().nextChatShard();
+      ReplicaRouter shard = this._esql.shards().shard(shard_index);
+      int chat_id = shard.ids("chat_chat_id_seq").next();
+      if (this._esql.shards().shardOfChat(chat_id) != shard_index)
+         throw new SQLException(String.format("chat_chat_id_seq on shard %d is not strided for %d shards", shard_index, this._esql.shards().count()));
+      int member_count = members.size() + 1;
+      String chat_type = member_count > 2 ? "group" : "private";
+
+      List<String> all = new ArrayList<String>();
+      all.add(user);
+      all.addAll(q(members));
+      List<String> sql = new ArrayList<String>();
+      sql.add(String.format("INSERT INTO chat(chat_id, chat_type, init_sender, member_count) VALUES(%d, '%s', '%s', %d)", chat_id, chat_type, user, member_count));
+      sql.add(String.format("INSERT INTO chat_list(chat_id, member) SELECT %d, member FROM (VALUES %s) AS M(member)", chat_id, Messenger.sqlRows(all)));
+      if (this._log == null)
+         postMessageTransaction(shard, sql, user, chat_id, welcome);
+      else
+         this._esql.executeTransaction(shard, sql.toArray(new String[sql.size()]));
+      if (this._log != null){
+         try{
+            this._log.append(chat_id, initSender, welcome);
+         }catch (IOException e){
+            throw logFailure(e);
+         }//end try
+      }//end if
+
+      this._esql.addToDirectory(all, chat_id);
+      this._esql.membership().addChat(chat_id, chat_type, initSender);
+      this._esql.membership().addMember(chat_id, initSender);
+      for (String m : members)
+         this._esql.membership().addMember(chat_id, m);
+      return chat_id;
+   }//end createChat
+
+   public boolean isChatMember (int chat_id, String login) throws SQLException {
+      return this._esql.isChatMember(chat_id, q(login));
+   }//end isChatMember
+
+   public String chatInitSender (int chat_id) throws SQLException {
+      return this._esql.chatInitSender(chat_id);
+   }//end chatInitSender
+
+   public List<String> chatMembers (int chat_id) throws SQLException {
+      String query = String.format("SElECT member FROM chat_list WHERE chat_id=%d", chat_id);
+      List<String> members = new ArrayList<String>();
+      for (List<String> m : this._esql.executeReadQueryAndReturnResult(this._esql.chatShard(chat_id), query))
+         members.add(m.get(0).trim());
+      return members;
+   }//end chatMembers
+
+   public Set<String> chatMembersAmong (int chat_id, Collection<String> candidates) throws SQLException {
+      Set<String> present = new LinkedHashSet<String>();
+      if (candidates.isEmpty())
+         return present;
+      //members the index knows of need no query; the rest may have been added elsewhere
+      List<String> unknown = new ArrayList<String>();
+      for (String c : candidates) {
+         if (this._esql.membership().isEnabled() && this._esql.membership().isMember(chat_id, c))
+            present.add(c.trim());
+         else
+            unknown.add(c);
+      }//end for
+      if (unknown.isEmpty())
+         return present;
+      String query = String.format("SELECT member FROM chat_list WHERE chat_id = %d AND member IN (%s)", chat_id, Messenger.sqlList(q(unknown)));
+      for (List<String> r : this._esql.executeQueryAndReturnResult(this._esql.chatShard(chat_id), query))
+         present.add(r.get(0).trim());
+      return present;
+   }//end chatMembersAmong
+
+   public void addChatMembers (int chat_id, List<String> members) throws SQLException {
+      if (members.isEmpty())
+         return;
+      int n = members.size();
+      List<String> sanitized = q(members);
+      int logged = this._log == null ? 0 : this._log.lastMsgId(chat_id);
+      this._esql.executeTransaction(this._esql.chatShard(chat_id),
+            String.format("INSERT INTO chat_list(chat_id, member, last_read_msg_id) SELECT %d, member, GREATEST((SELECT COALESCE(max(msg_id), 0) FROM message WHERE chat_id = %d), %d) FROM (VALUES %s) AS M(member)", chat_id, chat_id, logged, Messenger.sqlRows(sanitized)),
+            String.format("UPDATE chat SET member_count = member_count + %d, chat_type = CASE WHEN member_count + %d > 2 THEN 'group' ELSE 'private' END WHERE chat_id = %d", n, n, chat_id));
+      this._esql.addToDirectory(sanitized, chat_id);
+      for (String m : members)
+         this._esql.membership().addMember(chat_id, m);
+      if (this._esql.membership().isEnabled())
+         this._esql.membership().setType(chat_id, this._esql.membership().memberCount(chat_id) > 2 ? "group" : "private");
+   }//end addChatMembers
+
+   public boolean removeChatMembers (int chat_id, List<String> members) throws SQLException {
+      if (members.isEmpty())
+         return true;
+      int remaining = this._esql.chatMemberCount(chat_id) - members.size();
+      if (remaining <= 1){
+         deleteChat(chat_id);
+         return false;
+      }//end if
+      int n = members.size();
+      List<String> sanitized = q(members);
+      this._esql.executeTransaction(this._esql.chatShard(chat_id),
+            String.format("DELETE FROM chat_list WHERE chat_id = %d AND member IN (%s)", chat_id, Messenger.sqlList(sanitized)),
+            String.format("UPDATE chat SET member_count = member_count - %d, chat_type = CASE WHEN member_count - %d > 2 THEN 'group' ELSE 'private' END WHERE chat_id = %d", n, n, chat_id));
+      this._esql.removeFromDirectory(sanitized, chat_id);
+      for (String m : members)
+         this._esql.membership().removeMember(chat_id, m);
+      this._esql.membership().setType(chat_id, remaining > 2 ? "group" : "private");
+      return true;
+   }//end removeChatMembers
+
+   public void deleteChat (int chat_id) throws SQLException {
+      ReplicaRouter shard = this._esql.chatShard(chat_id);
+      List<Integer> bodies = new ArrayList<Integer>();
+      for (List<String> row : this._esql.executeQueryAndReturnResult(shard,
+            String.format("SELECT DISTINCT body_id FROM message WHERE chat_id=%d AND body_id IS NOT NULL", chat_id)))
+         bodies.add(Integer.parseInt(row.get(0).trim()));
+      this._esql.executeTransaction(shard,
+            String.format("DELETE FROM chat_list WHERE chat_id=%d", chat_id),
+            String.format("DELETE FROM message WHERE chat_id=%d", chat_id),
+            String.format("DELETE FROM chat WHERE chat_id=%d", chat_id));
+      // bodies only this chat's messages used
+      this._bodies.prune(shard, this._esql.shards().shardOfChat(chat_id), bodies);
+      this._esql.dropFromDirectory(chat_id);
+      this._esql.membership().removeChat(chat_id);
+      if (this._log != null){
+         try{
+            this._log.deleteChat(chat_id);
+         }catch (IOException e){
+            throw logFailure(e);
+         }//end try
+      }//end if
+   }//end deleteChat
+
+   // ------------------------------------------------------------ messages
+
+   public void postMessage (int chat_id, String sender, String text) throws SQLException {
+      if (this._log != null){
+         try{
+            this._log.append(chat_id, sender, text);
+         }catch (IOException e){
+            throw logFailure(e);
+         }//end try
+         return;
+      }//end if
+      postMessageTransaction(this._esql.chatShard(chat_id), new ArrayList<String>(), q(sender), chat_id, text);
+   }//end postMessage
+
+   /*
+    * Runs the given statements and those posting a message in one
+    * transaction. A body id cached from before another client pruned the
+    * body fails the insert; the id is then forgotten and the transaction
+    * tried once more with the body written afresh.
+    **/
+   private void postMessageTransaction (ReplicaRouter shard, List<String> before, String user, int chat_id, String text) throws SQLException {
+      for (int attempt = 0; ; ++attempt) {
+         List<String> sql = new ArrayList<String>(before);
+         Collections.addAll(sql, postMessageSql(user, chat_id, text));
+         try{
+            this._esql.executeTransaction(shard, sql.toArray(new String[sql.size()]));
+            return;
+         }catch (SQLException e){
+            if (attempt > 0 || !this._bodies.writesNew() || !this._bodies.forget(chat_id, text))
+               throw e;
+         }//end try
+      }//end for
+   }//end postMessageTransaction
+
+   /*
+    * Inserts a message and counts it as unread for every other member while
+    * moving the sender's read cursor onto it; the user must be sanitized.
+    * With message bodies on, the body is written first.
+    **/
+   private String[] postMessageSql (String user, int chat_id, String text) throws SQLException {
+      String insert;
+      if (this._bodies.writesNew())
+         insert = String.format("INSERT INTO message(body_id, sender_login, chat_id) VALUES(%d, '%s', %d)", this._bodies.bodyId(chat_id, text), user, chat_id);
+      else
+         insert = String.format("INSERT INTO message(msg_text, sender_login, chat_id) VALUES('%s', '%s', %d)", q(text), user, chat_id);
+      String unread = String.format("UPDATE chat_list SET unread_count = CASE WHEN member = '%s' THEN 0 ELSE unread_count + 1 END, last_read_msg_id = CASE WHEN member = '%s' THEN currval('message_msg_id_seq') ELSE last_read_msg_id END WHERE chat_id = %d", user, user, chat_id);
+      return new String[] { insert, unread };
+   }//end postMessageSql
+
+   public ReadCursor readCursor (int chat_id, String login) throws SQLException {
+      String query = String.format("SELECT last_read_msg_id, unread_count FROM chat_list WHERE chat_id = %d AND member='%s'", chat_id, q(login));
+      List<List<String>> cursor = this._esql.executeQueryAndReturnResult(this._esql.chatShard(chat_id), query);
+      if (cursor.isEmpty())
+         return null;
+      int last_read = Integer.parseInt(cursor.get(0).get(0).trim());
+      int unread = Integer.parseInt(cursor.get(0).get(1).trim());
+      if (this._log != null)
+         unread += this._log.unread(chat_id, last_read, login);
+      return new ReadCursor(last_read, unread);
+   }//end readCursor
+
+   public List<Message> messagesBefore (int chat_id, int before, int limit) throws SQLException {
+      //both stores draw on the same sequence, so their messages interleave by msg_id
+      List<Message> logged = new ArrayList<Message>();
+      if (this._log != null)
+         logged = this._log.messagesBefore(chat_id, before, limit);
+      String query = String.format("SELECT msg_id, msg_text, msg_timestamp, sender_login, body_id FROM message WHERE chat_id = %d AND msg_id < %d ORDER BY msg_id DESC LIMIT %d", chat_id, before, limit);
+      List<List<String>> rows = this._esql.executeReadQueryAndReturnResult(this._esql.chatShard(chat_id), query);
+      //the texts kept as bodies, in one lookup for the page
+      Set<Integer> body_ids = new HashSet<Integer>();
+      for (List<String> r : rows) {
+         if (r.get(4) != null)
+            body_ids.add(Integer.parseInt(r.get(4).trim()));
+      }//end for
+      Map<Integer, String> bodies = new HashMap<Integer, String>();
+      if (!body_ids.isEmpty())
+         bodies = this._bodies.texts(chat_id, body_ids);
+      List<Message> page = new ArrayList<Message>();
+      for (List<String> r : rows) {
+         String text = r.get(4) == null ? r.get(1) : bodies.get(Integer.parseInt(r.get(4).trim()));
+         page.add(new Message(Integer.parseInt(r.get(0).trim()), trim(text), Timestamp.valueOf(r.get(2).trim()), trim(r.get(3))));
+      }//end for
+      Collections.reverse(page);
+      if (logged.isEmpty())
+         return page;
+
+      List<Message> merged = new ArrayList<Message>();
+      int i = 0, j = 0;
+      while (i < page.size() || j < logged.size()) {
+         if (j == logged.size() || (i < page.size() && page.get(i).msgId < logged.get(j).msgId))
+            merged.add(page.get(i++));
+         else
+            merged.add(logged.get(j++));
+      }//end while
+      return new ArrayList<Message>(merged.subList(Math.max(0, merged.size() - limit), merged.size()));
+   }//end messagesBefore
+
+   public void advanceReadCursor (int chat_id, String login, int msg_id) throws SQLException {
+      String query = String.format("UPDATE chat_list SET last_read_msg_id = %d, unread_count = (SELECT count(*) FROM message WHERE chat_id = %d AND msg_id > %d) WHERE chat_id = %d AND member = '%s' AND last_read_msg_id < %d", msg_id, chat_id, msg_id, chat_id, q(login), msg_id);
+      this._esql.executeUpdate(this._esql.chatShard(chat_id), query);
+   }//end advanceReadCursor
+
+}//end PostgresStorage
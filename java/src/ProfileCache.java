@@ -0,0 +1,114 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * This class caches the USR row of each user, minus the password, so
+ * that looking up a login, its phone number or its lists does not cost a
+ * query each time. Entries are read through by PostgresStorage and
+ * dropped by the InvalidationChannel whenever the row changes, on this
+ * node or any other; the cache evicts the least recently used logins past
+ * its capacity.
+ *
+ * A row read from the database is only cached if no invalidation arrived
+ * while it was being read, since it may predate that change.
+ *
+ */
+public class ProfileCache implements InvalidationChannel.Listener {
+
+   /**
+    * The cached part of a USR row.
+    */
+   public static class Profile {
+      public final String login;
+      public final String phone;
+      public final int blockList;
+      public final int contactList;
+
+      public Profile (String login, String phone, int blockList, int contactList) {
+         this.login = login;
+         this.phone = phone;
+         this.blockList = blockList;
+         this.contactList = contactList;
+      }
+   }//end Profile
+
+   private final LinkedHashMap<String, Profile> _entries;
+   // counts invalidations, so a read can tell if it raced with one
+   private long _generation = 0;
+   private long _hits = 0;
+   private long _misses = 0;
+
+   /**
+    * Creates a new instance of ProfileCache
+    *
+    * @param capacity the most logins to keep
+    */
+   public ProfileCache (final int capacity) {
+      this._entries = new LinkedHashMap<String, Profile>(16, 0.75f, true) {
+         protected boolean removeEldestEntry (Map.Entry<String, Profile> eldest) {
+            return size() > capacity;
+         }
+      };
+   }//end ProfileCache
+
+   /**
+    * @param login the user login
+    * @return the cached profile, or null on a miss
+    */
+   public synchronized Profile get (String login) {
+      Profile p = this._entries.get(login.trim());
+      if (p == null)
+         ++this._misses;
+      else
+         ++this._hits;
+      return p;
+   }//end get
+
+   /**
+    * Call before reading a row from the database, and pass the result to
+    * load.
+    *
+    * @return the current generation
+    */
+   public synchronized long generation () {
+      return this._generation;
+   }//end generation
+
+   /**
+    * Caches a row read from the database, unless something was
+    * invalidated since the given generation.
+    *
+    * @param profile the row read
+    * @param generation the generation taken before reading it
+    */
+   public synchronized void load (Profile profile, long generation) {
+      if (generation == this._generation)
+         this._entries.put(profile.login.trim(), profile);
+   }//end load
+
+   public synchronized void invalidated (String login) {
+      ++this._generation;
+      this._entries.remove(login.trim());
+   }//end invalidated
+
+   public synchronized void invalidatedAll () {
+      ++this._generation;
+      this._entries.clear();
+   }//end invalidatedAll
+
+   /**
+    * @return the number of hits
+    */
+   public synchronized long hits () {
+      return this._hits;
+   }//end hits
+
+   /**
+    * @return the number of misses
+    */
+   public synchronized long misses () {
+      return this._misses;
+   }//end misses
+
+}//end ProfileCache
@@ -0,0 +1,173 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * This class routes read-only statements to replica connections and keeps
+ * writes on the primary. A replica is only used while its replication lag is
+ * within the configured staleness tolerance, and reads issued shortly after
+ * this session's own writes stay on the primary (read-your-writes).
+ *
+ */
+public class ReplicaRouter {
+
+   // how often the lag of a replica is re-measured, in milliseconds
+   private static final long LAG_CHECK_INTERVAL = 1000;
+
+   // replica lag in milliseconds; zero on a primary or a caught-up standby
+   private static final String LAG_QUERY =
+      "SELECT CASE WHEN NOT pg_is_in_recovery() " +
+      "OR pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 " +
+      "ELSE EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000 END";
+
+   private final Connection _primary;
+   private final List<Connection> _replicas;
+   private final long _maxStalenessMillis;
+   private final long _stickinessMillis;
+
+   // last measured lag of each replica and when it was measured
+   private final long[] _lagMillis;
+   private final long[] _lagCheckedAt;
+
+   // time of the last write issued by this session
+   private volatile long _lastWriteMillis = 0;
+
+   // round robin position over the replicas
+   private final AtomicInteger _next = new AtomicInteger();
+
+   // key allocators of the primary's sequences, by sequence name
+   private final ConcurrentMap<String, IdAllocator> _allocators = new ConcurrentHashMap<String, IdAllocator>();
+   private final int _idBlockSize;
+
+   /**
+    * Creates a new instance of ReplicaRouter
+    *
+    * @param primary the connection all writes go to
+    * @param replicas the connections read-only statements may go to
+    * @param maxStalenessMillis the largest replica lag tolerated for reads
+    * @param stickinessMillis how long reads stay on the primary after a write
+    * @param idBlockSize how many keys the allocators reserve per round trip
+    */
+   public ReplicaRouter (Connection primary, List<Connection> replicas, long maxStalenessMillis, long stickinessMillis, int idBlockSize) {
+      this._primary = primary;
+      this._replicas = new ArrayList<Connection>(replicas);
+      this._maxStalenessMillis = maxStalenessMillis;
+      this._stickinessMillis = stickinessMillis;
+      this._lagMillis = new long[replicas.size()];
+      this._lagCheckedAt = new long[replicas.size()];
+      this._idBlockSize = idBlockSize;
+   }//end ReplicaRouter
+
+   /**
+    * @return the connection writes and consistency-critical probes use
+    */
+   public Connection primary () {
+      return this._primary;
+   }//end primary
+
+   /**
+    * Picks the connection a read-only statement should run on. Falls back
+    * to the primary when there are no replicas, when this session wrote
+    * recently, or when every replica is too far behind.
+    *
+    * @return the connection to read from
+    */
+   public Connection forRead () {
+      int n = this._replicas.size();
+      if (n == 0)
+         return this._primary;
+      if (System.currentTimeMillis() - this._lastWriteMillis < this._stickinessMillis)
+         return this._primary;
+
+      int start = (this._next.getAndIncrement() & Integer.MAX_VALUE) % n;
+      for (int i = 0; i < n; ++i) {
+         int idx = (start + i) % n;
+         if (lag(idx) <= this._maxStalenessMillis)
+            return this._replicas.get(idx);
+      }//end for
+      return this._primary;
+   }//end forRead
+
+   /**
+    * @param sequence name of a sequence on the primary
+    * @return the allocator handing out that sequence's keys
+    */
+   public IdAllocator ids (String sequence) {
+      IdAllocator a = this._allocators.get(sequence);
+      if (a == null){
+         IdAllocator created = new IdAllocator(this._primary, sequence, this._idBlockSize);
+         a = this._allocators.putIfAbsent(sequence, created);
+         if (a == null)
+            a = created;
+      }//end if
+      return a;
+   }//end ids
+
+   /**
+    * Records that this session has just written to the primary.
+    */
+   public void markWrite () {
+      this._lastWriteMillis = System.currentTimeMillis();
+   }//end markWrite
+
+   /**
+    * @return the number of replica connections
+    */
+   public int replicaCount () {
+      return this._replicas.size();
+   }//end replicaCount
+
+   /**
+    * Returns the lag of a replica, re-measuring it when the cached value is
+    * older than LAG_CHECK_INTERVAL. A replica that cannot be measured is
+    * treated as infinitely stale.
+    */
+   private long lag (int idx) {
+      long now = System.currentTimeMillis();
+      synchronized (this._lagMillis) {
+         if (now - this._lagCheckedAt[idx] < LAG_CHECK_INTERVAL)
+            return this._lagMillis[idx];
+      }
+
+      long lag;
+      try {
+         Connection conn = this._replicas.get(idx);
+         synchronized (conn) {
+            Statement stmt = conn.createStatement ();
+            ResultSet rs = stmt.executeQuery (LAG_QUERY);
+            lag = rs.next() ? (long) rs.getDouble(1) : Long.MAX_VALUE;
+            stmt.close ();
+         }
+      }catch (SQLException e){
+         lag = Long.MAX_VALUE;
+      }//end try
+
+      synchronized (this._lagMillis) {
+         this._lagMillis[idx] = lag;
+         this._lagCheckedAt[idx] = now;
+      }
+      return lag;
+   }//end lag
+
+   /**
+    * Method to close the replica connections. The primary is owned and
+    * closed by the caller.
+    */
+   public void close () {
+      for (Connection c : this._replicas) {
+         try{
+            c.close ();
+         }catch (SQLException e){
+            // ignored.
+         }//end try
+      }//end for
+   }//end close
+
+}//end ReplicaRouter
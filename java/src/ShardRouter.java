@@ -0,0 +1,110 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * This class maps users and chats onto database shards. A user's USR,
+ * USER_LIST, USER_LIST_CONTAINS and CHAT_DIRECTORY rows live on the shard
+ * chosen by a hash of the login. A chat's CHAT, CHAT_LIST and MESSAGE rows
+ * live on the shard chosen by chat_id modulo the shard count; each shard's
+ * chat_chat_id_seq is strided (see sql/src/create_shard.sql) so the ids it
+ * hands out always map back to it.
+ *
+ * With a single shard every lookup returns shard 0, which is the plain
+ * unsharded deployment.
+ *
+ */
+public class ShardRouter {
+
+   private final List<ReplicaRouter> _shards;
+
+   // round robin placement of new chats
+   private final AtomicInteger _nextChatShard = new AtomicInteger();
+
+   /**
+    * Creates a new instance of ShardRouter
+    *
+    * @param shards the shards in the order their sequences were strided
+    */
+   public ShardRouter (List<ReplicaRouter> shards) {
+      if (shards.isEmpty())
+         throw new IllegalArgumentException("at least one shard is required");
+      this._shards = new ArrayList<ReplicaRouter>(shards);
+   }//end ShardRouter
+
+   /**
+    * @return the number of shards
+    */
+   public int count () {
+      return this._shards.size();
+   }//end count
+
+   /**
+    * @return true when there is more than one shard
+    */
+   public boolean isSharded () {
+      return this._shards.size() > 1;
+   }//end isSharded
+
+   /**
+    * @param index the shard index
+    * @return the router of that shard
+    */
+   public ReplicaRouter shard (int index) {
+      return this._shards.get(index);
+   }//end shard
+
+   /**
+    * @param chat_id the chat id
+    * @return the index of the shard holding the chat
+    */
+   public int shardOfChat (int chat_id) {
+      return (chat_id & Integer.MAX_VALUE) % this._shards.size();
+   }//end shardOfChat
+
+   /**
+    * Logins arrive both escaped by sanitize_input and raw from the database,
+    * sometimes padded to char(50), so quotes and trailing blanks are dropped
+    * before hashing to keep both forms on the same shard.
+    *
+    * @param login the user login
+    * @return the index of the shard holding the user
+    */
+   public int shardOfLogin (String login) {
+      String key = login.trim().replace("'", "");
+      return (key.hashCode() & Integer.MAX_VALUE) % this._shards.size();
+   }//end shardOfLogin
+
+   /**
+    * @param chat_id the chat id
+    * @return the router of the shard holding the chat
+    */
+   public ReplicaRouter forChat (int chat_id) {
+      return this._shards.get(shardOfChat(chat_id));
+   }//end forChat
+
+   /**
+    * @param login the user login
+    * @return the router of the shard holding the user
+    */
+   public ReplicaRouter forLogin (String login) {
+      return this._shards.get(shardOfLogin(login));
+   }//end forLogin
+
+   /**
+    * @return the index of the shard the next new chat should be created on
+    */
+   public int nextChatShard () {
+      return (this._nextChatShard.getAndIncrement() & Integer.MAX_VALUE) % this._shards.size();
+   }//end nextChatShard
+
+   /**
+    * Method to close the replica connections of every shard.
+    */
+   public void close () {
+      for (ReplicaRouter r : this._shards)
+         r.close ();
+   }//end close
+
+}//end ShardRouter
@@ -0,0 +1,192 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * This class caches the status message of each user together with a
+ * version, and keeps a feed of recent status changes. UpdateStatusMessage
+ * publishes to it; contact listings read from it. A client holding a
+ * snapshot taken at some version can ask for just the statuses changed
+ * since then, as long as the feed still reaches back that far.
+ *
+ * The feed only holds changes published by this process. Changes made on
+ * other application nodes arrive through the InvalidationChannel, which
+ * drops the cached entries but adds nothing to the feed.
+ *
+ * Both the cache and the feed are bounded: the cache evicts the least
+ * recently used logins and the feed forgets its oldest changes.
+ *
+ */
+public class StatusCache {
+
+   /**
+    * A cached status. Version 0 means it was read from the database rather
+    * than published through this cache.
+    */
+   public static class Entry {
+      public final String status;
+      public final long version;
+
+      Entry (String status, long version) {
+         this.status = status;
+         this.version = version;
+      }
+   }//end Entry
+
+   /**
+    * One published status change.
+    */
+   public static class Change {
+      public final String login;
+      public final String status;
+      public final long version;
+
+      Change (String login, String status, long version) {
+         this.login = login;
+         this.status = status;
+         this.version = version;
+      }
+   }//end Change
+
+   private final LinkedHashMap<String, Entry> _entries;
+
+   // ring of the most recent changes, oldest at _feedStart
+   private final Change[] _feed;
+   private int _feedStart = 0;
+   private int _feedCount = 0;
+
+   private long _version = 0;
+
+   // bumped by every invalidation, so a read racing one is not cached
+   private long _generation = 0;
+
+   /**
+    * Creates a new instance of StatusCache
+    *
+    * @param capacity the most logins to keep statuses of
+    * @param feedSize the most recent changes to keep in the feed
+    */
+   public StatusCache (final int capacity, int feedSize) {
+      this._entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+         protected boolean removeEldestEntry (Map.Entry<String, StatusCache.Entry> eldest) {
+            return size() > capacity;
+         }
+      };
+      this._feed = new Change[Math.max(1, feedSize)];
+   }//end StatusCache
+
+   /**
+    * @param login the user login, as stored in the database
+    * @return the cached status, or null on a miss
+    */
+   public synchronized Entry get (String login) {
+      return this._entries.get(login.trim());
+   }//end get
+
+   /**
+    * Call before reading statuses from the database, and pass the result
+    * to load.
+    *
+    * @return the current generation
+    */
+   public synchronized long generation () {
+      return this._generation;
+   }//end generation
+
+   /**
+    * Caches a status read from the database, unless something was
+    * invalidated since the given generation.
+    *
+    * @param login the user login, as stored in the database
+    * @param status the status, possibly null
+    * @param generation the generation taken before reading it
+    */
+   public synchronized void load (String login, String status, long generation) {
+      if (generation != this._generation)
+         return;
+      String key = login.trim();
+      // a change published meanwhile is newer than what was read
+      Entry current = this._entries.get(key);
+      if (current == null || current.version == 0)
+         this._entries.put(key, new Entry(status == null ? null : status.trim(), 0));
+   }//end load
+
+   /**
+    * Records a status change that has been written to the database and
+    * adds it to the feed.
+    *
+    * @param login the user login, as stored in the database
+    * @param status the new status
+    * @return the version of the change
+    */
+   public synchronized long publish (String login, String status) {
+      String key = login.trim();
+      Change change = new Change(key, status == null ? null : status.trim(), ++this._version);
+      this._entries.put(key, new Entry(change.status, change.version));
+      if (this._feedCount == this._feed.length){
+         this._feed[this._feedStart] = change;
+         this._feedStart = (this._feedStart + 1) % this._feed.length;
+      }else{
+         this._feed[(this._feedStart + this._feedCount) % this._feed.length] = change;
+         ++this._feedCount;
+      }//end if
+      return change.version;
+   }//end publish
+
+   /**
+    * Drops a login from the cache, e.g. when another node changed it.
+    *
+    * @param login the user login, as stored in the database
+    */
+   public synchronized void invalidate (String login) {
+      ++this._generation;
+      this._entries.remove(login.trim());
+   }//end invalidate
+
+   /**
+    * Drops every login from the cache, e.g. when changes may have been
+    * missed. The feed is kept.
+    */
+   public synchronized void invalidateAll () {
+      ++this._generation;
+      this._entries.clear();
+   }//end invalidateAll
+
+   /**
+    * @return the version of the latest change
+    */
+   public synchronized long version () {
+      return this._version;
+   }//end version
+
+   /**
+    * Returns the latest change of every login changed after the given
+    * version, oldest first.
+    *
+    * @param version the version of the caller's snapshot
+    * @return the changes, or null when the feed no longer reaches back to
+    *         that version and the caller needs a fresh snapshot
+    */
+   public synchronized List<Change> changesSince (long version) {
+      List<Change> result = new ArrayList<Change>();
+      if (version >= this._version)
+         return result;
+      Change oldest = this._feedCount == 0 ? null : this._feed[this._feedStart];
+      if (oldest == null || oldest.version > version + 1)
+         return null;
+
+      Map<String, Change> latest = new LinkedHashMap<String, Change>();
+      for (int i = 0; i < this._feedCount; ++i) {
+         Change c = this._feed[(this._feedStart + i) % this._feed.length];
+         if (c.version > version){
+            latest.remove(c.login);
+            latest.put(c.login, c);
+         }//end if
+      }//end for
+      result.addAll(latest.values());
+      return result;
+   }//end changesSince
+
+}//end StatusCache
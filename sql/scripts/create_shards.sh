@@ -0,0 +1,14 @@
+#!/bin/bash
+# Creates one shard per port in SHARD_PORTS, e.g. SHARD_PORTS="1073 1074 1075".
+# Start Messenger on the first port and list the others, in the same order,
+# in -Dmessenger.shards.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+COUNT=$(echo $SHARD_PORTS | wc -w)
+INDEX=0
+for PORT in $SHARD_PORTS; do
+	psql -p $PORT $DB_NAME < $DIR/../src/create_tables.sql
+	psql -p $PORT $DB_NAME < $DIR/../src/create_indexes.sql
+	psql -p $PORT $DB_NAME < $DIR/../src/triggers.sql
+	psql -p $PORT -v shard_count=$COUNT -v chat_start=$((COUNT + INDEX)) $DB_NAME < $DIR/../src/create_shard.sql
+	INDEX=$((INDEX + 1))
+done
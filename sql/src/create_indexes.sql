@@ -3,6 +3,17 @@ ON MESSAGE
 USING BTREE
 (msg_id);
 
+CREATE INDEX message_chat_index
+ON MESSAGE
+USING BTREE
+(chat_id, msg_id);
+
+-- messages of a body, for pruning bodies no message refers to
+CREATE INDEX message_body_index
+ON MESSAGE
+USING BTREE
+(body_id);
+
 CREATE INDEX chat_list_index
 ON CHAT_LIST
 USING BTREE
@@ -27,3 +38,9 @@ CREATE INDEX user_list_index
 ON USER_LIST
 USING BTREE
 (list_id);
+
+-- phone numbers as digits only, for matching uploaded address books
+CREATE INDEX usr_phone_digits_index
+ON USR
+USING BTREE
+(regexp_replace(phoneNum, '[^0-9]', '', 'g'));
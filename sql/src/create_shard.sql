@@ -0,0 +1,25 @@
+-- Turns a database created by create_tables.sql into one shard of a
+-- sharded deployment. Run with
+--   psql -v shard_count=<N> -v chat_start=<N + shard index> ...
+-- Users (USR, USER_LIST, USER_LIST_CONTAINS) are placed by login and chats
+-- (CHAT, CHAT_LIST, MESSAGE) by chat_id, so references between the two
+-- sides may point at another shard and cannot be foreign keys.
+
+ALTER TABLE USER_LIST_CONTAINS DROP CONSTRAINT user_list_contains_list_member_fkey;
+ALTER TABLE CHAT DROP CONSTRAINT chat_init_sender_fkey;
+ALTER TABLE CHAT_LIST DROP CONSTRAINT chat_list_member_fkey;
+ALTER TABLE MESSAGE DROP CONSTRAINT message_sender_login_fkey;
+
+-- chat ids handed out by this shard are always chat_start modulo shard_count
+ALTER SEQUENCE chat_chat_id_seq INCREMENT BY :shard_count RESTART WITH :chat_start;
+
+-- chats of the users living on this shard, wherever the chats live
+CREATE TABLE CHAT_DIRECTORY(
+	member char(50),
+	chat_id integer,
+	PRIMARY KEY(member,chat_id));
+
+CREATE INDEX chat_directory_chat_index
+ON CHAT_DIRECTORY
+USING BTREE
+(chat_id);
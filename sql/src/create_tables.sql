@@ -1,4 +1,8 @@
+DROP TABLE USR_CHANGES;
+DROP TABLE IMPORT_CHAT;
+DROP TABLE IMPORT_CHECKPOINT;
 DROP TABLE MESSAGE;
+DROP TABLE MESSAGE_BODY;
 DROP TABLE CHAT_LIST;
 DROP TABLE CHAT;
 DROP TABLE USER_LIST_CONTAINS;
@@ -14,13 +18,21 @@ CREATE TABLE USR(
 	login char(50), 
 	phoneNum CHAR(16) UNIQUE NOT NULL, 
 	password char(50) NOT NULL,
-	status char(140),
+	status varchar(140),
 	block_list integer,
 	contact_list integer,
 	Primary Key(login),
 	FOREIGN KEY(block_list) REFERENCES USER_LIST(list_id),
 	FOREIGN KEY(contact_list) REFERENCES USER_LIST(list_id));
 
+-- logins of changed USR rows, filled by the usr_changed trigger and read
+-- by the nodes caching them
+CREATE TABLE USR_CHANGES(
+	version serial,
+	login char(50) NOT NULL,
+	changed_at timestamp NOT NULL DEFAULT now(),
+	PRIMARY KEY(version));
+
 CREATE TABLE USER_LIST_CONTAINS(
 	list_id integer,
 	list_member char(50),
@@ -32,24 +44,51 @@ CREATE TABLE CHAT(
 	chat_id serial, 
 	chat_type char(50) NOT NULL,
 	init_sender char(50),
+	member_count integer NOT NULL DEFAULT 0,
 	PRIMARY KEY(chat_id), 
 	FOREIGN KEY(init_sender) REFERENCES USR(login));
 
 CREATE TABLE CHAT_LIST(
 	chat_id integer, 
 	member char(50),
+	last_read_msg_id integer NOT NULL DEFAULT 0,
+	unread_count integer NOT NULL DEFAULT 0,
 	PRIMARY KEY(chat_id,member), 
 	FOREIGN KEY(member) REFERENCES USR(login), 
 	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id));
 
+-- distinct message texts, found by their SHA-256 and stored as UTF-8 ('p')
+-- or deflated ('z'); see MessageBodies
+CREATE TABLE MESSAGE_BODY(
+	body_id serial,
+	hash char(64) UNIQUE NOT NULL,
+	encoding char(1) NOT NULL,
+	body bytea NOT NULL,
+	PRIMARY KEY(body_id));
+
 CREATE TABLE MESSAGE(
 	msg_id serial, 
-	msg_text char(300) NOT NULL, 
+	msg_text char(300), 
 	msg_timestamp timestamp NOT NULL,
 		sender_login char(50),
 	chat_id integer,
+	body_id integer,
 	PRIMARY KEY(msg_id), 
 	FOREIGN KEY(sender_login) REFERENCES USR(login),
-	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id));
+	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id),
+	FOREIGN KEY(body_id) REFERENCES MESSAGE_BODY(body_id),
+	CHECK(msg_text IS NOT NULL OR body_id IS NOT NULL));
+
+-- progress of ChatImporter: input lines done and chats created, per source
+CREATE TABLE IMPORT_CHECKPOINT(
+	source varchar(200),
+	line bigint NOT NULL,
+	PRIMARY KEY(source));
+
+CREATE TABLE IMPORT_CHAT(
+	source varchar(200),
+	chat_key varchar(200),
+	chat_id integer NOT NULL,
+	PRIMARY KEY(source,chat_key));
 
 
@@ -1,7 +1,7 @@
 COPY USER_LIST
 FROM '/home/csmajs/cgarn002/CS166/project/data/usr_list.csv'
 WITH DELIMITER ';';
-ALTER SEQUENCE user_list_list_id_seq RESTART 55906;
+SELECT setval('user_list_list_id_seq', coalesce(max(list_id), 0) + 1, false) FROM USER_LIST;
 
 COPY USR
 FROM '/home/csmajs/cgarn002/CS166/project/data/usr.csv'
@@ -11,12 +11,12 @@ COPY USER_LIST_CONTAINS
 FROM '/home/csmajs/cgarn002/CS166/project/data/usr_list_contains.csv'
 WITH DELIMITER ';';
 
-COPY CHAT
+COPY CHAT (chat_id, chat_type, init_sender)
 FROM '/home/csmajs/cgarn002/CS166/project/data/chat.csv'
 WITH DELIMITER ';';
-ALTER SEQUENCE chat_chat_id_seq RESTART 5001;
+SELECT setval('chat_chat_id_seq', coalesce(max(chat_id), 0) + 1, false) FROM CHAT;
 
-COPY CHAT_LIST
+COPY CHAT_LIST (chat_id, member)
 FROM '/home/csmajs/cgarn002/CS166/project/data/chat_list.csv'
 WITH DELIMITER ';';
 
@@ -28,5 +28,15 @@ COPY MESSAGE
 	chat_id)
 FROM '/home/csmajs/cgarn002/CS166/project/data/message.csv'
 WITH DELIMITER ';';
-ALTER SEQUENCE message_msg_id_seq RESTART 50000;
+SELECT setval('message_msg_id_seq', coalesce(max(msg_id), 0) + 1, false) FROM MESSAGE;
 
+-- the loaded history counts as read by every member
+UPDATE CHAT_LIST
+SET last_read_msg_id = M.last_msg_id
+FROM (SELECT chat_id, max(msg_id) AS last_msg_id FROM MESSAGE GROUP BY chat_id) M
+WHERE CHAT_LIST.chat_id = M.chat_id;
+
+UPDATE CHAT
+SET member_count = L.members
+FROM (SELECT chat_id, count(*) AS members FROM CHAT_LIST GROUP BY chat_id) L
+WHERE CHAT.chat_id = L.chat_id;
@@ -3,7 +3,8 @@ CREATE OR REPLACE FUNCTION insert_msg_timestamp()
 RETURNS TRIGGER AS 
 $BODY$
 BEGIN
-	New.msg_timestamp := now();
+	-- imported messages (ChatImporter) keep their own timestamps
+	New.msg_timestamp := COALESCE(New.msg_timestamp, now());
 	RETURN NEW;
 END
 $BODY$ 
@@ -11,4 +12,30 @@ LANGUAGE plpgsql VOLATILE;
 
 CREATE TRIGGER name BEFORE INSERT 
 ON message FOR EACH ROW 
-EXECUTE PROCEDURE insert_msg_timestamp()
+EXECUTE PROCEDURE insert_msg_timestamp();
+
+-- every change to a USR row is recorded and announced, so nodes caching
+-- users (PostgresInvalidationChannel) can drop their copies
+CREATE OR REPLACE FUNCTION notify_usr_change()
+RETURNS TRIGGER AS 
+$BODY$
+BEGIN
+	IF TG_OP = 'INSERT' THEN
+		INSERT INTO usr_changes(login) VALUES (NEW.login);
+	ELSIF TG_OP = 'DELETE' THEN
+		INSERT INTO usr_changes(login) VALUES (OLD.login);
+	ELSE
+		INSERT INTO usr_changes(login) VALUES (OLD.login);
+		IF NEW.login <> OLD.login THEN
+			INSERT INTO usr_changes(login) VALUES (NEW.login);
+		END IF;
+	END IF;
+	NOTIFY usr_changed;
+	RETURN NULL;
+END
+$BODY$ 
+LANGUAGE plpgsql VOLATILE;
+
+CREATE TRIGGER usr_changed AFTER INSERT OR UPDATE OR DELETE 
+ON usr FOR EACH ROW 
+EXECUTE PROCEDURE notify_usr_change();